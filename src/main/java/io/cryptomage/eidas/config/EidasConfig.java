@@ -2,6 +2,9 @@ package io.cryptomage.eidas.config;
 
 import java.io.File;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.log4j.Logger;
@@ -11,12 +14,19 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import io.cryptomage.eidas.metrics.XmlMetrics;
+import io.cryptomage.eidas.revocation.CrlStore;
+import io.cryptomage.eidas.revocation.RevocationCache;
+import io.cryptomage.eidas.revocation.RevocationFetcher;
 import io.cryptomage.eidas.service.CertificateVerifierProvider;
 import io.cryptomage.eidas.service.EidasService;
 import io.cryptomage.eidas.service.FileExtractor;
 import io.cryptomage.eidas.service.FileValidator;
 import io.cryptomage.eidas.service.TrustedProfileValidator;
+import io.cryptomage.eidas.service.ValidationJobService;
+import io.cryptomage.eidas.service.ValidationResultCache;
 import io.cryptomage.eidas.utils.FileUtilities;
 
 /**
@@ -27,6 +37,7 @@ import io.cryptomage.eidas.utils.FileUtilities;
 @Configuration
 public class EidasConfig {
 	private static final Logger logger = Logger.getLogger(EidasConfig.class);
+	private static final String REVOCATION_CACHE_FOLDER = "revocation";
 
 	@Autowired
 	TrustedCertificateListsConfig trustedCertificateLists;
@@ -43,6 +54,90 @@ public class EidasConfig {
 	@Value("${eidas.general.maxReccurenceNesting}")
 	private int maxReccurenceNesting;
 
+	@Value("${eidas.general.maxUploadSize}")
+	private long maxUploadSize;
+
+	@Value("${eidas.general.coalesceRequests}")
+	private boolean coalesceRequests;
+
+	@Value("${eidas.general.coalesceRevocationFetches}")
+	private boolean coalesceRevocationFetches;
+
+	@Value("${eidas.workspace.maxInMemoryFileSize}")
+	private long maxInMemoryFileSize;
+
+	@Value("${eidas.workspace.maxInMemoryRequestSize}")
+	private long maxInMemoryRequestSize;
+
+	@Value("${eidas.zip.maxEntries}")
+	private int maxZipEntries;
+
+	@Value("${eidas.zip.maxInflatedSize}")
+	private long maxZipInflatedSize;
+
+	@Value("${eidas.zip.maxCompressionRatio}")
+	private int maxZipCompressionRatio;
+
+	@Value("${eidas.zip.lazyExtraction}")
+	private boolean lazyZipExtraction;
+
+	@Value("${eidas.general.maxExtractedFiles}")
+	private int maxExtractedFiles;
+
+	@Value("${eidas.parallelExtraction.enabled}")
+	private boolean parallelExtractionEnabled;
+
+	@Value("${eidas.parallelExtraction.threads}")
+	private int parallelExtractionThreads;
+
+	@Value("${eidas.parallelValidation.enabled}")
+	private boolean parallelValidationEnabled;
+
+	@Value("${eidas.parallelValidation.threads}")
+	private int parallelValidationThreads;
+
+	@Value("${eidas.parallelValidation.maxFilesPerRequest}")
+	private int parallelValidationMaxFilesPerRequest;
+
+	@Value("${eidas.validationCache.enabled}")
+	private boolean validationCacheEnabled;
+
+	@Value("${eidas.validationCache.maxEntries}")
+	private long validationCacheMaxEntries;
+
+	@Value("${eidas.validationCache.ttl}")
+	private long validationCacheTtl;
+
+	@Value("${eidas.revocationCache.enabled}")
+	private boolean revocationCacheEnabled;
+
+	@Value("${eidas.revocationCache.maxMemorySize}")
+	private long revocationCacheMaxMemorySize;
+
+	@Value("${eidas.revocationCache.defaultTtl}")
+	private long revocationCacheDefaultTtl;
+
+	@Value("${eidas.revocationCache.persistent}")
+	private boolean revocationCachePersistent;
+
+	@Value("${eidas.crlStore.enabled}")
+	private boolean crlStoreEnabled;
+
+	@Value("${eidas.trustedListSnapshot.enabled}")
+	private boolean trustedListSnapshotEnabled;
+
+	@Value("${eidas.jobs.workers}")
+	private int jobWorkers;
+
+	@Value("${eidas.jobs.queueCapacity}")
+	private int jobQueueCapacity;
+
+	@Value("${eidas.jobs.ttl}")
+	private int jobTtl;
+
+	@Value("${eidas.jobs.retryAfter}")
+	private int jobRetryAfter;
+
 	@Value("${eidas.dssValidation.lotlUrl}")
 	private String lotlUrl;
 
@@ -81,7 +176,8 @@ public class EidasConfig {
 	}
 	
 	@Bean
-	public CertificateVerifierProvider getCertificateVerifierProvider() {
+	public CertificateVerifierProvider getCertificateVerifierProvider(RevocationFetcher revocationFetcher,
+			CrlStore crlStore) {
 		logger.info("Setting up certificate verifier provider...");
 		setupFiles();
 		CertificateVerifierProvider certificateVerifierProvider = new CertificateVerifierProvider();
@@ -96,6 +192,12 @@ public class EidasConfig {
 		logger.info("Adding lotlCode: " + lotlCode);
 		certificateVerifierProvider.setLotlCode(lotlCode);
 		certificateVerifierProvider.setTrustedCertificates(trustedCertificates);
+		certificateVerifierProvider.setRevocationFetcher(revocationFetcher);
+		logger.info("Enabled CRL store: " + crlStoreEnabled);
+		if (crlStoreEnabled)
+			certificateVerifierProvider.setCrlStore(crlStore);
+		logger.info("Enabled trusted lists snapshot: " + trustedListSnapshotEnabled);
+		certificateVerifierProvider.setPersistSnapshot(trustedListSnapshotEnabled);
 		certificateVerifierProvider.setupCerts();
 
 		return certificateVerifierProvider;
@@ -129,23 +231,130 @@ public class EidasConfig {
 	 * 
 	 * @param fileExtractor
 	 * @param fileValidator
+	 * @param validationResultCache
+	 * @param certificateVerifierProvider
 	 * @return
 	 */
 	@Bean(name = "eidasService")
-	public EidasService getEidasService(FileExtractor fileExtractor, FileValidator fileValidator) {
+	public EidasService getEidasService(FileExtractor fileExtractor, FileValidator fileValidator,
+			ValidationResultCache validationResultCache, CertificateVerifierProvider certificateVerifierProvider) {
 		logger.info("Setting up eidas service...");
 		logger.info("Default constraints: " + defaultConstraints);
 		EidasService eidasService = new EidasService(tempDir, defaultConstraints);
+		logger.info("Max upload size: " + maxUploadSize);
+		eidasService.setMaxUploadSize(maxUploadSize);
+		logger.info("Max in memory file size: " + maxInMemoryFileSize + ", request size: " + maxInMemoryRequestSize);
+		eidasService.setMaxInMemoryFileSize(maxInMemoryFileSize);
+		eidasService.setMaxInMemoryRequestSize(maxInMemoryRequestSize);
+		logger.info("Zip limits, entries: " + maxZipEntries + ", inflated size: " + maxZipInflatedSize
+				+ ", compression ratio: " + maxZipCompressionRatio);
+		eidasService.setMaxZipEntries(maxZipEntries);
+		eidasService.setMaxZipInflatedSize(maxZipInflatedSize);
+		eidasService.setMaxZipCompressionRatio(maxZipCompressionRatio);
+		logger.info("Lazy zip extraction: " + lazyZipExtraction);
+		eidasService.setLazyZipExtraction(lazyZipExtraction);
 		eidasService.setFileExtractor(fileExtractor);
 		eidasService.setFileValidator(fileValidator);
+		eidasService.setVerifierProvider(certificateVerifierProvider);
+		logger.info("Enabled coalescing of concurrent validations: " + coalesceRequests);
+		eidasService.setCoalesceRequests(coalesceRequests);
+		logger.info("Enabled validation cache: " + validationCacheEnabled);
+		if (validationCacheEnabled)
+			eidasService.setValidationResultCache(validationResultCache);
 		return eidasService;
 	}
 
+	/**
+	 * Method used to create Validation Result Cache
+	 * 
+	 * @param certificateVerifierProvider
+	 * @return
+	 */
+	@Bean
+	public ValidationResultCache getValidationResultCache(CertificateVerifierProvider certificateVerifierProvider) {
+		logger.info("Setting up validation result cache...");
+		logger.info("Validation cache max entries: " + validationCacheMaxEntries + ", ttl: " + validationCacheTtl);
+		return new ValidationResultCache(certificateVerifierProvider, validationCacheMaxEntries, validationCacheTtl);
+	}
+
+	/**
+	 * Method used to create Revocation Cache
+	 * 
+	 * @return
+	 */
+	@Bean
+	public RevocationCache getRevocationCache() {
+		logger.info("Setting up revocation cache...");
+		logger.info("Revocation cache max memory size: " + revocationCacheMaxMemorySize + ", default ttl: "
+				+ revocationCacheDefaultTtl + ", persistent: " + revocationCachePersistent);
+		File cacheFolder = revocationCachePersistent ? new File(tempDir, REVOCATION_CACHE_FOLDER) : null;
+		return new RevocationCache(revocationCacheMaxMemorySize, revocationCacheDefaultTtl, cacheFolder);
+	}
+
+	/**
+	 * Method used to create Revocation Fetcher
+	 * 
+	 * @param revocationCache
+	 * @return
+	 */
+	@Bean
+	public RevocationFetcher getRevocationFetcher(RevocationCache revocationCache) {
+		logger.info("Setting up revocation fetcher...");
+		logger.info("Enabled revocation cache: " + revocationCacheEnabled);
+		logger.info("Enabled coalescing of concurrent revocation data downloads: " + coalesceRevocationFetches);
+		return new RevocationFetcher(revocationCacheEnabled ? revocationCache : null, coalesceRevocationFetches);
+	}
+
+	/**
+	 * Method used to create Crl Store
+	 * 
+	 * @return
+	 */
+	@Bean
+	public CrlStore getCrlStore() {
+		return new CrlStore();
+	}
+
+	/**
+	 * Method used to create Xml Metrics
+	 * 
+	 * @return
+	 */
+	@Bean
+	public XmlMetrics getXmlMetrics() {
+		return new XmlMetrics();
+	}
+
+	/**
+	 * Method used to create Validation Job Service
+	 * 
+	 * @param eidasService
+	 * @return
+	 */
+	@Bean(destroyMethod = "shutdown")
+	public ValidationJobService getValidationJobService(EidasService eidasService) {
+		logger.info("Setting up validation job service...");
+		logger.info("Validation job workers: " + jobWorkers + ", queue capacity: " + jobQueueCapacity);
+		return new ValidationJobService(eidasService, jobWorkers, jobQueueCapacity, jobTtl, jobRetryAfter);
+	}
+
 	@Bean
 	public FileExtractor getFileExtractor() {
 		logger.info("Setting up file extractor...");
 		logger.info("Max reccurence nesting: " + maxReccurenceNesting);
-		return new FileExtractor(maxReccurenceNesting);
+		FileExtractor fileExtractor = new FileExtractor(maxReccurenceNesting);
+		logger.info("Max extracted files: " + maxExtractedFiles);
+		fileExtractor.setMaxExtractedFiles(maxExtractedFiles);
+		logger.info("Enabled parallel extraction: " + parallelExtractionEnabled);
+		if (parallelExtractionEnabled) {
+			logger.info("Parallel extraction threads: " + parallelExtractionThreads);
+			fileExtractor.setExtractionPool(new ForkJoinPool(parallelExtractionThreads, pool -> {
+				ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				thread.setName("file-extraction-" + thread.getPoolIndex());
+				return thread;
+			}, null, false));
+		}
+		return fileExtractor;
 	}
 
 	/**
@@ -167,6 +376,14 @@ public class EidasConfig {
 		fileValidator.setAddDssDetailedReport(Boolean.parseBoolean(addDssDetailedReport));
 		fileValidator.setAddDssDiagnosticReport(Boolean.parseBoolean(addDssDiagnosticReport));
 		fileValidator.setTrustedProfileValidator(trustedProfileValidator);
+		logger.info("Enabled parallel validation: " + parallelValidationEnabled);
+		if (parallelValidationEnabled) {
+			logger.info("Parallel validation threads: " + parallelValidationThreads + ", max files per request: "
+					+ parallelValidationMaxFilesPerRequest);
+			fileValidator.setValidationExecutor(Executors.newFixedThreadPool(parallelValidationThreads,
+					new ThreadFactoryBuilder().setNameFormat("file-validation-%d").setDaemon(true).build()));
+			fileValidator.setMaxParallelFilesPerRequest(parallelValidationMaxFilesPerRequest);
+		}
 		return fileValidator;
 	}
 }
@@ -1,22 +1,42 @@
 package io.cryptomage.eidas.controller;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.DependsOn;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
 
+import io.cryptomage.eidas.metrics.MetricsSource;
+import io.cryptomage.eidas.report.DateFormatter;
+import io.cryptomage.eidas.report.ReportConstantStrings;
 import io.cryptomage.eidas.service.EidasService;
+import io.cryptomage.eidas.service.ValidationJob;
+import io.cryptomage.eidas.service.ValidationJobService;
+import io.cryptomage.eidas.service.ValidationQueueFullException;
+import io.cryptomage.eidas.service.ValidationRequest;
 import io.cryptomage.eidas.swagger.FileDataModel;
 import io.cryptomage.eidas.swagger.HelloResponseModel;
 import io.cryptomage.eidas.swagger.SwaggerAnnotations;
+import io.cryptomage.eidas.swagger.ValidationJobModel;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
 import io.swagger.annotations.ApiResponse;
@@ -32,10 +52,18 @@ import io.swagger.annotations.ApiResponses;
 @RequestMapping("/api/v1")
 public class EidasController {
 	private static final String WELCOME_MSG = "eIDAS signature verification system works!";
+	private static final String CACHE_BYPASS_HEADER = "X-Cache-Bypass";
+	private static final String NDJSON_VALUE = "application/x-ndjson";
 
 	@Autowired
 	private EidasService eidasService;
 
+	@Autowired
+	private ValidationJobService validationJobService;
+
+	@Autowired(required = false)
+	private List<MetricsSource> metricsSources = new ArrayList<>();
+
 	/**
 	 * Validation endpoint which is used to verify signature on sent file.
 	 * 
@@ -43,6 +71,8 @@ public class EidasController {
 	 *            File sent by the API consumer.
 	 * @param policy
 	 *            Validation policy file (not required)
+	 * @param bypassCache
+	 *            If cached validation report should be ignored (not required)
 	 * @return validation report.
 	 */
 	@ApiOperation(value = SwaggerAnnotations.VALIDATE_PATH_SUMMARY, notes = SwaggerAnnotations.VALIDATE_PATH_DESCRIPTION)
@@ -51,11 +81,160 @@ public class EidasController {
 	@PostMapping(value = "/validate", consumes = MediaType.MULTIPART_FORM_DATA_VALUE, produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
 	public ResponseEntity<String> validate(
 			@ApiParam(value = SwaggerAnnotations.PARAMS_FILE_DESCRITPION, required = true) MultipartFile file,
-			@ApiParam(value = SwaggerAnnotations.PARAMS_POLICY_DESCRITPION) MultipartFile policy) throws IOException {
-		String validationResult = eidasService.validate(file, policy);
+			@ApiParam(value = SwaggerAnnotations.PARAMS_POLICY_DESCRITPION) MultipartFile policy,
+			@ApiParam(value = SwaggerAnnotations.PARAMS_CACHE_BYPASS_DESCRIPTION) @RequestHeader(value = CACHE_BYPASS_HEADER, defaultValue = "false") boolean bypassCache)
+			throws IOException {
+		String validationResult = eidasService.validate(file, policy, bypassCache);
+		return ResponseEntity.ok(validationResult);
+	}
+
+	/**
+	 * Validation endpoint which is used to verify signature on sent file. The
+	 * report of every file is sent in a separate line as soon as the file is
+	 * validated.
+	 * 
+	 * @param file
+	 *            File sent by the API consumer.
+	 * @param policy
+	 *            Validation policy file (not required)
+	 * @param bypassCache
+	 *            If cached validation report should be ignored (not required)
+	 * @param response
+	 *            Response to which file reports are written.
+	 */
+	@ApiOperation(value = SwaggerAnnotations.VALIDATE_STREAM_PATH_SUMMARY, notes = SwaggerAnnotations.VALIDATE_STREAM_PATH_DESCRIPTION)
+	@ApiResponses({ @ApiResponse(code = 200, message = SwaggerAnnotations.VALIDATE_PATH_STATUS_200_MESSAGE, response = FileDataModel.class),
+			@ApiResponse(code = 500, message = SwaggerAnnotations.VALIDATE_PATH_STATUS_500_MESSAGE) })
+	@PostMapping(value = "/validate/stream", consumes = MediaType.MULTIPART_FORM_DATA_VALUE, produces = NDJSON_VALUE)
+	public void validateStream(
+			@ApiParam(value = SwaggerAnnotations.PARAMS_FILE_DESCRITPION, required = true) MultipartFile file,
+			@ApiParam(value = SwaggerAnnotations.PARAMS_POLICY_DESCRITPION) MultipartFile policy,
+			@ApiParam(value = SwaggerAnnotations.PARAMS_CACHE_BYPASS_DESCRIPTION) @RequestHeader(value = CACHE_BYPASS_HEADER, defaultValue = "false") boolean bypassCache,
+			HttpServletResponse response) throws IOException {
+		ValidationRequest request = eidasService.createRequest(file, policy);
+		response.setContentType(NDJSON_VALUE);
+		response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		OutputStream os = response.getOutputStream();
+		eidasService.validate(request, bypassCache, fileReport -> {
+			os.write(fileReport.toString().getBytes(StandardCharsets.UTF_8));
+			os.write('\n');
+			os.flush();
+		});
+	}
+
+	/**
+	 * Validation endpoint which is used to verify signature with detached
+	 * contents given by their digests instead of uploaded files.
+	 * 
+	 * @param file
+	 *            Signature file sent by the API consumer.
+	 * @param policy
+	 *            Validation policy file (not required)
+	 * @param detachedDigests
+	 *            JSON array of detached contents names and digests
+	 * @return validation report.
+	 */
+	@ApiOperation(value = SwaggerAnnotations.VALIDATE_DIGEST_PATH_SUMMARY, notes = SwaggerAnnotations.VALIDATE_DIGEST_PATH_DESCRIPTION)
+	@ApiResponses({ @ApiResponse(code = 200, message = SwaggerAnnotations.VALIDATE_PATH_STATUS_200_MESSAGE, response = FileDataModel.class, responseContainer = "List"),
+			@ApiResponse(code = 500, message = SwaggerAnnotations.VALIDATE_PATH_STATUS_500_MESSAGE) })
+	@PostMapping(value = "/validate/digest", consumes = MediaType.MULTIPART_FORM_DATA_VALUE, produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+	public ResponseEntity<String> validateWithDigests(
+			@ApiParam(value = SwaggerAnnotations.PARAMS_FILE_DESCRITPION, required = true) MultipartFile file,
+			@ApiParam(value = SwaggerAnnotations.PARAMS_POLICY_DESCRITPION) MultipartFile policy,
+			@ApiParam(value = SwaggerAnnotations.PARAMS_DETACHED_DIGESTS_DESCRIPTION, required = true) @RequestParam String detachedDigests)
+			throws IOException {
+		String validationResult = eidasService.validateWithDigests(file, policy, detachedDigests);
 		return ResponseEntity.ok(validationResult);
 	}
 
+	/**
+	 * Validation endpoint which is used to queue signature verification of
+	 * sent file. The file is stored and validated asynchronously.
+	 * 
+	 * @param file
+	 *            File sent by the API consumer.
+	 * @param policy
+	 *            Validation policy file (not required)
+	 * @param bypassCache
+	 *            If cached validation report should be ignored (not required)
+	 * @return validation job id and status.
+	 */
+	@ApiOperation(value = SwaggerAnnotations.VALIDATIONS_PATH_SUMMARY, notes = SwaggerAnnotations.VALIDATIONS_PATH_DESCRIPTION)
+	@ApiResponses({ @ApiResponse(code = 202, message = SwaggerAnnotations.VALIDATIONS_PATH_STATUS_202_MESSAGE, response = ValidationJobModel.class),
+			@ApiResponse(code = 503, message = SwaggerAnnotations.VALIDATIONS_PATH_STATUS_503_MESSAGE),
+			@ApiResponse(code = 500, message = SwaggerAnnotations.VALIDATE_PATH_STATUS_500_MESSAGE) })
+	@PostMapping(value = "/validations", consumes = MediaType.MULTIPART_FORM_DATA_VALUE, produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+	public ResponseEntity<String> queueValidation(
+			@ApiParam(value = SwaggerAnnotations.PARAMS_FILE_DESCRITPION, required = true) MultipartFile file,
+			@ApiParam(value = SwaggerAnnotations.PARAMS_POLICY_DESCRITPION) MultipartFile policy,
+			@ApiParam(value = SwaggerAnnotations.PARAMS_CACHE_BYPASS_DESCRIPTION) @RequestHeader(value = CACHE_BYPASS_HEADER, defaultValue = "false") boolean bypassCache)
+			throws IOException {
+		ValidationJob job;
+		try {
+			job = validationJobService.submit(file, policy, bypassCache);
+		} catch (ValidationQueueFullException e) {
+			JSONObject json = new JSONObject();
+			json.put(ReportConstantStrings.JOB_ERROR, ReportConstantStrings.JOB_QUEUE_FULL);
+			return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+					.header(HttpHeaders.RETRY_AFTER, String.valueOf(validationJobService.getRetryAfter()))
+					.body(json.toString());
+		}
+		return ResponseEntity.status(HttpStatus.ACCEPTED).header(HttpHeaders.LOCATION, "/api/v1/validations/" + job.getId())
+				.body(getJobJSON(job).toString());
+	}
+
+	/**
+	 * Endpoint used to poll for validation job status and report.
+	 * 
+	 * @param id
+	 *            Validation job id.
+	 * @return validation job status and report.
+	 */
+	@ApiOperation(value = SwaggerAnnotations.VALIDATION_JOB_PATH_SUMMARY, notes = SwaggerAnnotations.VALIDATION_JOB_PATH_DESCRIPTION)
+	@ApiResponses({ @ApiResponse(code = 200, message = SwaggerAnnotations.VALIDATION_JOB_PATH_STATUS_200_MESSAGE, response = ValidationJobModel.class),
+			@ApiResponse(code = 404, message = SwaggerAnnotations.VALIDATION_JOB_PATH_STATUS_404_MESSAGE) })
+	@GetMapping(value = "/validations/{id}", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+	public ResponseEntity<String> getValidation(
+			@ApiParam(value = SwaggerAnnotations.PARAMS_JOB_ID_DESCRIPTION, required = true) @PathVariable String id) {
+		ValidationJob job = validationJobService.getJob(id);
+		if (job == null)
+			return ResponseEntity.notFound().build();
+
+		JSONObject json = getJobJSON(job);
+		if (job.getStatus() == ValidationJob.Status.DONE)
+			json.put(ReportConstantStrings.JOB_REPORT, new JSONArray(job.getReport()));
+		if (job.getStatus() == ValidationJob.Status.FAILED)
+			json.put(ReportConstantStrings.JOB_ERROR, job.getError());
+		return ResponseEntity.ok(json.toString());
+	}
+
+	private JSONObject getJobJSON(ValidationJob job) {
+		JSONObject json = new JSONObject();
+		json.put(ReportConstantStrings.JOB_ID, job.getId());
+		json.put(ReportConstantStrings.JOB_STATUS, job.getStatus().name());
+		json.put(ReportConstantStrings.JOB_CREATED, DateFormatter.getString(job.getCreated()));
+		if (job.getFinished() != null)
+			json.put(ReportConstantStrings.JOB_FINISHED, DateFormatter.getString(job.getFinished()));
+		return json;
+	}
+
+	/**
+	 * Endpoint used to get counters of the service components, e.g. cache hit
+	 * and miss counts.
+	 * 
+	 * @return metrics of every component
+	 */
+	@ApiOperation(value = SwaggerAnnotations.METRICS_PATH_SUMMARY, notes = SwaggerAnnotations.METRICS_PATH_DESCRIPTION)
+	@ApiResponses({ @ApiResponse(code = 200, message = SwaggerAnnotations.METRICS_PATH_STATUS_200_MESSAGE) })
+	@GetMapping(value = "/metrics", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+	public ResponseEntity<String> metrics() {
+		JSONObject json = new JSONObject();
+		for (MetricsSource metricsSource : metricsSources) {
+			json.put(metricsSource.getMetricsName(), metricsSource.getMetrics());
+		}
+		return ResponseEntity.ok(json.toString());
+	}
+
 	/**
 	 * Test endpoint to check if eIDAS signature verification responds.
 	 * 
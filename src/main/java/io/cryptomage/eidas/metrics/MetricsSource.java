@@ -0,0 +1,23 @@
+package io.cryptomage.eidas.metrics;
+
+import org.json.JSONObject;
+
+/**
+ * Interface for components which expose their counters in metrics endpoint.
+ * Every bean implementing it is listed in the endpoint response.
+ */
+public interface MetricsSource {
+	/**
+	 * Method allowing to get name under which metrics are listed.
+	 * 
+	 * @return metrics name
+	 */
+	String getMetricsName();
+
+	/**
+	 * Method allowing to get current metrics values.
+	 * 
+	 * @return metrics in form of a JSON object
+	 */
+	JSONObject getMetrics();
+}
@@ -0,0 +1,21 @@
+package io.cryptomage.eidas.metrics;
+
+import org.json.JSONObject;
+
+import io.cryptomage.eidas.utils.XmlProcessor;
+
+/**
+ * Metrics of xml parsing done by {@link XmlProcessor}.
+ */
+public class XmlMetrics implements MetricsSource {
+
+	@Override
+	public String getMetricsName() {
+		return "xml";
+	}
+
+	@Override
+	public JSONObject getMetrics() {
+		return XmlProcessor.getMetrics();
+	}
+}
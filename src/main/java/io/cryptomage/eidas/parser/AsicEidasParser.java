@@ -0,0 +1,59 @@
+package io.cryptomage.eidas.parser;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import eu.europa.esig.dss.DSSDocument;
+import io.cryptomage.eidas.workspace.Artifact;
+import io.cryptomage.eidas.workspace.Workspace;
+
+/**
+ * ASiC container parser.
+ * 
+ * It's a class used to handle ASiC-S and ASiC-E containers. The container is
+ * validated by dss library as a single document, which resolves signed data
+ * objects from container manifest itself. Container entries are listed in the
+ * report, but they are neither validated nor searched for attachments. Entries
+ * of containers spilled to disk are not extracted, they are read from the
+ * container in place if they are needed.
+ */
+public class AsicEidasParser extends ZipEidasParser {
+	private static final Logger logger = Logger.getLogger(AsicEidasParser.class);
+
+	/**
+	 * ASiC container parser constructor.
+	 * 
+	 * @param file
+	 *            to be analyzed,
+	 * @param workspace
+	 *            workspace holding files of the request.
+	 */
+	public AsicEidasParser(Artifact file, Workspace workspace) {
+		super(file, workspace);
+	}
+
+	@Override
+	public DSSDocument getDSSDocumentData() {
+		logger.info("Getting dss document data");
+		return signedFile.getDSSDocument();
+	}
+
+	@Override
+	public List<Artifact> getAttachedFiles() {
+		logger.info("Getting container entries");
+		try {
+			signedFile.materialize();
+			List<Artifact> entries = signedFile.isInMemory() ? unzipStream() : listZipEntries();
+			for (Artifact entry : entries) {
+				entry.setParser(new DefaultEidasParser(entry, workspace));
+			}
+			return entries;
+		} catch (IOException e) {
+			logger.error("Couldn't get container entries", e);
+			return new ArrayList<>();
+		}
+	}
+}
@@ -1,6 +1,5 @@
 package io.cryptomage.eidas.parser;
 
-import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -8,6 +7,9 @@ import org.apache.commons.io.FilenameUtils;
 import org.apache.log4j.Logger;
 
 import eu.europa.esig.dss.DSSDocument;
+import io.cryptomage.eidas.workspace.Artifact;
+import io.cryptomage.eidas.workspace.ArtifactIndex;
+import io.cryptomage.eidas.workspace.Workspace;
 
 /**
  * Default file parser created in case if file type is not supported by eIDAS
@@ -20,27 +22,27 @@ public class DefaultEidasParser implements EidasParser {
 	private static final String[] SIGNATUREEXTENSIONS = { "XAdES", "xades", "PAdES", "pades", "CAdES", "cades", "ASiC",
 			"asic", "sig" };
 
-	File signedFile;
-	String rootDir;
+	Artifact signedFile;
+	Workspace workspace;
 
 	/**
 	 * Default file parser constructor.
 	 * 
-	 * It assigns file and its path for further analysis.
+	 * It assigns file and its workspace for further analysis.
 	 * 
 	 * @param file
 	 *            to be analyzed,
-	 * @param rootDir
-	 *            root directory of the file.
+	 * @param workspace
+	 *            workspace holding files of the request.
 	 */
-	public DefaultEidasParser(File file, String rootDir) {
+	public DefaultEidasParser(Artifact file, Workspace workspace) {
 		logger.info("Creating " + this.getClass().toString());
 		this.signedFile = file;
-		this.rootDir = rootDir;
+		this.workspace = workspace;
 	}
 
 	@Override
-	public List<File> getDetachedFiles(List<File> files) {
+	public List<Artifact> getDetachedFiles(ArtifactIndex index) {
 		return new ArrayList<>();
 	}
 
@@ -50,29 +52,30 @@ public class DefaultEidasParser implements EidasParser {
 	}
 
 	@Override
-	public List<File> getAttachedFiles() {
+	public List<Artifact> getAttachedFiles() {
 		return new ArrayList<>();
 	}
 
-	protected List<File> getDetachedFilesByFilename(List<File> files) {
-		List<File> detachedFiles = new ArrayList<>();
+	@Override
+	public boolean isDigestEnough(Artifact detachedFile) {
+		return false;
+	}
+
+	protected List<Artifact> getDetachedFilesByFilename(ArtifactIndex index) {
+		List<Artifact> detachedFiles = new ArrayList<>();
 
 		if (!checkForExtension(signedFile))
 			return detachedFiles;
-		String filePath = signedFile.getAbsolutePath().substring(rootDir.length());
-		filePath = FilenameUtils.removeExtension(filePath);
-		for (File file : files) {
-			if (checkForExtension(file))
-				continue;
-			String path = file.getAbsolutePath().substring(rootDir.length());
-			if (path.contains(filePath))
+		String filePath = FilenameUtils.removeExtension(signedFile.getPath());
+		for (Artifact file : index.findByPathPrefix(filePath)) {
+			if (!checkForExtension(file))
 				detachedFiles.add(file);
 		}
 
 		return detachedFiles;
 	}
 
-	private boolean checkForExtension(File file) {
+	private boolean checkForExtension(Artifact file) {
 		boolean ret = false;
 		for (String extension : SIGNATUREEXTENSIONS) {
 			if (file.getName().contains(extension)) {
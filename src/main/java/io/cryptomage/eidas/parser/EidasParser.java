@@ -1,9 +1,10 @@
 package io.cryptomage.eidas.parser;
 
-import java.io.File;
 import java.util.List;
 
 import eu.europa.esig.dss.DSSDocument;
+import io.cryptomage.eidas.workspace.Artifact;
+import io.cryptomage.eidas.workspace.ArtifactIndex;
 
 /**
  * Interface for file parsers. Its methods allow user to get validation data
@@ -26,15 +27,26 @@ public interface EidasParser {
 	 * 
 	 * @return list of attached files
 	 */
-	List<File> getAttachedFiles();
+	List<Artifact> getAttachedFiles();
 
 	/**
 	 * Method allowing to get detached data in order to verify detached
 	 * signature type.
 	 * 
-	 * @param files
-	 *            list of files that may hold detached files.
+	 * @param index
+	 *            index of files that may hold detached files.
 	 * @return detached files.
 	 */
-	List<File> getDetachedFiles(List<File> files);
+	List<Artifact> getDetachedFiles(ArtifactIndex index);
+
+	/**
+	 * Method allowing to check if DSS library needs only digests of a
+	 * detached file to verify signature, so the file can be given to it as a
+	 * digest document instead of its contents.
+	 * 
+	 * @param detachedFile
+	 *            one of the detached files of the analyzed file
+	 * @return true if digests of the detached file are enough.
+	 */
+	boolean isDigestEnough(Artifact detachedFile);
 }
@@ -1,13 +1,14 @@
 package io.cryptomage.eidas.parser;
 
-import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.log4j.Logger;
 
 import eu.europa.esig.dss.DSSDocument;
-import eu.europa.esig.dss.FileDocument;
+import io.cryptomage.eidas.workspace.Artifact;
+import io.cryptomage.eidas.workspace.ArtifactIndex;
+import io.cryptomage.eidas.workspace.Workspace;
 
 /**
  * PDF file parser.
@@ -25,26 +26,26 @@ public class PdfEidasParser extends DefaultEidasParser {
 	 * 
 	 * @param file
 	 *            to be analyzed,
-	 * @param rootDir
-	 *            root directory of the file.
+	 * @param workspace
+	 *            workspace holding files of the request.
 	 */
-	public PdfEidasParser(File file, String rootDir) {
-		super(file, rootDir);
+	public PdfEidasParser(Artifact file, Workspace workspace) {
+		super(file, workspace);
 	}
 
 	@Override
 	public DSSDocument getDSSDocumentData() {
 		logger.info("Getting dss document data");
-		return new FileDocument(signedFile.getAbsolutePath());
+		return signedFile.getDSSDocument();
 	}
 
 	@Override
-	public List<File> getAttachedFiles() {
+	public List<Artifact> getAttachedFiles() {
 		return new ArrayList<>();
 	}
 
 	@Override
-	public List<File> getDetachedFiles(List<File> files) {
+	public List<Artifact> getDetachedFiles(ArtifactIndex index) {
 		return new ArrayList<>();
 	}
 }
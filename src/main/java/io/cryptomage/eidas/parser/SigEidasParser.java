@@ -1,22 +1,25 @@
 package io.cryptomage.eidas.parser;
 
 import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.log4j.Logger;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSSignedDataParser;
+import org.bouncycastle.cms.CMSTypedStream;
+import org.bouncycastle.operator.bc.BcDigestCalculatorProvider;
 
 import eu.europa.esig.dss.DSSDocument;
-import eu.europa.esig.dss.DSSException;
-import eu.europa.esig.dss.FileDocument;
-import eu.europa.esig.dss.validation.CommonCertificateVerifier;
-import eu.europa.esig.dss.validation.SignedDocumentValidator;
 import io.cryptomage.eidas.utils.FileUtilities;
+import io.cryptomage.eidas.workspace.Artifact;
+import io.cryptomage.eidas.workspace.ArtifactIndex;
+import io.cryptomage.eidas.workspace.Workspace;
 
 /**
  * Sig file parser.
@@ -37,43 +40,52 @@ public class SigEidasParser extends DefaultEidasParser {
 	 * 
 	 * @param file
 	 *            to be analyzed,
-	 * @param rootDir
-	 *            root directory of the file.
+	 * @param workspace
+	 *            workspace holding files of the request.
 	 */
-	public SigEidasParser(File file, String rootDir) {
-		super(file, rootDir);
+	public SigEidasParser(Artifact file, Workspace workspace) {
+		super(file, workspace);
 	}
 
 	@Override
 	public DSSDocument getDSSDocumentData() {
 		logger.info("Getting dss document data");
-		return new FileDocument(signedFile.getAbsolutePath());
+		return signedFile.getDSSDocument();
 	}
 
 	@Override
-	public List<File> getAttachedFiles() {
+	public List<Artifact> getAttachedFiles() {
 		logger.info("Getting attached files");
-		ArrayList<File> list = new ArrayList<>();
-		File attachedFile = createAttachedFile();
-		if (attachedFile.exists())
+		ArrayList<Artifact> list = new ArrayList<>();
+		Artifact attachedFile = createAttachedFile();
+		if (attachedFile != null)
 			list.add(attachedFile);
 		return list;
 	}
 
 	@Override
-	public List<File> getDetachedFiles(List<File> files) {
+	public List<Artifact> getDetachedFiles(ArtifactIndex index) {
 		logger.info("Getting detached files");
-		List<File> filesByFileContents = getDetachedFilesByFileContents();
-		List<File> filesByFileName = getDetachedFilesByFilename(files);
+		List<Artifact> filesByFileContents = getDetachedFilesByFileContents();
+		List<Artifact> filesByFileName = getDetachedFilesByFilename(index);
 		return FileUtilities.mergeFileListsWithoutDuplicates(filesByFileContents, filesByFileName);
 	}
 
-	public List<File> getDetachedFilesByFileContents() {
-		List<File> detachedFiles = new ArrayList<>();
+	/**
+	 * CMS signature covers the whole detached content without transforms, DSS
+	 * library checks it with the digest only.
+	 */
+	@Override
+	public boolean isDigestEnough(Artifact detachedFile) {
+		return true;
+	}
+
+	public List<Artifact> getDetachedFilesByFileContents() {
+		List<Artifact> detachedFiles = new ArrayList<>();
 		try {
 			String fileName = getFileNameFromContents();
-			File detachedFile = new File(signedFile.getParent() + "/" + fileName);
-			if (detachedFile.exists()) {
+			Artifact detachedFile = workspace.find(signedFile.getParentPath() + fileName);
+			if (detachedFile != null) {
 				detachedFiles.add(detachedFile);
 			}
 		} catch (IOException e) {
@@ -82,45 +94,43 @@ public class SigEidasParser extends DefaultEidasParser {
 		return detachedFiles;
 	}
 
-	private File createAttachedFile() {
-		File attachedFile = new File(
-				signedFile.getParent() + "/" + FilenameUtils.removeExtension(signedFile.getName()));
-		SignedDocumentValidator validator = SignedDocumentValidator
-				.fromDocument(new FileDocument(signedFile.getAbsolutePath()));
-		validator.setCertificateVerifier(new CommonCertificateVerifier());
-		try {
-			
-			String firstSignatureId = validator.validateDocument().getSimpleReport().getFirstSignatureId();
-			List<DSSDocument> originalDocuments = validator.getOriginalDocuments(firstSignatureId);
-			DSSDocument originalFile = null;
-			
-			if(CollectionUtils.isNotEmpty(originalDocuments)) {
-				originalFile = originalDocuments.get(0);
+	/**
+	 * Attached file is the content encapsulated in CMS SignedData. It is
+	 * streamed out of the signature without validating it, the signature is
+	 * validated once, by the file validator. For a detached signature it is
+	 * the file next to the signature, which name is the signature name
+	 * without extension, if there is one.
+	 */
+	private Artifact createAttachedFile() {
+		String attachedFilePath = signedFile.getParentPath() + FilenameUtils.removeExtension(signedFile.getName());
+		try (InputStream is = signedFile.openStream()) {
+			CMSSignedDataParser parser = new CMSSignedDataParser(new BcDigestCalculatorProvider(), is);
+			CMSTypedStream signedContent = parser.getSignedContent();
+			if (signedContent == null) {
+				logger.info("Signature " + signedFile.getPath() + " has no encapsulated content");
+				return workspace.find(attachedFilePath);
 			}
-			
-			if (originalFile != null)
-				originalFile.save(attachedFile.getAbsolutePath());
-
-		} catch (DSSException | IOException e) {
+			try (InputStream contentStream = signedContent.getContentStream()) {
+				return workspace.write(attachedFilePath, contentStream, 0);
+			}
+		} catch (CMSException | IOException e) {
 			logger.error("Couldn't extract attached files from file contents: " + e);
 		}
-		return attachedFile;
+		return workspace.find(attachedFilePath);
 	}
 
 	private String getFileNameFromContents() throws IOException {
-		BufferedReader br = new BufferedReader(new FileReader(signedFile));
-		String line;
-		String fileName = "Wrongfilename";
-		while ((line = br.readLine()) != null) {
-			int index = line.lastIndexOf("filename=");
-			if (index != -1) {
-				index += 10;
-				fileName = line.substring(index, line.indexOf('"', index));
-				br.close();
-				return fileName;
+		try (BufferedReader br = new BufferedReader(
+				new InputStreamReader(signedFile.openStream(), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = br.readLine()) != null) {
+				int index = line.lastIndexOf("filename=");
+				if (index != -1) {
+					index += 10;
+					return line.substring(index, line.indexOf('"', index));
+				}
 			}
 		}
-		br.close();
-		return fileName;
+		return "Wrongfilename";
 	}
 }
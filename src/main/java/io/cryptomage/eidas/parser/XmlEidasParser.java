@@ -1,7 +1,5 @@
 package io.cryptomage.eidas.parser;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
@@ -9,24 +7,14 @@ import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.List;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-
 import org.apache.log4j.Logger;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 import eu.europa.esig.dss.DSSDocument;
-import eu.europa.esig.dss.FileDocument;
 import io.cryptomage.eidas.utils.FileUtilities;
 import io.cryptomage.eidas.utils.XmlAttachmentsParser;
+import io.cryptomage.eidas.workspace.Artifact;
+import io.cryptomage.eidas.workspace.ArtifactIndex;
+import io.cryptomage.eidas.workspace.Workspace;
 
 /**
  * XML file parser.
@@ -42,139 +30,117 @@ import io.cryptomage.eidas.utils.XmlAttachmentsParser;
  */
 public class XmlEidasParser extends DefaultEidasParser {
 	private static final Logger logger = Logger.getLogger(XmlEidasParser.class);
-	private static final String XPATH_XML_DOM_URI = "//*[local-name()='Reference']/@URI";
-	private static final String XPATH_XML_DOM_DESCRIPTION = "//*[local-name()='Description']";
+
+	private XmlAttachmentsParser.ScanResult scanResult;
 
 	/**
 	 * XML file parser constructor.
 	 * 
 	 * @param file
 	 *            to be analyzed,
-	 * @param rootDir
-	 *            root directory of the file.
+	 * @param workspace
+	 *            workspace holding files of the request.
 	 */
-	public XmlEidasParser(File file, String rootDir) {
-		super(file, rootDir);
+	public XmlEidasParser(Artifact file, Workspace workspace) {
+		super(file, workspace);
 	}
 
 	@Override
 	public DSSDocument getDSSDocumentData() {
 		logger.info("Getting dss document data");
-		return new FileDocument(signedFile.getAbsolutePath());
+		return signedFile.getDSSDocument();
 	}
 
 	@Override
-	public List<File> getAttachedFiles() {
+	public List<Artifact> getAttachedFiles() {
+		logger.info("Getting attached files");
 		try {
-			logger.info("Getting attached files");
-			InputStream is = new FileInputStream(signedFile);
-			return checkXmlAttachment(is);
+			return getScanResult(true).getAttachedFiles();
 		} catch (IOException e) {
 			logger.error("Couldn't get attached files", e);
 			return new ArrayList<>();
 		}
 	}
 
-	private List<File> checkXmlAttachment(InputStream is) throws IOException {
-		try {
-			DocumentBuilderFactory dFactory = DocumentBuilderFactory.newInstance();
-			dFactory.setNamespaceAware(true);
-			DocumentBuilder dBuilder = dFactory.newDocumentBuilder();
-			Document document = dBuilder.parse(is);
-
-			document.normalize();
-			XmlAttachmentsParser parser = new XmlAttachmentsParser(signedFile);
-			return parser.checkForAttachments(document);
-
-		} catch (ParserConfigurationException | SAXException e) {
-			logger.error(e);
-		}
-
-		return new ArrayList<>();
-	}
-
 	@Override
-	public List<File> getDetachedFiles(List<File> files) {
+	public List<Artifact> getDetachedFiles(ArtifactIndex index) {
 		logger.info("Getting detached files");
-		List<File> ret;
-		List<File> filesByXmlDomURI = getDetachedFilesByXmlDomURI();
-		List<File> filesByXmlDomDescription = getDetachedFilesByXmlDomDescription();
-		ret = FileUtilities.mergeFileListsWithoutDuplicates(filesByXmlDomURI, filesByXmlDomDescription);
-		List<File> filesByFilename = getDetachedFilesByFilename(files);
+		List<Artifact> filesByXmlDomURI = new ArrayList<>();
+		List<Artifact> filesByXmlDomDescription = new ArrayList<>();
+		try {
+			XmlAttachmentsParser.ScanResult scanResult = getScanResult(false);
+			filesByXmlDomURI = getDetachedFiles(scanResult.getReferenceUris());
+			filesByXmlDomDescription = getDetachedFiles(scanResult.getDescriptionFileNames());
+		} catch (IOException e) {
+			logger.error("Couldn't extract detached files from xml dom: " + e);
+		}
+		List<Artifact> ret = FileUtilities.mergeFileListsWithoutDuplicates(filesByXmlDomURI, filesByXmlDomDescription);
+		List<Artifact> filesByFilename = getDetachedFilesByFilename(index);
 		ret = FileUtilities.mergeFileListsWithoutDuplicates(ret, filesByFilename);
 		return ret;
 	}
 
-	private List<File> getDetachedFilesByXmlDomURI() {
-		List<File> detachedFiles = new ArrayList<>();
-		NodeList nodeList = getNodeList(XPATH_XML_DOM_URI);
-		if (nodeList == null)
-			return detachedFiles;
-
-		for (int i = 0; i < nodeList.getLength(); i++) {
-			Node node = nodeList.item(i);
-			String fileName = node.getNodeValue();
-			File detachedFile = getDetachedFile(fileName);
-			if (detachedFile != null && detachedFile.exists()) {
-				detachedFiles.add(detachedFile);
+	/**
+	 * DSS library checks a detached reference with the digest only when the
+	 * reference has no transforms, so digests are enough for files which are
+	 * referenced by URI without transforms.
+	 */
+	@Override
+	public boolean isDigestEnough(Artifact detachedFile) {
+		try {
+			XmlAttachmentsParser.ScanResult result = getScanResult(false);
+			boolean referenced = false;
+			for (String uri : result.getReferenceUris()) {
+				if (getDetachedFile(uri) != detachedFile)
+					continue;
+				if (result.getTransformedReferenceUris().contains(uri))
+					return false;
+				referenced = true;
 			}
+			return referenced;
+		} catch (IOException e) {
+			logger.error("Couldn't check references of detached file " + detachedFile.getPath() + ": " + e);
+			return false;
 		}
-		return detachedFiles;
 	}
 
-	private List<File> getDetachedFilesByXmlDomDescription() {
-		List<File> detachedFiles = new ArrayList<>();
-		NodeList nodeList = getNodeList(XPATH_XML_DOM_DESCRIPTION);
-		if (nodeList == null)
-			return detachedFiles;
-
-		for (int i = 0; i < nodeList.getLength(); i++) {
-			Node node = nodeList.item(i);
-			String description = node.getTextContent();
-			int index = description.lastIndexOf("filename=");
-			String fileName = "";
-			if (index != -1) {
-				// remove filename="
-				index += 10;
-				// get string up to next "
-				fileName = description.substring(index, description.indexOf('"', index));
+	/**
+	 * Scans the file once and keeps the result, so attachments and detached
+	 * files are found in a single pass. Attachments are not extracted if only
+	 * detached files are needed, the file is scanned again if they are asked
+	 * for later.
+	 */
+	private synchronized XmlAttachmentsParser.ScanResult getScanResult(boolean withAttachments) throws IOException {
+		if (scanResult == null || (withAttachments && !scanResult.isAttachmentsExtracted())) {
+			try (InputStream is = signedFile.openStream()) {
+				scanResult = new XmlAttachmentsParser(signedFile, workspace).scan(is, withAttachments);
 			}
-			File detachedFile = getDetachedFile(fileName);
-			if (detachedFile == null)
-				continue;
-			if (detachedFile.exists()) {
+		}
+		return scanResult;
+	}
+
+	private List<Artifact> getDetachedFiles(List<String> fileNames) {
+		List<Artifact> detachedFiles = new ArrayList<>();
+		for (String fileName : fileNames) {
+			Artifact detachedFile = getDetachedFile(fileName);
+			if (detachedFile != null) {
 				detachedFiles.add(detachedFile);
 			}
 		}
 		return detachedFiles;
 	}
 
-	private File getDetachedFile(String fileName) {
+	private Artifact getDetachedFile(String fileName) {
 		if (fileName == null || "".equals(fileName))
 			return null;
 		
 		try {
 			String decodedName = URLDecoder.decode(fileName, "UTF-8");
-			return new File(signedFile.getParent() + "/" + decodedName);
+			return workspace.find(signedFile.getParentPath() + decodedName);
 		} catch (UnsupportedEncodingException e) {
 			logger.info("Couldn't decode e: " + e + " filename: " + fileName + " skipping file...");
 		}
 		
 		return null;
 	}
-
-	private NodeList getNodeList(String xpathString) {
-		try {
-			DocumentBuilderFactory dFactory = DocumentBuilderFactory.newInstance();
-			DocumentBuilder dBuilder = dFactory.newDocumentBuilder();
-			Document document = dBuilder.parse(signedFile.getAbsolutePath());
-
-			XPathFactory xpf = XPathFactory.newInstance();
-			XPath xpath = xpf.newXPath();
-			return (NodeList) xpath.evaluate(xpathString, document, XPathConstants.NODESET);
-		} catch (XPathExpressionException | IOException | ParserConfigurationException | SAXException e) {
-			logger.error("Couldn't extract detached files from xml dom: " + e);
-		}
-		return null;
-	}
 }
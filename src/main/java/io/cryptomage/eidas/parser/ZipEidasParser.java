@@ -1,26 +1,37 @@
 package io.cryptomage.eidas.parser;
 
-import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 import org.apache.log4j.Logger;
 
 import eu.europa.esig.dss.DSSDocument;
+import io.cryptomage.eidas.workspace.Artifact;
+import io.cryptomage.eidas.workspace.ArtifactIndex;
+import io.cryptomage.eidas.workspace.ExtractionBudget;
+import io.cryptomage.eidas.workspace.Workspace;
 
 /**
  * ZIP file parser.
  * 
  * It's a class used to handle zip data type. It allows to get a list of packed
- * files.
+ * files. Packages kept in memory are read as a stream, packages spilled to
+ * disk are read with their central directory (ZIP64 packages are supported).
+ * Entries are copied in bulk and checked against extraction limits of the
+ * request, so extraction stops as soon as a package has too many entries or
+ * inflates too much.
+ * 
+ * In lazy zip extraction mode entries of packages spilled to disk are not
+ * extracted, they are added to the workspace as lazy files read from the
+ * package in place. Only entries which are validated as signatures or used as
+ * detached contents are stored afterwards. Every read of a lazy entry is
+ * limited to its declared size, which is counted when the entry is listed.
  * 
  * @author Dariusz Napłoszek
  */
@@ -32,11 +43,11 @@ public class ZipEidasParser extends DefaultEidasParser {
 	 * 
 	 * @param file
 	 *            to be analyzed,
-	 * @param rootDir
-	 *            root directory of the file.
+	 * @param workspace
+	 *            workspace holding files of the request.
 	 */
-	public ZipEidasParser(File file, String rootDir) {
-		super(file, rootDir);
+	public ZipEidasParser(Artifact file, Workspace workspace) {
+		super(file, workspace);
 	}
 
 	@Override
@@ -45,7 +56,7 @@ public class ZipEidasParser extends DefaultEidasParser {
 	}
 
 	@Override
-	public List<File> getAttachedFiles() {
+	public List<Artifact> getAttachedFiles() {
 		logger.info("Getting attached files");
 		try {
 			return unzipFile();
@@ -56,42 +67,70 @@ public class ZipEidasParser extends DefaultEidasParser {
 	}
 
 	@Override
-	public List<File> getDetachedFiles(List<File> files) {
+	public List<Artifact> getDetachedFiles(ArtifactIndex index) {
 		return new ArrayList<>();
 	}
 
-	private List<File> unzipFile() throws IOException {
-		List<File> fileList = new ArrayList<>();
-		try (ZipFile file = new ZipFile(signedFile, Charset.forName("Cp437"))) {
+	private List<Artifact> unzipFile() throws IOException {
+		signedFile.materialize();
+		if (signedFile.isInMemory())
+			return unzipStream();
+		if (workspace.isLazyZipExtraction())
+			return listZipEntries();
+
+		List<Artifact> fileList = new ArrayList<>();
+		try (ZipFile file = new ZipFile(signedFile.getFile(), Workspace.ZIP_CHARSET)) {
 			Enumeration<? extends ZipEntry> entries = file.entries();
 
 			while (entries.hasMoreElements()) {
 				ZipEntry entry = entries.nextElement();
-				if (entry.isDirectory()) {
-					File dir = new File(signedFile.getParent() + "/" + entry.getName());
-					dir.mkdirs();
-				} else {
-					File newFile = extractZipEntry(file, entry);
-					fileList.add(newFile);
+				if (!entry.isDirectory()) {
+					try (InputStream is = file.getInputStream(entry)) {
+						fileList.add(extractZipEntry(entry, is));
+					}
 				}
 			}
 		}
 		return fileList;
 	}
 
-	private File extractZipEntry(ZipFile file, ZipEntry entry) throws IOException {
-		InputStream is = file.getInputStream(entry);
-		BufferedInputStream bis = new BufferedInputStream(is);
-		String filePath = signedFile.getParent() + "/" + entry.getName();
-		File newFile = new File(filePath);
-		// In case a folder is not created in earlier zip extraction stage
-		newFile.getParentFile().mkdirs();
-		try (FileOutputStream fileOutput = new FileOutputStream(newFile)) {
-			while (bis.available() > 0) {
-				fileOutput.write(bis.read());
+	List<Artifact> unzipStream() throws IOException {
+		List<Artifact> fileList = new ArrayList<>();
+		try (ZipInputStream zis = new ZipInputStream(signedFile.openStream(), Workspace.ZIP_CHARSET)) {
+			ZipEntry entry;
+			while ((entry = zis.getNextEntry()) != null) {
+				if (!entry.isDirectory())
+					fileList.add(extractZipEntry(entry, zis));
 			}
 		}
+		return fileList;
+	}
+
+	List<Artifact> listZipEntries() throws IOException {
+		List<Artifact> fileList = new ArrayList<>();
+		ZipFile file = workspace.getZipFile(signedFile.getFile());
+		ExtractionBudget budget = workspace.getExtractionBudget();
+		Enumeration<? extends ZipEntry> entries = file.entries();
+		while (entries.hasMoreElements()) {
+			ZipEntry entry = entries.nextElement();
+			if (entry.isDirectory())
+				continue;
+			budget.addEntry(entry.getName());
+			budget.addEntrySize(entry.getName(), entry.getSize(), entry.getCompressedSize());
+			fileList.add(workspace.addLazy(signedFile.getParentPath() + entry.getName(), entry.getSize(),
+					() -> budget.limitEntry(entry.getName(), file.getInputStream(entry), entry.getSize(),
+							entry.getCompressedSize())));
+		}
+		logger.info("Indexed " + fileList.size() + " entries of " + signedFile.getName());
+		return fileList;
+	}
 
+	private Artifact extractZipEntry(ZipEntry entry, InputStream is) throws IOException {
+		ExtractionBudget budget = workspace.getExtractionBudget();
+		budget.addEntry(entry.getName());
+		long compressedSize = entry.getCompressedSize() > 0 ? entry.getCompressedSize() : signedFile.getSize();
+		Artifact newFile = workspace.write(signedFile.getParentPath() + entry.getName(),
+				budget.limit(entry.getName(), is, compressedSize), 0);
 		logger.info("Unzipped " + entry.getName());
 		return newFile;
 	}
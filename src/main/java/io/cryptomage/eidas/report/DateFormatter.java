@@ -5,8 +5,9 @@ import java.util.Date;
 
 public class DateFormatter {
     public static String ISO_FORMAT = "yyyy-MM-dd HH:mm:ss.SSS zzz";
-    private static final SimpleDateFormat isoFormatter = new SimpleDateFormat(ISO_FORMAT);
+    // SimpleDateFormat is not thread safe and reports are generated in parallel
+    private static final ThreadLocal<SimpleDateFormat> isoFormatter = ThreadLocal.withInitial(() -> new SimpleDateFormat(ISO_FORMAT));
     public static String getString(Date date) {
-        return isoFormatter.format(date);
+        return isoFormatter.get().format(date);
     }
 }
@@ -54,6 +54,15 @@ public final class ReportConstantStrings {
 	public static final String REPORT_RESULT = "result";
 	public static final String REPORT_INFO = "info";
 
+	// Validation jobs
+	public static final String JOB_ID = "id";
+	public static final String JOB_STATUS = "status";
+	public static final String JOB_CREATED = "created";
+	public static final String JOB_FINISHED = "finished";
+	public static final String JOB_REPORT = "report";
+	public static final String JOB_ERROR = "error";
+	public static final String JOB_QUEUE_FULL = "Validation queue is full, retry later.";
+
 	private ReportConstantStrings() {
 	}
 }
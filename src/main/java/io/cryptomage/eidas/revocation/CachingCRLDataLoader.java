@@ -0,0 +1,56 @@
+package io.cryptomage.eidas.revocation;
+
+import java.io.ByteArrayInputStream;
+import java.security.cert.CRLException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+
+import org.apache.log4j.Logger;
+
+import eu.europa.esig.dss.client.http.commons.CommonsDataLoader;
+
+/**
+ * Data loader used by CRL source, which downloads CRLs through revocation
+ * fetcher, so they are kept in revocation cache until their nextUpdate and
+ * concurrent downloads of the same CRL are coalesced.
+ */
+public class CachingCRLDataLoader extends CommonsDataLoader {
+	private static final long serialVersionUID = 1L;
+	private static final Logger logger = Logger.getLogger(CachingCRLDataLoader.class);
+	private static final String KEY_PREFIX = "crl:";
+
+	private final transient RevocationFetcher fetcher;
+
+	/**
+	 * Caching CRL data loader constructor.
+	 *
+	 * @param fetcher
+	 *            revocation fetcher shared by all requests
+	 */
+	public CachingCRLDataLoader(RevocationFetcher fetcher) {
+		this.fetcher = fetcher;
+	}
+
+	@Override
+	public byte[] get(String url) {
+		String key = KEY_PREFIX + url;
+		return fetcher.fetch(key, () -> {
+			logger.debug("Downloading CRL " + url);
+			byte[] data = super.get(url);
+			if (data != null && data.length > 0 && fetcher.isCaching())
+				store(key, url, data);
+			return data;
+		});
+	}
+
+	private void store(String key, String url, byte[] data) {
+		try {
+			CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+			X509CRL crl = (X509CRL) certificateFactory.generateCRL(new ByteArrayInputStream(data));
+			fetcher.store(key, data, crl.getThisUpdate(), crl.getNextUpdate());
+		} catch (CertificateException | CRLException e) {
+			logger.warn("Data downloaded from " + url + " is not a CRL, it won't be cached: " + e);
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package io.cryptomage.eidas.revocation;
+
+import java.io.IOException;
+import java.util.Date;
+
+import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.ocsp.OCSPObjectIdentifiers;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.SingleResp;
+
+import com.google.common.hash.Hashing;
+
+import eu.europa.esig.dss.client.http.commons.OCSPDataLoader;
+
+/**
+ * Data loader used by OCSP source, which sends OCSP requests through
+ * revocation fetcher, so responses are kept in revocation cache until their
+ * nextUpdate and concurrent requests for the same certificate are coalesced.
+ *
+ * Responses are identified by the responder url and hash of the request, so
+ * requests for the same certificate sent to the same responder share the
+ * response. Requests with a nonce expect a fresh response and are always sent
+ * to the responder.
+ */
+public class CachingOCSPDataLoader extends OCSPDataLoader {
+	private static final long serialVersionUID = 1L;
+	private static final Logger logger = Logger.getLogger(CachingOCSPDataLoader.class);
+	private static final String KEY_PREFIX = "ocsp:";
+
+	private final transient RevocationFetcher fetcher;
+
+	/**
+	 * Caching OCSP data loader constructor.
+	 *
+	 * @param fetcher
+	 *            revocation fetcher shared by all requests
+	 */
+	public CachingOCSPDataLoader(RevocationFetcher fetcher) {
+		this.fetcher = fetcher;
+	}
+
+	@Override
+	public byte[] post(String url, byte[] content) {
+		if (hasNonce(content))
+			return super.post(url, content);
+
+		String key = KEY_PREFIX + url + ":" + Hashing.sha256().hashBytes(content);
+		return fetcher.fetch(key, () -> {
+			logger.debug("Sending OCSP request to " + url);
+			byte[] data = super.post(url, content);
+			if (data != null && data.length > 0 && fetcher.isCaching())
+				store(key, url, data);
+			return data;
+		});
+	}
+
+	private boolean hasNonce(byte[] content) {
+		try {
+			return new OCSPReq(content).getExtension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce) != null;
+		} catch (IOException e) {
+			logger.debug("Couldn't parse OCSP request: " + e);
+			return true;
+		}
+	}
+
+	/**
+	 * Only successful responses are cached. Response is kept until the
+	 * earliest nextUpdate of its single responses.
+	 */
+	private void store(String key, String url, byte[] data) {
+		try {
+			OCSPResp response = new OCSPResp(data);
+			if (response.getStatus() != OCSPResp.SUCCESSFUL)
+				return;
+			Object responseObject = response.getResponseObject();
+			if (!(responseObject instanceof BasicOCSPResp))
+				return;
+			SingleResp[] singleResponses = ((BasicOCSPResp) responseObject).getResponses();
+			if (singleResponses.length == 0)
+				return;
+
+			Date thisUpdate = null;
+			Date nextUpdate = null;
+			for (SingleResp singleResponse : singleResponses) {
+				if (thisUpdate == null || singleResponse.getThisUpdate().after(thisUpdate))
+					thisUpdate = singleResponse.getThisUpdate();
+				Date singleNextUpdate = singleResponse.getNextUpdate();
+				if (singleNextUpdate != null && (nextUpdate == null || singleNextUpdate.before(nextUpdate)))
+					nextUpdate = singleNextUpdate;
+			}
+			fetcher.store(key, data, thisUpdate, nextUpdate);
+		} catch (IOException | OCSPException e) {
+			logger.warn("Response from " + url + " is not a valid OCSP response, it won't be cached: " + e);
+		}
+	}
+}
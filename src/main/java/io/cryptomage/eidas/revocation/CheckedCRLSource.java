@@ -0,0 +1,114 @@
+package io.cryptomage.eidas.revocation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.DERIA5String;
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+
+import eu.europa.esig.dss.DSSException;
+import eu.europa.esig.dss.client.http.DataLoader;
+import eu.europa.esig.dss.x509.CertificateToken;
+import eu.europa.esig.dss.x509.crl.CRLSource;
+import eu.europa.esig.dss.x509.crl.CRLToken;
+
+/**
+ * CRL source which uses CRLs from the CRL store.
+ *
+ * CRLs are downloaded with the given data loader (usually going through
+ * revocation cache) from the CRL distribution points of the certificate,
+ * http ones first. A downloaded CRL is checked and indexed once per version,
+ * certificates are looked up in the index instead of the whole CRL, see
+ * {@link CheckedCrl}.
+ */
+public class CheckedCRLSource implements CRLSource {
+	private static final long serialVersionUID = 1L;
+	private static final Logger logger = Logger.getLogger(CheckedCRLSource.class);
+	private static final String HTTP = "http";
+
+	private final transient DataLoader dataLoader;
+	private final transient CrlStore crlStore;
+
+	/**
+	 * Checked CRL source constructor.
+	 *
+	 * @param dataLoader
+	 *            data loader used to download CRLs
+	 * @param crlStore
+	 *            store of checked CRLs shared by all requests
+	 */
+	public CheckedCRLSource(DataLoader dataLoader, CrlStore crlStore) {
+		this.dataLoader = dataLoader;
+		this.crlStore = crlStore;
+	}
+
+	@Override
+	public CRLToken findCrl(CertificateToken certificateToken) {
+		if (certificateToken == null)
+			return null;
+		CertificateToken issuerToken = certificateToken.getIssuerToken();
+		if (issuerToken == null) {
+			logger.debug("No issuer of certificate " + certificateToken.getDSSIdAsString() + ", CRL is not checked");
+			return null;
+		}
+
+		for (String url : getCrlUrls(certificateToken)) {
+			CheckedCrl crl = getCheckedCrl(url, issuerToken);
+			if (crl == null)
+				continue;
+			return crl.getToken(certificateToken);
+		}
+		return null;
+	}
+
+	private CheckedCrl getCheckedCrl(String url, CertificateToken issuerToken) {
+		try {
+			byte[] data = dataLoader.get(url);
+			if (data == null || data.length == 0)
+				return null;
+			return crlStore.get(url, data, issuerToken);
+		} catch (IOException | DSSException e) {
+			logger.warn("Couldn't get CRL from " + url + ": " + e);
+			return null;
+		}
+	}
+
+	private List<String> getCrlUrls(CertificateToken certificateToken) {
+		byte[] extension = certificateToken.getCertificate().getExtensionValue(Extension.cRLDistributionPoints.getId());
+		if (extension == null)
+			return Collections.emptyList();
+
+		List<String> httpUrls = new ArrayList<>();
+		List<String> otherUrls = new ArrayList<>();
+		try {
+			CRLDistPoint distPoint = CRLDistPoint.getInstance(JcaX509ExtensionUtils.parseExtensionValue(extension));
+			for (DistributionPoint point : distPoint.getDistributionPoints()) {
+				DistributionPointName pointName = point.getDistributionPoint();
+				if (pointName == null || pointName.getType() != DistributionPointName.FULL_NAME)
+					continue;
+				for (GeneralName name : GeneralNames.getInstance(pointName.getName()).getNames()) {
+					if (name.getTagNo() != GeneralName.uniformResourceIdentifier)
+						continue;
+					String url = DERIA5String.getInstance(name.getName()).getString();
+					if (url.startsWith(HTTP))
+						httpUrls.add(url);
+					else
+						otherUrls.add(url);
+				}
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			logger.warn("Couldn't read CRL distribution points of " + certificateToken.getDSSIdAsString() + ": " + e);
+		}
+		httpUrls.addAll(otherUrls);
+		return httpUrls;
+	}
+}
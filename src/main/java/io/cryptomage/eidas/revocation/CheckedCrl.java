@@ -0,0 +1,368 @@
+package io.cryptomage.eidas.revocation;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.X509CRLEntryHolder;
+import org.bouncycastle.cert.X509CRLHolder;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+
+import eu.europa.esig.dss.crl.CRLUtils;
+import eu.europa.esig.dss.crl.CRLValidity;
+import eu.europa.esig.dss.x509.CertificateToken;
+import eu.europa.esig.dss.x509.crl.CRLToken;
+import lombok.Getter;
+
+/**
+ * Single version of a CRL, checked and indexed once when it is downloaded.
+ *
+ * The CRL is checked by DSS library (signature, issuer, key usage) once, and
+ * the result is used for revocation tokens of all certificates checked with
+ * this version of the CRL.
+ *
+ * Serial numbers of revoked certificates are kept in a sorted array of fixed
+ * width, big-endian entries, next to their revocation dates and reasons, so a
+ * serial number is found with a binary search without keeping parsed CRL
+ * entries. A bloom filter in front of the array answers most lookups of not
+ * revoked certificates without searching it.
+ *
+ * DSS library looks the certificate up in the whole CRL whenever a revocation
+ * token is created, so a token of a not revoked certificate is created once
+ * per CRL version and shared by all certificates which the index finds not
+ * revoked. Only revoked certificates, and not revoked ones checked before that
+ * token exists, are checked by DSS library.
+ */
+public class CheckedCrl {
+	private static final Logger logger = Logger.getLogger(CheckedCrl.class);
+	private static final double BLOOM_FILTER_FPP = 0.01;
+	private static final byte NO_REASON = -1;
+
+	@Getter
+	private final String url;
+	@Getter
+	private final String versionId;
+	@Getter
+	private final Date thisUpdate;
+	@Getter
+	private final Date nextUpdate;
+	@Getter
+	private final boolean signatureValid;
+	@Getter
+	private final int entries;
+	/**
+	 * Size of the encoded CRL.
+	 */
+	@Getter
+	private final long encodedSize;
+	/**
+	 * Size of the sorted serial numbers with their dates and reasons.
+	 */
+	@Getter
+	private final long indexSize;
+	@Getter
+	private final long bloomFilterSize;
+	@Getter
+	private final CRLValidity validity;
+	private final String issuerId;
+	private final byte[] encoded;
+
+	private final int serialWidth;
+	private final byte[] serials;
+	private final long[] revocationDates;
+	private final byte[] reasons;
+	private final BloomFilter<byte[]> bloomFilter;
+	private volatile CRLToken notRevokedToken;
+
+	private final LongAdder bloomFilterNegatives = new LongAdder();
+	private final LongAdder bloomFilterFalsePositives = new LongAdder();
+	private final LongAdder indexHits = new LongAdder();
+	private final LongAdder fullChecks = new LongAdder();
+
+	/**
+	 * Result of a lookup of a revoked certificate.
+	 */
+	@Getter
+	public static class Revocation {
+		private final Date revocationDate;
+		/**
+		 * Reason code of RFC 5280, null if the CRL entry has no reason.
+		 */
+		private final Integer reason;
+
+		Revocation(Date revocationDate, Integer reason) {
+			this.revocationDate = revocationDate;
+			this.reason = reason;
+		}
+	}
+
+	/**
+	 * Method used to check and index a downloaded CRL.
+	 *
+	 * @param url
+	 *            url the CRL was downloaded from
+	 * @param versionId
+	 *            identifier of the downloaded version, e.g. hash of the CRL
+	 * @param encoded
+	 *            CRL in DER encoding
+	 * @param issuer
+	 *            issuer of the certificates checked with the CRL
+	 * @throws IOException
+	 *             thrown if the CRL couldn't be parsed.
+	 */
+	public CheckedCrl(String url, String versionId, byte[] encoded, CertificateToken issuer) throws IOException {
+		this.url = url;
+		this.versionId = versionId;
+		this.issuerId = issuer.getDSSIdAsString();
+		this.encoded = encoded;
+
+		X509CRLHolder crl = new X509CRLHolder(encoded);
+		this.thisUpdate = crl.getThisUpdate();
+		this.nextUpdate = crl.getNextUpdate();
+
+		Collection<?> revoked = crl.getRevokedCertificates();
+		this.entries = revoked.size();
+		Entry[] sorted = new Entry[entries];
+		int width = 1;
+		int i = 0;
+		for (Object revokedEntry : revoked) {
+			sorted[i] = new Entry((X509CRLEntryHolder) revokedEntry);
+			width = Math.max(width, sorted[i].serial.length);
+			i++;
+		}
+		this.serialWidth = width;
+		this.serials = new byte[entries * width];
+		this.revocationDates = new long[entries];
+		this.reasons = new byte[entries];
+		this.bloomFilter = BloomFilter.create(Funnels.byteArrayFunnel(), Math.max(entries, 1), BLOOM_FILTER_FPP);
+		index(sorted);
+
+		// checked once here instead of once for every validated certificate
+		this.validity = CRLUtils.isValidCRL(new ByteArrayInputStream(encoded), issuer);
+		this.signatureValid = validity.isSignatureIntact();
+		this.encodedSize = encoded.length;
+		this.indexSize = serials.length + (long) revocationDates.length * Long.BYTES + reasons.length;
+		this.bloomFilterSize = measureBloomFilter();
+		logger.info("Indexed CRL " + url + " with " + entries + " entries, " + getMemorySize()
+				+ " bytes, signature valid: " + signatureValid);
+	}
+
+	/**
+	 * Method used to get revocation token of a certificate. Certificates which
+	 * the index finds not revoked share a single token, other certificates are
+	 * checked by DSS library with the whole CRL.
+	 *
+	 * @param certificate
+	 *            checked certificate, issued by the CRL issuer
+	 * @return revocation token of the certificate
+	 */
+	public CRLToken getToken(CertificateToken certificate) {
+		Revocation revocation = findRevocation(certificate.getSerialNumber());
+		if (revocation == null) {
+			CRLToken token = notRevokedToken;
+			if (token != null)
+				return token;
+		}
+
+		fullChecks.increment();
+		CRLToken token = new CRLToken(certificate, validity);
+		token.setSourceURL(url);
+		boolean notRevoked = Boolean.TRUE.equals(token.getStatus());
+		if (revocation != null)
+			logger.info("Certificate " + certificate.getDSSIdAsString() + " is on CRL " + url + ", revoked on "
+					+ revocation.getRevocationDate() + ", reason: " + revocation.getReason());
+		if (revocation == null && notRevoked) {
+			notRevokedToken = token;
+		} else if (revocation == null || notRevoked) {
+			logger.warn("Index of CRL " + url + " and DSS library disagree on certificate "
+					+ certificate.getDSSIdAsString());
+		}
+		return token;
+	}
+
+	/**
+	 * Method used to find a certificate on the CRL.
+	 *
+	 * @param serialNumber
+	 *            serial number of the certificate
+	 * @return revocation date and reason, null if certificate with given
+	 *         serial number was not revoked.
+	 */
+	public Revocation findRevocation(BigInteger serialNumber) {
+		byte[] serial = serialNumber.toByteArray();
+		if (serial.length > serialWidth || !bloomFilter.mightContain(serial)) {
+			bloomFilterNegatives.increment();
+			return null;
+		}
+		int index = search(pad(serial));
+		if (index < 0) {
+			bloomFilterFalsePositives.increment();
+			return null;
+		}
+		indexHits.increment();
+		Integer reason = reasons[index] != NO_REASON ? (int) reasons[index] : null;
+		return new Revocation(new Date(revocationDates[index]), reason);
+	}
+
+	/**
+	 * @return size of the encoded CRL, its index and bloom filter.
+	 */
+	public long getMemorySize() {
+		return encodedSize + indexSize + bloomFilterSize;
+	}
+
+	/**
+	 * @return number of lookups answered by the bloom filter.
+	 */
+	public long getBloomFilterNegatives() {
+		return bloomFilterNegatives.sum();
+	}
+
+	/**
+	 * @return number of lookups which passed the bloom filter but were not
+	 *         found in the index.
+	 */
+	public long getBloomFilterFalsePositives() {
+		return bloomFilterFalsePositives.sum();
+	}
+
+	/**
+	 * @return number of lookups which found a revoked certificate.
+	 */
+	public long getIndexHits() {
+		return indexHits.sum();
+	}
+
+	/**
+	 * @return number of certificates checked by DSS library with the whole CRL.
+	 */
+	public long getFullChecks() {
+		return fullChecks.sum();
+	}
+
+	/**
+	 * Method used to check if this version of the CRL can be used to check
+	 * certificates of the issuer.
+	 *
+	 * @param issuer
+	 *            issuer of the checked certificate
+	 * @param now
+	 *            current time
+	 * @return true if the CRL was checked for the issuer and it is not out of
+	 *         date.
+	 */
+	public boolean isUsableFor(CertificateToken issuer, long now) {
+		return issuerId.equals(issuer.getDSSIdAsString()) && (nextUpdate == null || now < nextUpdate.getTime());
+	}
+
+	/**
+	 * Method used to check if the CRL was checked from given data, without
+	 * comparing it. Cached CRLs are returned as the same array, so most
+	 * lookups don't need to hash the CRL.
+	 *
+	 * @param data
+	 *            downloaded CRL
+	 * @return true if this is the checked array.
+	 */
+	public boolean isCheckedFrom(byte[] data) {
+		return encoded == data;
+	}
+
+	private void index(Entry[] sorted) {
+		for (Entry entry : sorted) {
+			bloomFilter.put(entry.serial);
+			entry.serial = pad(entry.serial);
+		}
+		Arrays.sort(sorted, (first, second) -> compare(first.serial, second.serial));
+		for (int i = 0; i < sorted.length; i++) {
+			System.arraycopy(sorted[i].serial, 0, serials, i * serialWidth, serialWidth);
+			revocationDates[i] = sorted[i].revocationDate;
+			reasons[i] = sorted[i].reason;
+		}
+	}
+
+	private int search(byte[] serial) {
+		int low = 0;
+		int high = entries - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int comparison = compareAt(middle, serial);
+			if (comparison < 0)
+				low = middle + 1;
+			else if (comparison > 0)
+				high = middle - 1;
+			else
+				return middle;
+		}
+		return -1;
+	}
+
+	private int compareAt(int index, byte[] serial) {
+		int offset = index * serialWidth;
+		for (int i = 0; i < serialWidth; i++) {
+			int comparison = Integer.compare(serials[offset + i] & 0xff, serial[i] & 0xff);
+			if (comparison != 0)
+				return comparison;
+		}
+		return 0;
+	}
+
+	/**
+	 * Serial numbers are positive, so left padding with zeros makes unsigned
+	 * comparison of padded arrays the same as comparison of the numbers.
+	 */
+	private byte[] pad(byte[] serial) {
+		if (serial.length == serialWidth)
+			return serial;
+		byte[] padded = new byte[serialWidth];
+		System.arraycopy(serial, 0, padded, serialWidth - serial.length, serial.length);
+		return padded;
+	}
+
+	private static int compare(byte[] first, byte[] second) {
+		for (int i = 0; i < first.length; i++) {
+			int comparison = Integer.compare(first[i] & 0xff, second[i] & 0xff);
+			if (comparison != 0)
+				return comparison;
+		}
+		return 0;
+	}
+
+	private long measureBloomFilter() {
+		CountingOutputStream out = new CountingOutputStream(ByteStreams.nullOutputStream());
+		try {
+			bloomFilter.writeTo(out);
+		} catch (IOException e) {
+			logger.debug("Couldn't measure bloom filter: " + e);
+		}
+		return out.getCount();
+	}
+
+	/**
+	 * CRL entry kept only while the index is built.
+	 */
+	private static class Entry {
+		private byte[] serial;
+		private final long revocationDate;
+		private final byte reason;
+
+		Entry(X509CRLEntryHolder holder) {
+			this.serial = holder.getSerialNumber().toByteArray();
+			this.revocationDate = holder.getRevocationDate().getTime();
+			Extension reasonCode = holder.getExtension(Extension.reasonCode);
+			this.reason = reasonCode != null
+					? CRLReason.getInstance(reasonCode.getParsedValue()).getValue().byteValue() : NO_REASON;
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package io.cryptomage.eidas.revocation;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.google.common.hash.Hashing;
+
+import eu.europa.esig.dss.x509.CertificateToken;
+import io.cryptomage.eidas.metrics.MetricsSource;
+import io.cryptomage.eidas.utils.SingleFlight;
+
+/**
+ * Store of checked and indexed CRLs, shared by all requests.
+ *
+ * Every CRL url keeps its latest version. A CRL is checked and indexed when a
+ * new version of it is downloaded, concurrent lookups of a CRL which is being
+ * checked wait for it instead of checking it again. Memory used by each CRL
+ * (encoded CRL, index and bloom filter) is exposed in metrics endpoint.
+ */
+public class CrlStore implements MetricsSource {
+	private static final Logger logger = Logger.getLogger(CrlStore.class);
+
+	private final ConcurrentHashMap<String, CheckedCrl> crls = new ConcurrentHashMap<>();
+	private final SingleFlight<String, CheckedCrl> checking = new SingleFlight<>();
+	private final LongAdder lookups = new LongAdder();
+	private final LongAdder checked = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+
+	/**
+	 * Crl store constructor.
+	 */
+	public CrlStore() {
+		logger.info("Creating CRL store.");
+	}
+
+	/**
+	 * Method used to get checked CRL. The CRL is checked and indexed when it
+	 * wasn't checked yet, when the downloaded data is a new version of the CRL, or
+	 * when the checked version can't be used for the issuer.
+	 *
+	 * @param url
+	 *            url the CRL was downloaded from
+	 * @param data
+	 *            downloaded CRL
+	 * @param issuer
+	 *            issuer of the checked certificate
+	 * @return checked CRL
+	 * @throws IOException
+	 *             thrown if the CRL couldn't be parsed.
+	 */
+	public CheckedCrl get(String url, byte[] data, CertificateToken issuer) throws IOException {
+		lookups.increment();
+		long now = System.currentTimeMillis();
+		CheckedCrl crl = crls.get(url);
+		if (crl != null && crl.isCheckedFrom(data) && crl.isUsableFor(issuer, now))
+			return crl;
+
+		String versionId = Hashing.sha256().hashBytes(data).toString();
+		return checking.execute(url + ":" + versionId + ":" + issuer.getDSSIdAsString(), () -> {
+			CheckedCrl current = crls.get(url);
+			if (current != null && current.getVersionId().equals(versionId) && current.isUsableFor(issuer, now))
+				return current;
+			CheckedCrl checkedCrl = check(url, versionId, data, issuer);
+			crls.put(url, checkedCrl);
+			return checkedCrl;
+		});
+	}
+
+	@Override
+	public String getMetricsName() {
+		return "crlStore";
+	}
+
+	@Override
+	public JSONObject getMetrics() {
+		JSONObject json = new JSONObject();
+		JSONArray crlsJson = new JSONArray();
+		long memorySize = 0;
+		for (CheckedCrl crl : crls.values()) {
+			JSONObject crlJson = new JSONObject();
+			crlJson.put("url", crl.getUrl());
+			crlJson.put("entries", crl.getEntries());
+			crlJson.put("encodedSize", crl.getEncodedSize());
+			crlJson.put("indexSize", crl.getIndexSize());
+			crlJson.put("bloomFilterSize", crl.getBloomFilterSize());
+			crlJson.put("memorySize", crl.getMemorySize());
+			crlJson.put("signatureValid", crl.isSignatureValid());
+			crlJson.put("thisUpdate", crl.getThisUpdate());
+			crlJson.put("nextUpdate", crl.getNextUpdate());
+			crlJson.put("bloomFilterNegatives", crl.getBloomFilterNegatives());
+			crlJson.put("bloomFilterFalsePositives", crl.getBloomFilterFalsePositives());
+			crlJson.put("indexHits", crl.getIndexHits());
+			crlJson.put("fullChecks", crl.getFullChecks());
+			crlsJson.put(crlJson);
+			memorySize += crl.getMemorySize();
+		}
+		json.put("lookups", lookups.sum());
+		json.put("checked", checked.sum());
+		json.put("failed", failed.sum());
+		json.put("memorySize", memorySize);
+		json.put("crls", crlsJson);
+		return json;
+	}
+
+	private CheckedCrl check(String url, String versionId, byte[] data, CertificateToken issuer)
+			throws IOException {
+		try {
+			CheckedCrl crl = new CheckedCrl(url, versionId, data, issuer);
+			checked.increment();
+			return crl;
+		} catch (IOException | RuntimeException e) {
+			failed.increment();
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package io.cryptomage.eidas.revocation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+
+import io.cryptomage.eidas.metrics.MetricsSource;
+
+/**
+ * Cache of revocation data (CRLs and OCSP responses) downloaded by DSS
+ * library.
+ *
+ * Responses are kept until their nextUpdate, responses without nextUpdate
+ * are kept for a default time counted from their thisUpdate. Recently used
+ * responses are kept in memory, up to the given size. When a cache folder is
+ * set, responses are also written to disk, so they survive eviction from
+ * memory and application restarts. The cache is shared by all requests.
+ */
+public class RevocationCache implements MetricsSource {
+	private static final Logger logger = Logger.getLogger(RevocationCache.class);
+	private static final String FILE_EXTENSION = ".rev";
+
+	private final Cache<String, Entry> entries;
+	private final long defaultTtl;
+	private final File cacheFolder;
+
+	private final LongAdder memoryHits = new LongAdder();
+	private final LongAdder diskHits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder expired = new LongAdder();
+	private final LongAdder bytesSaved = new LongAdder();
+	private final LongAdder bytesDownloaded = new LongAdder();
+
+	/**
+	 * Revocation cache constructor.
+	 *
+	 * @param maxMemorySize
+	 *            maximum size (in bytes) of responses kept in memory
+	 * @param defaultTtl
+	 *            how long (in minutes) responses without nextUpdate are kept
+	 * @param cacheFolder
+	 *            folder used to store responses on disk, null if responses
+	 *            should be kept only in memory
+	 */
+	public RevocationCache(long maxMemorySize, long defaultTtl, File cacheFolder) {
+		logger.info("Creating revocation cache.");
+		// single segment, so a response can use the whole memory size instead
+		// of its segment's share
+		this.entries = CacheBuilder.newBuilder().concurrencyLevel(1).maximumWeight(maxMemorySize)
+				.weigher((String key, Entry entry) -> entry.data.length).recordStats().build();
+		this.defaultTtl = TimeUnit.MINUTES.toMillis(defaultTtl);
+		this.cacheFolder = cacheFolder;
+		if (cacheFolder != null && !cacheFolder.exists() && !cacheFolder.mkdirs()) {
+			logger.error("Couldn't create folder " + cacheFolder + " for revocation data");
+		}
+	}
+
+	/**
+	 * Method used to get cached response.
+	 *
+	 * @param key
+	 *            cache key
+	 * @return response or null if it is not cached or it is out of date.
+	 */
+	public byte[] get(String key) {
+		long now = System.currentTimeMillis();
+		Entry entry = entries.getIfPresent(key);
+		if (entry == null) {
+			entry = readEntry(key);
+			if (entry != null && entry.isValid(now)) {
+				diskHits.increment();
+				bytesSaved.add(entry.data.length);
+				entries.put(key, entry);
+				return entry.data;
+			}
+		} else if (entry.isValid(now)) {
+			memoryHits.increment();
+			bytesSaved.add(entry.data.length);
+			return entry.data;
+		}
+
+		if (entry != null) {
+			expired.increment();
+			entries.invalidate(key);
+			deleteEntry(key);
+		}
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * Method used to store downloaded response.
+	 *
+	 * @param key
+	 *            cache key
+	 * @param data
+	 *            response
+	 * @param thisUpdate
+	 *            time the response was issued, current time is used if null
+	 * @param nextUpdate
+	 *            time of the next update of the response, if null the
+	 *            response is kept for the default time
+	 */
+	public void put(String key, byte[] data, Date thisUpdate, Date nextUpdate) {
+		bytesDownloaded.add(data.length);
+		long now = System.currentTimeMillis();
+		long expiry = nextUpdate != null ? nextUpdate.getTime()
+				: (thisUpdate != null ? thisUpdate.getTime() : now) + defaultTtl;
+		if (expiry <= now) {
+			logger.debug("Revocation data " + key + " is already out of date, it won't be cached");
+			return;
+		}
+
+		Entry entry = new Entry(data, expiry);
+		entries.put(key, entry);
+		writeEntry(key, entry);
+	}
+
+	@Override
+	public String getMetricsName() {
+		return "revocationCache";
+	}
+
+	@Override
+	public JSONObject getMetrics() {
+		long hits = memoryHits.sum() + diskHits.sum();
+		long requests = hits + misses.sum();
+		JSONObject json = new JSONObject();
+		json.put("size", entries.size());
+		json.put("memoryHits", memoryHits.sum());
+		json.put("diskHits", diskHits.sum());
+		json.put("misses", misses.sum());
+		json.put("expired", expired.sum());
+		json.put("hitRate", requests == 0 ? 1.0 : (double) hits / requests);
+		json.put("bytesSaved", bytesSaved.sum());
+		json.put("bytesDownloaded", bytesDownloaded.sum());
+		json.put("evictions", entries.stats().evictionCount());
+		json.put("persistent", cacheFolder != null);
+		return json;
+	}
+
+	private Entry readEntry(String key) {
+		File file = getFile(key);
+		if (file == null || !file.isFile())
+			return null;
+
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file.toPath())))) {
+			if (!key.equals(in.readUTF()))
+				return null;
+			long expiry = in.readLong();
+			byte[] data = new byte[in.readInt()];
+			in.readFully(data);
+			return new Entry(data, expiry);
+		} catch (IOException e) {
+			logger.warn("Couldn't read revocation data from " + file + ": " + e);
+			return null;
+		}
+	}
+
+	private void writeEntry(String key, Entry entry) {
+		File file = getFile(key);
+		if (file == null)
+			return;
+
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(entry.data.length + key.length() + 16);
+			try (DataOutputStream out = new DataOutputStream(bytes)) {
+				out.writeUTF(key);
+				out.writeLong(entry.expiry);
+				out.writeInt(entry.data.length);
+				out.write(entry.data);
+			}
+			File tempFile = File.createTempFile("revocation", ".tmp", cacheFolder);
+			Files.write(tempFile.toPath(), bytes.toByteArray());
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.warn("Couldn't write revocation data to " + file + ": " + e);
+		}
+	}
+
+	private void deleteEntry(String key) {
+		File file = getFile(key);
+		if (file != null && file.exists() && !file.delete()) {
+			logger.warn("Couldn't delete out of date revocation data " + file);
+		}
+	}
+
+	private File getFile(String key) {
+		if (cacheFolder == null)
+			return null;
+		return new File(cacheFolder, Hashing.sha256().hashString(key, StandardCharsets.UTF_8) + FILE_EXTENSION);
+	}
+
+	/**
+	 * Cached response with time until which it can be used.
+	 */
+	private static class Entry {
+		private final byte[] data;
+		private final long expiry;
+
+		Entry(byte[] data, long expiry) {
+			this.data = data;
+			this.expiry = expiry;
+		}
+
+		boolean isValid(long now) {
+			return now < expiry;
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package io.cryptomage.eidas.revocation;
+
+import java.io.IOException;
+import java.util.Date;
+
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+import eu.europa.esig.dss.DSSException;
+import io.cryptomage.eidas.metrics.MetricsSource;
+import io.cryptomage.eidas.utils.SingleFlight;
+
+/**
+ * Class through which revocation data loaders download CRLs and OCSP
+ * responses.
+ *
+ * Data is taken from revocation cache when it is set. Concurrent downloads
+ * of the same data (the same CRL url, or the same OCSP request sent to the
+ * same responder) can be coalesced, so when a popular CRL expires it is
+ * downloaded once and shared by all waiting validations instead of being
+ * downloaded by each of them.
+ */
+public class RevocationFetcher implements MetricsSource {
+	private static final Logger logger = Logger.getLogger(RevocationFetcher.class);
+
+	private final RevocationCache cache;
+	private final SingleFlight<String, byte[]> inFlightFetches;
+
+	/**
+	 * Download of revocation data, executed when it is not cached.
+	 */
+	@FunctionalInterface
+	public interface Download {
+		/**
+		 * @return downloaded data, null or empty if it couldn't be
+		 *         downloaded.
+		 */
+		byte[] execute();
+	}
+
+	/**
+	 * Revocation fetcher constructor.
+	 *
+	 * @param cache
+	 *            revocation cache, null if data shouldn't be cached
+	 * @param coalesceFetches
+	 *            if concurrent downloads of the same data should be coalesced
+	 */
+	public RevocationFetcher(RevocationCache cache, boolean coalesceFetches) {
+		logger.info("Creating revocation fetcher.");
+		this.cache = cache;
+		this.inFlightFetches = coalesceFetches ? new SingleFlight<>() : null;
+	}
+
+	/**
+	 * Method used to get revocation data from cache, or download it.
+	 *
+	 * @param key
+	 *            key of the data, e.g. CRL url
+	 * @param download
+	 *            download of the data, it should store the data with
+	 *            {@link #store(String, byte[], Date, Date)}
+	 * @return revocation data
+	 */
+	public byte[] fetch(String key, Download download) {
+		byte[] data = getCached(key);
+		if (data != null)
+			return data;
+		if (inFlightFetches == null)
+			return download.execute();
+
+		try {
+			return inFlightFetches.execute(key, () -> {
+				// the same download could finish just before this one started
+				byte[] stored = getCached(key);
+				return stored != null ? stored : download.execute();
+			});
+		} catch (IOException e) {
+			throw new DSSException("Couldn't get revocation data " + key, e);
+		}
+	}
+
+	/**
+	 * Method used to store downloaded data, see
+	 * {@link RevocationCache#put(String, byte[], Date, Date)}.
+	 *
+	 * @param key
+	 *            key of the data
+	 * @param data
+	 *            downloaded data
+	 * @param thisUpdate
+	 *            time the data was issued
+	 * @param nextUpdate
+	 *            time of the next update of the data
+	 */
+	public void store(String key, byte[] data, Date thisUpdate, Date nextUpdate) {
+		if (cache != null)
+			cache.put(key, data, thisUpdate, nextUpdate);
+	}
+
+	/**
+	 * @return true if downloaded data is cached, so it should be stored.
+	 */
+	public boolean isCaching() {
+		return cache != null;
+	}
+
+	@Override
+	public String getMetricsName() {
+		return "revocationFetches";
+	}
+
+	@Override
+	public JSONObject getMetrics() {
+		JSONObject json = new JSONObject();
+		json.put("coalescingEnabled", inFlightFetches != null);
+		if (inFlightFetches != null) {
+			json.put("fetched", inFlightFetches.getExecutedCount());
+			json.put("coalesced", inFlightFetches.getCoalescedCount());
+			json.put("inFlight", inFlightFetches.getInFlightCount());
+		}
+		return json;
+	}
+
+	private byte[] getCached(String key) {
+		return cache != null ? cache.get(key) : null;
+	}
+}
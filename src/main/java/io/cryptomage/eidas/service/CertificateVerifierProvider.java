@@ -8,12 +8,17 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
+import org.json.JSONObject;
 import org.springframework.scheduling.annotation.Scheduled;
 
 import eu.europa.esig.dss.client.crl.OnlineCRLSource;
+import eu.europa.esig.dss.client.http.DataLoader;
 import eu.europa.esig.dss.client.http.commons.CommonsDataLoader;
 import eu.europa.esig.dss.client.http.commons.FileCacheDataLoader;
 import eu.europa.esig.dss.client.ocsp.OnlineOCSPSource;
@@ -24,6 +29,14 @@ import eu.europa.esig.dss.tsl.service.TSLValidationJob;
 import eu.europa.esig.dss.validation.CommonCertificateVerifier;
 import eu.europa.esig.dss.x509.CertificateToken;
 import eu.europa.esig.dss.x509.KeyStoreCertificateSource;
+import eu.europa.esig.dss.x509.crl.CRLSource;
+import eu.europa.esig.dss.x509.ocsp.OCSPSource;
+import io.cryptomage.eidas.metrics.MetricsSource;
+import io.cryptomage.eidas.revocation.CachingCRLDataLoader;
+import io.cryptomage.eidas.revocation.CachingOCSPDataLoader;
+import io.cryptomage.eidas.revocation.CheckedCRLSource;
+import io.cryptomage.eidas.revocation.CrlStore;
+import io.cryptomage.eidas.revocation.RevocationFetcher;
 import io.cryptomage.eidas.utils.CommonUtils;
 import lombok.Getter;
 import lombok.Setter;
@@ -35,16 +48,33 @@ import lombok.Setter;
  * online certificate revocation status sources (CRL, OCSP), after that it sets
  * up trusted lists certificate sources.
  * 
+ * Trusted lists state is kept in a snapshot, which is never modified. Every
+ * refresh loads trusted lists into a new certificate source and publishes a
+ * new snapshot with a single atomic swap, so validations running during the
+ * refresh finish with the snapshot they started with. Revocation sources are
+ * shared by all snapshots.
+ * 
+ * Loaded trusted lists are stored in a snapshot file in temp dir. When the
+ * file exists at startup, trusted lists are read from it and the application
+ * starts without waiting for trusted lists, they are refreshed in background.
+ * 
  * Service is used to provide certificate verifier for other services.
  * 
  * @author Dariusz Napłoszek
  */
-public class CertificateVerifierProvider {
+public class CertificateVerifierProvider implements MetricsSource {
 	private static final Logger logger = Logger.getLogger(CertificateVerifierProvider.class);
+	private static final String SNAPSHOT_FILE = "trusted-lists.snapshot";
 
-	@Getter
-	private CommonCertificateVerifier verifier;
+	private final AtomicReference<TrustedListSnapshot> snapshot = new AtomicReference<>();
+	private final AtomicLong trustedListGeneration = new AtomicLong();
+	private final LongAdder failedRefreshes = new LongAdder();
+	private volatile long lastLoadTime;
+	private volatile boolean restoredFromFile;
 	private TSLValidationJob job;
+	private DataLoader verifierDataLoader;
+	private CRLSource crlSource;
+	private OCSPSource ocspSource;
 
 	@Setter
 	private File ojKeystore;
@@ -58,6 +88,39 @@ public class CertificateVerifierProvider {
 	private String lotlCode;
 	@Setter 
 	private List<File> trustedCertificates;
+	/**
+	 * Fetcher caching and coalescing downloads of CRLs and OCSP responses,
+	 * revocation data is downloaded for every validation when it is not set.
+	 */
+	@Setter
+	private RevocationFetcher revocationFetcher;
+	/**
+	 * Store of checked and indexed CRLs, CRLs are parsed by DSS library for every check
+	 * when it is not set.
+	 */
+	@Setter
+	private CrlStore crlStore;
+	/**
+	 * Store loaded trusted lists in temp dir and start with them.
+	 */
+	@Setter
+	private boolean persistSnapshot;
+	private TrustedListSnapshotFile snapshotFile;
+
+	/**
+	 * Immutable trusted lists state with the verifier using it.
+	 */
+	@Getter
+	public static class TrustedListSnapshot {
+		private final CommonCertificateVerifier verifier;
+		private final long generation;
+		private final long created = System.currentTimeMillis();
+
+		TrustedListSnapshot(CommonCertificateVerifier verifier, long generation) {
+			this.verifier = verifier;
+			this.generation = generation;
+		}
+	}
 	
 	/**
 	 * This constructor initializes the service by downloading and storing
@@ -77,30 +140,165 @@ public class CertificateVerifierProvider {
 	}
 
 	/**
-	 * Method used to setup certificate verifier provider. 
+	 * Method used to setup certificate verifier provider. When trusted lists
+	 * snapshot file is read, trusted lists are refreshed in background,
+	 * otherwise they are loaded before the method returns.
 	 */
-	public void setupCerts() {
-		verifier = new CommonCertificateVerifier();
+	public synchronized void setupCerts() {
 		job = new TSLValidationJob();
 		
 		setupCache();
 		setupSources();
 		job.setLotlUrl(lotlUrl);
 		job.setLotlCode(lotlCode);
-	/*	job.refresh();*/
-		job.initRepository();
-		
-		
+		if (persistSnapshot) {
+			snapshotFile = new TrustedListSnapshotFile(new File(tempDir, SNAPSHOT_FILE));
+			if (restoreSnapshot()) {
+				startBackgroundRefresh();
+				return;
+			}
+		}
+		publish(loadSnapshot(false));
 	}
 
 	/**
 	 * Scheduled task for refreshing certificates. By default it is invoked once
-	 * every day. Scheduler configuration is stored in properties file.
+	 * every day. Scheduler configuration is stored in properties file. Current
+	 * snapshot is used until the refresh is done, it is kept if the refresh
+	 * fails.
 	 */
 	@Scheduled(cron = "${eidas.scheduler.cron}")
-	public void refreshCerts() {
+	public synchronized void refreshCerts() {
 		logger.info("Running certificate refresh utility");
-		job.refresh();
+		try {
+			publish(loadSnapshot(true));
+		} catch (RuntimeException e) {
+			failedRefreshes.increment();
+			logger.error("Trusted lists refresh failed, keeping trusted lists generation "
+					+ getTrustedListGeneration() + ": " + e);
+		}
+	}
+
+	/**
+	 * Method used to get verifier of the current trusted lists snapshot.
+	 * Validation of a request should get it once, so all its files are
+	 * validated with the same trusted lists.
+	 * 
+	 * @return certificate verifier
+	 */
+	public CommonCertificateVerifier getVerifier() {
+		return snapshot.get().getVerifier();
+	}
+
+	/**
+	 * Method used to get current trusted lists snapshot.
+	 * 
+	 * @return trusted lists snapshot
+	 */
+	public TrustedListSnapshot getSnapshot() {
+		return snapshot.get();
+	}
+
+	/**
+	 * Method used to get trusted lists generation. It changes every time
+	 * trusted lists are loaded or refreshed, so it can be used to invalidate
+	 * results obtained with older trusted lists.
+	 * 
+	 * @return trusted lists generation
+	 */
+	public long getTrustedListGeneration() {
+		TrustedListSnapshot current = snapshot.get();
+		return current != null ? current.getGeneration() : 0;
+	}
+
+	@Override
+	public String getMetricsName() {
+		return "trustedLists";
+	}
+
+	@Override
+	public JSONObject getMetrics() {
+		TrustedListSnapshot current = snapshot.get();
+		JSONObject json = new JSONObject();
+		json.put("generation", getTrustedListGeneration());
+		if (current != null)
+			json.put("snapshotAgeMs", System.currentTimeMillis() - current.getCreated());
+		json.put("lastLoadTimeMs", lastLoadTime);
+		json.put("failedRefreshes", failedRefreshes.sum());
+		json.put("restoredFromFile", restoredFromFile);
+		return json;
+	}
+
+	/**
+	 * Loads trusted lists into a new certificate source, the current snapshot
+	 * is not touched. Trusted lists stored by the previous load are read
+	 * first, so refresh downloads only the changed ones.
+	 */
+	private TrustedListSnapshot loadSnapshot(boolean refresh) {
+		long start = System.currentTimeMillis();
+		TrustedListsCertificateSource certificateSource = new TrustedListsCertificateSource();
+		addCertificateToSource(certificateSource);
+		setupTSLRepository(certificateSource);
+		job.initRepository();
+		if (refresh)
+			job.refresh();
+		lastLoadTime = System.currentTimeMillis() - start;
+		restoredFromFile = false;
+		storeSnapshot(certificateSource);
+		return createSnapshot(certificateSource);
+	}
+
+	private TrustedListSnapshot createSnapshot(TrustedListsCertificateSource certificateSource) {
+		CommonCertificateVerifier verifier = new CommonCertificateVerifier();
+		verifier.setDataLoader(verifierDataLoader);
+		verifier.setCrlSource(crlSource);
+		verifier.setOcspSource(ocspSource);
+		verifier.setTrustedCertSource(certificateSource);
+		return new TrustedListSnapshot(verifier, trustedListGeneration.incrementAndGet());
+	}
+
+	private void publish(TrustedListSnapshot loaded) {
+		snapshot.set(loaded);
+		logger.info("Published trusted lists generation " + loaded.getGeneration() + ", loaded in "
+				+ lastLoadTime + " ms");
+	}
+
+	/**
+	 * Publishes trusted lists read from the snapshot file, they are used until
+	 * the first load of trusted lists is done.
+	 */
+	private boolean restoreSnapshot() {
+		long start = System.currentTimeMillis();
+		try {
+			TrustedListsCertificateSource certificateSource = snapshotFile.read();
+			if (certificateSource == null) {
+				logger.info("There is no stored trusted lists snapshot, loading trusted lists");
+				return false;
+			}
+			lastLoadTime = System.currentTimeMillis() - start;
+			restoredFromFile = true;
+			publish(createSnapshot(certificateSource));
+			return true;
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Couldn't read stored trusted lists snapshot, loading trusted lists: " + e);
+			return false;
+		}
+	}
+
+	private void storeSnapshot(TrustedListsCertificateSource certificateSource) {
+		if (snapshotFile == null)
+			return;
+		try {
+			snapshotFile.write(certificateSource);
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Couldn't store trusted lists snapshot: " + e);
+		}
+	}
+
+	private void startBackgroundRefresh() {
+		Thread refresh = new Thread(this::refreshCerts, "trusted-lists-refresh");
+		refresh.setDaemon(true);
+		refresh.start();
 	}
 
 	private void setupCache() {
@@ -112,15 +310,14 @@ public class CertificateVerifierProvider {
 
 		FileCacheDataLoader fileCacheDataLoader = new FileCacheDataLoader();
 		fileCacheDataLoader.setFileCacheDirectory(cacheFolder);
-		verifier.setDataLoader(fileCacheDataLoader);
+		verifierDataLoader = fileCacheDataLoader;
 	}
 
 	private void setupSources() {
 		logger.info("Setting up certificate sources");
 
 		setupDataLoader();
-		TrustedListsCertificateSource certificateSource = setupCertificateSources();
-		setupTSLRepository(certificateSource);
+		setupOjKeystore();
 	}
 
 	private void setupTSLRepository(TrustedListsCertificateSource certificateSource) {
@@ -135,7 +332,7 @@ public class CertificateVerifierProvider {
 		job.setDataLoader(commonsDataLoader);
 	}
 
-	private TrustedListsCertificateSource setupCertificateSources() {
+	private void setupOjKeystore() {
 		try {
 			
 			KeyStoreCertificateSource keyStoreCertificateSource = obtainKeyStoreCertifficateSource();
@@ -145,12 +342,6 @@ public class CertificateVerifierProvider {
 			
 			e.printStackTrace();
 		}
-		
-
-		TrustedListsCertificateSource certificateSource = new TrustedListsCertificateSource();
-		addCertificateToSource(certificateSource);
-		verifier.setTrustedCertSource(certificateSource);
-		return certificateSource;
 	}
 	
 	private KeyStoreCertificateSource obtainKeyStoreCertifficateSource() throws IOException {
@@ -187,11 +378,21 @@ public class CertificateVerifierProvider {
 	}
 	
 	private void setupRevocationSources(CommonsDataLoader commonsDataLoader) {
-		OnlineCRLSource crlSource = new OnlineCRLSource(commonsDataLoader);
-		verifier.setCrlSource(crlSource);
+		CommonsDataLoader crlDataLoader = commonsDataLoader;
+		OnlineOCSPSource onlineOcspSource = new OnlineOCSPSource();
+		if (revocationFetcher != null) {
+			logger.info("Setting up cached revocation sources");
+			crlDataLoader = new CachingCRLDataLoader(revocationFetcher);
+			onlineOcspSource.setDataLoader(new CachingOCSPDataLoader(revocationFetcher));
+		}
+		ocspSource = onlineOcspSource;
 
-		OnlineOCSPSource ocspSource = new OnlineOCSPSource();
-		verifier.setOcspSource(ocspSource);
+		if (crlStore != null) {
+			logger.info("Setting up indexed CRL source");
+			crlSource = new CheckedCRLSource(crlDataLoader, crlStore);
+		} else {
+			crlSource = new OnlineCRLSource(crlDataLoader);
+		}
 	}
 	
 	
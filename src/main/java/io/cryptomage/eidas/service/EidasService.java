@@ -2,23 +2,50 @@ package io.cryptomage.eidas.service;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
-import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
 import org.apache.log4j.Logger;
 import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.springframework.web.multipart.MultipartFile;
 
+import eu.europa.esig.dss.DSSDocument;
+import eu.europa.esig.dss.DSSException;
+import eu.europa.esig.dss.DigestAlgorithm;
+import eu.europa.esig.dss.DigestDocument;
+import io.cryptomage.eidas.metrics.MetricsSource;
+import io.cryptomage.eidas.service.FileValidator.FileReportConsumer;
 import io.cryptomage.eidas.utils.FileUtilities;
+import io.cryptomage.eidas.utils.SingleFlight;
+import io.cryptomage.eidas.utils.StreamedFile;
+import io.cryptomage.eidas.workspace.Artifact;
+import io.cryptomage.eidas.workspace.ExtractionBudget;
+import io.cryptomage.eidas.workspace.Workspace;
 import lombok.Setter;
 
 /**
  * Main service used to pass requests from controller to appropriate services.
  * 
+ * Concurrent requests with the same file and policy can be coalesced, so the
+ * file is validated only once. Requests are coalesced only if they are
+ * validated with the same trusted lists and don't bypass the cache.
+ * 
  * @author Łukasz Godziejewski and Dariusz Napłoszek
  */
-public class EidasService {
+public class EidasService implements MetricsSource {
 	private static final Logger logger = Logger.getLogger(EidasService.class);
+	private static final String POLICY_DIR = "policy";
+	private static final String DEFAULT_POLICY_HASH = "default";
+	private static final String DIGEST_NAME = "name";
+	private static final String DIGEST_ALGORITHM = "digestAlgorithm";
+	private static final String DIGEST_VALUE = "digestValue";
 
 	@Setter
 	private FileExtractor fileExtractor;
@@ -32,6 +59,35 @@ public class EidasService {
 	@Setter
 	private String localValidationPolicyPath;
 
+	@Setter
+	private long maxUploadSize;
+
+	@Setter
+	private long maxInMemoryFileSize;
+
+	@Setter
+	private long maxInMemoryRequestSize;
+
+	@Setter
+	private int maxZipEntries;
+
+	@Setter
+	private long maxZipInflatedSize;
+
+	@Setter
+	private int maxZipCompressionRatio;
+
+	@Setter
+	private boolean lazyZipExtraction;
+
+	@Setter
+	private ValidationResultCache validationResultCache;
+
+	@Setter
+	private CertificateVerifierProvider verifierProvider;
+
+	private volatile SingleFlight<String, String> inFlightValidations;
+
 	/**
 	 * eIDAS service constructor.
 	 * 
@@ -49,8 +105,8 @@ public class EidasService {
 	/**
 	 * Method for validating any file.
 	 * 
-	 * The obtained file is stored in an unique directory and then checked for
-	 * attachments. Any attachments are also stored in the directory and the
+	 * The obtained file is stored in request workspace and then checked for
+	 * attachments. Any attachments are also stored in the workspace and the
 	 * procedure is repeated for attached files. Then all files are validated
 	 * and the results are stored in a JSON array. The result should be an array
 	 * of file names/paths and their signature status.
@@ -64,32 +120,276 @@ public class EidasService {
 	 *             thrown if file is not readable.
 	 */
 	public String validate(MultipartFile validationFile, MultipartFile policy) throws IOException {
+		return validate(createRequest(validationFile, policy), false);
+	}
+
+	/**
+	 * Method for validating any file, described in
+	 * {@link #validate(MultipartFile, MultipartFile)}.
+	 * 
+	 * @param validationFile
+	 *            File sent by the API consumer.
+	 * @param policy
+	 *            Validation policy file.
+	 * @param bypassCache
+	 *            if cached report should be ignored
+	 * @return Signature validation result as a string.
+	 * @throws IOException
+	 *             thrown if file is not readable.
+	 */
+	public String validate(MultipartFile validationFile, MultipartFile policy, boolean bypassCache)
+			throws IOException {
+		return validate(createRequest(validationFile, policy), bypassCache);
+	}
+
+	/**
+	 * Method used to store request files in a workspace, so the validation can
+	 * be done later. Small files are kept in memory, bigger ones are stored in
+	 * an unique directory.
+	 * 
+	 * @param validationFile
+	 *            File sent by the API consumer.
+	 * @param policy
+	 *            Validation policy file.
+	 * @return Stored validation request.
+	 * @throws IOException
+	 *             thrown if file is not readable.
+	 */
+	public ValidationRequest createRequest(MultipartFile validationFile, MultipartFile policy) throws IOException {
 		logger.info("Got file validation request, process started.");
 		if (validationFile == null || validationFile.isEmpty())
 			throw new IOException();
 
-		File dir = FileUtilities.createUniqueDir(tempDir);
-		File topFile = FileUtilities.createFileFromMultipartFile(dir.getAbsolutePath() + "/", validationFile);
-		List<File> files = fileExtractor.listAllFiles(topFile);
-		File policyFile = getPolicyFile(policy, dir);
-		JSONArray reportJsArray = fileValidator.validateFiles(dir.getAbsolutePath(), files, policyFile);
-		FileUtils.deleteDirectory(dir);
+		Workspace workspace = new Workspace(tempDir, maxInMemoryFileSize, maxInMemoryRequestSize,
+				new ExtractionBudget(maxZipEntries, maxZipInflatedSize, maxZipCompressionRatio));
+		workspace.setLazyZipExtraction(lazyZipExtraction);
+		try {
+			Artifact upload;
+			try (InputStream is = validationFile.getInputStream()) {
+				upload = workspace.write(FilenameUtils.getName(validationFile.getOriginalFilename()), is,
+						maxUploadSize);
+			}
+			logger.info("Stored " + upload.getSize() + " bytes, sha256: " + upload.getSha256());
+			StreamedFile policyUpload = storePolicyFile(policy, workspace);
+			if (policyUpload == null)
+				return new ValidationRequest(workspace, upload, new File(localValidationPolicyPath),
+						DEFAULT_POLICY_HASH);
+			return new ValidationRequest(workspace, upload, policyUpload.getFile(), policyUpload.getSha256());
+		} catch (IOException e) {
+			workspace.close();
+			throw e;
+		}
+	}
 
+	/**
+	 * Method for validating stored request. The procedure is described in
+	 * {@link #validate(MultipartFile, MultipartFile)}. If the same file was
+	 * already validated with the same policy and trusted lists, cached report
+	 * is returned. If it is being validated by another request, its report is
+	 * awaited. Request workspace is removed afterwards.
+	 * 
+	 * @param request
+	 *            Stored validation request.
+	 * @param bypassCache
+	 *            if cached report should be ignored
+	 * @return Signature validation result as a string.
+	 * @throws IOException
+	 *             thrown if file is not readable.
+	 */
+	public String validate(ValidationRequest request, boolean bypassCache) throws IOException {
+		String cacheKey = null;
+		String report;
+		try {
+			if (validationResultCache != null) {
+				cacheKey = validationResultCache.getKey(request);
+				report = bypassCache ? null : validationResultCache.get(cacheKey);
+				if (report != null) {
+					logger.info("Found cached report. Sending report.");
+					return report;
+				}
+			}
+
+			SingleFlight<String, String> flights = inFlightValidations;
+			if (flights != null && !bypassCache) {
+				String flightKey = request.getUpload().getSha256() + ":" + request.getPolicyHash() + ":"
+						+ verifierProvider.getTrustedListGeneration();
+				report = flights.execute(flightKey, () -> validateFiles(request));
+			} else {
+				report = validateFiles(request);
+			}
+		} finally {
+			request.getWorkspace().close();
+		}
+
+		if (cacheKey != null)
+			validationResultCache.put(cacheKey, report);
 		logger.info("Validation done. Sending report.");
-		return reportJsArray.toString();
+		return report;
+	}
+
+	/**
+	 * Method for validating stored request, which passes report of every file
+	 * to the consumer as soon as the file is validated. If there is a cached
+	 * report for the request, its file reports are passed instead. Streamed
+	 * reports are not cached, as the whole report is never built. Request
+	 * workspace is removed afterwards.
+	 * 
+	 * @param request
+	 *            Stored validation request.
+	 * @param bypassCache
+	 *            if cached report should be ignored
+	 * @param consumer
+	 *            Receiver of file reports
+	 * @throws IOException
+	 *             thrown if file is not readable.
+	 */
+	public void validate(ValidationRequest request, boolean bypassCache, FileReportConsumer consumer)
+			throws IOException {
+		Workspace workspace = request.getWorkspace();
+		try {
+			if (validationResultCache != null && !bypassCache) {
+				String report = validationResultCache.get(validationResultCache.getKey(request));
+				if (report != null) {
+					logger.info("Found cached report. Streaming report.");
+					JSONArray reportJsArray = new JSONArray(report);
+					for (int i = 0; i < reportJsArray.length(); i++) {
+						consumer.accept(reportJsArray.getJSONObject(i));
+					}
+					return;
+				}
+			}
+
+			List<Artifact> files = fileExtractor.listAllFiles(request.getUpload(), workspace);
+			fileValidator.validateFiles(workspace, files, request.getPolicyFile(), consumer);
+		} finally {
+			workspace.close();
+		}
+		logger.info("Validation done. Report streamed.");
+	}
+
+	/**
+	 * Method for validating a signature with detached contents given by their
+	 * digests, so the contents don't have to be uploaded. The signature file
+	 * is extracted and validated as in
+	 * {@link #validate(MultipartFile, MultipartFile)}, every digest entry is
+	 * added to detached contents of each signature. Reports are neither
+	 * cached nor coalesced, as they depend on the digests.
+	 * 
+	 * @param validationFile
+	 *            Signature file sent by the API consumer.
+	 * @param policy
+	 *            Validation policy file.
+	 * @param detachedDigests
+	 *            JSON array of detached contents, every entry has name,
+	 *            digestAlgorithm (e.g. SHA256) and base64 encoded digestValue
+	 *            fields.
+	 * @return Signature validation result as a string.
+	 * @throws IOException
+	 *             thrown if file is not readable or digests are not valid.
+	 */
+	public String validateWithDigests(MultipartFile validationFile, MultipartFile policy, String detachedDigests)
+			throws IOException {
+		List<DSSDocument> digestDocuments = createDigestDocuments(detachedDigests);
+		ValidationRequest request = createRequest(validationFile, policy);
+		Workspace workspace = request.getWorkspace();
+		try {
+			List<Artifact> files = fileExtractor.listAllFiles(request.getUpload(), workspace);
+			String report = fileValidator.validateFiles(workspace, files, request.getPolicyFile(), digestDocuments)
+					.toString();
+			logger.info("Validation with " + digestDocuments.size() + " detached digests done. Sending report.");
+			return report;
+		} finally {
+			workspace.close();
+		}
+	}
+
+	/**
+	 * Method used to enable coalescing of concurrent validations of the same
+	 * file with the same policy. Only the first request is validated, the
+	 * others wait for it and get the same report.
+	 * 
+	 * @param coalesceRequests
+	 *            if concurrent validations should be coalesced
+	 */
+	public void setCoalesceRequests(boolean coalesceRequests) {
+		inFlightValidations = coalesceRequests ? new SingleFlight<>() : null;
+	}
+
+	@Override
+	public String getMetricsName() {
+		return "validationCoalescing";
+	}
+
+	@Override
+	public JSONObject getMetrics() {
+		JSONObject json = new JSONObject();
+		SingleFlight<String, String> flights = inFlightValidations;
+		json.put("enabled", flights != null);
+		if (flights != null) {
+			json.put("validated", flights.getExecutedCount());
+			json.put("coalesced", flights.getCoalescedCount());
+			json.put("inFlight", flights.getInFlightCount());
+		}
+		return json;
+	}
+
+	private String validateFiles(ValidationRequest request) throws IOException {
+		Workspace workspace = request.getWorkspace();
+		List<Artifact> files = fileExtractor.listAllFiles(request.getUpload(), workspace);
+		return fileValidator.validateFiles(workspace, files, request.getPolicyFile()).toString();
+	}
+
+	private List<DSSDocument> createDigestDocuments(String detachedDigests) throws IOException {
+		if (detachedDigests == null || detachedDigests.trim().isEmpty())
+			throw new IOException("No detached digests given");
+
+		Map<String, DigestDocument> documents = new LinkedHashMap<>();
+		try {
+			JSONArray entries = new JSONArray(detachedDigests);
+			for (int i = 0; i < entries.length(); i++) {
+				JSONObject entry = entries.getJSONObject(i);
+				String name = entry.getString(DIGEST_NAME);
+				DigestAlgorithm algorithm = getDigestAlgorithm(entry.getString(DIGEST_ALGORITHM));
+				String value = entry.getString(DIGEST_VALUE);
+				Base64.getDecoder().decode(value);
+
+				DigestDocument document = documents.get(name);
+				if (document == null) {
+					document = new DigestDocument(algorithm, value);
+					document.setName(name);
+					documents.put(name, document);
+				} else {
+					document.addDigest(algorithm, value);
+				}
+			}
+		} catch (JSONException | IllegalArgumentException | DSSException e) {
+			throw new IOException("Invalid detached digests: " + e.getMessage(), e);
+		}
+		return new ArrayList<>(documents.values());
+	}
+
+	private static DigestAlgorithm getDigestAlgorithm(String name) {
+		DigestAlgorithm algorithm = DigestAlgorithm.forName(name, null);
+		if (algorithm == null)
+			algorithm = DigestAlgorithm.forJavaName(name);
+		return algorithm;
 	}
 
-	private File getPolicyFile(MultipartFile policy, File dir) throws IOException {
+	private StreamedFile storePolicyFile(MultipartFile policy, Workspace workspace) throws IOException {
 		if (policy == null || policy.isEmpty()) {
-			return new File(localValidationPolicyPath);
+			return null;
 		}
 
-		File policyFile = FileUtilities.createFileFromMultipartFile(dir.getAbsolutePath() + "/", policy);
-		if (FileUtilities.checkIfXmlIsValid(policyFile)) {
-			return policyFile;
+		File policyDir = new File(workspace.getDir(), POLICY_DIR);
+		if (!policyDir.mkdirs())
+			throw new IOException("Couldn't create policy folder");
+		StreamedFile policyUpload = FileUtilities.streamMultipartFile(policyDir.getAbsolutePath() + "/", policy,
+				maxUploadSize);
+		if (FileUtilities.checkIfXmlIsValid(policyUpload.getFile())) {
+			return policyUpload;
 		}
 
-		return new File(localValidationPolicyPath);
+		return null;
 	}
 
 }
@@ -1,35 +1,77 @@
 package io.cryptomage.eidas.service;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
 import io.cryptomage.eidas.parser.EidasParser;
 import io.cryptomage.eidas.utils.FileParserFactory;
+import io.cryptomage.eidas.utils.FileTypeDetector;
+import io.cryptomage.eidas.workspace.Artifact;
+import io.cryptomage.eidas.workspace.ExtractionLimitExceededException;
+import io.cryptomage.eidas.workspace.Workspace;
 import lombok.Setter;
 
 /**
  * Class handling file extraction logic.
- * 
+ *
  * It uses fileParserFactory to get the file type and then gets and saves any
  * attached files. This procedure is repeated recurrently until all files are
  * checked, or a threshold is reached. Threshold value is set in properties
  * file.
- * 
+ *
+ * When extraction pool is set, attached files are extracted in parallel as
+ * fork/join tasks, and the files list keeps the order of sequential
+ * extraction. When extraction fails, the failure is passed on only after all
+ * started tasks are finished, so no task writes to the workspace after it is
+ * closed.
+ *
+ * Packages (zip and xml files) with the same contents are parsed only once.
+ * Attachments of a repeated package are added as aliases of the first
+ * package's attachments, at the path of the repeated package.
+ *
  * @author Dariusz Napłoszek
  */
 public class FileExtractor {
 	private static final Logger logger = Logger.getLogger(FileExtractor.class);
+	/**
+	 * Types of files which attachments depend only on their contents, so they
+	 * are shared by files with the same contents.
+	 */
+	private static final Set<String> PACKAGE_TYPES = new HashSet<>(
+			Arrays.asList(FileTypeDetector.ZIP, FileTypeDetector.XML));
 
 	@Setter
 	private int maxReccurenceNesting;
 
+	/**
+	 * Maximum number of files of a single request, including uploaded file.
+	 * Request with more files fails, 0 or less disables the limit.
+	 */
+	@Setter
+	private int maxExtractedFiles;
+
+	/**
+	 * Pool used to extract attached files in parallel, files are extracted in
+	 * the calling thread when it is not set.
+	 */
+	@Setter
+	private ForkJoinPool extractionPool;
+
 	/**
 	 * File extractor constructor
-	 * 
+	 *
 	 * @param maxReccurenceNesting
 	 *            is a threshold for file extraction
 	 */
@@ -39,36 +81,166 @@ public class FileExtractor {
 
 	/**
 	 * Method used to initiate file extraction.
-	 * 
+	 *
 	 * @param topFile
 	 *            First file checked for its attachments.
+	 * @param workspace
+	 *            Workspace holding files of the request, attached files are
+	 *            added to it.
 	 * @return List of all attached files of every file in the chain.
 	 * @throws IOException
 	 */
-	public List<File> listAllFiles(File topFile) throws IOException {
+	public List<Artifact> listAllFiles(Artifact topFile, Workspace workspace) throws IOException {
 		logger.info("Files extraction starts.");
-		List<File> files = new ArrayList<>();
+		ExtractionTask task = new ExtractionTask(topFile, new Extraction(workspace));
+		task.extraction.countFiles(1, topFile);
+		List<Artifact> nestedFiles;
+		try {
+			nestedFiles = extractionPool != null ? extractionPool.invoke(task) : task.compute();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+
+		List<Artifact> files = new ArrayList<>();
 		files.add(topFile);
-		List<File> nestedFiles = extractFileAttachments(topFile, topFile.getParent(), 0);
 		if (!nestedFiles.isEmpty())
 			files.addAll(nestedFiles);
 		return files;
 	}
 
-	private List<File> extractFileAttachments(File file, String filesUniqueDir, int fileNesting) throws IOException {
+	private List<Artifact> extractFileAttachments(Artifact file, Extraction extraction) throws IOException {
 		logger.info("File " + file.getName() + " extraction starts");
-		EidasParser parser = FileParserFactory.getParserInstance(file, filesUniqueDir);
-		List<File> files = new ArrayList<>();
-		List<File> attachedFiles = parser.getAttachedFiles();
-		if (!attachedFiles.isEmpty())
-			files.addAll(attachedFiles);
-		for (File attachedFile : attachedFiles) {
-			if (fileNesting < maxReccurenceNesting) {
-				List<File> nestedFiles = extractFileAttachments(attachedFile, filesUniqueDir, fileNesting + 1);
+		EidasParser parser = FileParserFactory.getParserInstance(file, extraction.workspace);
+		List<Artifact> attachedFiles = extraction.getAttachedFiles(file, parser);
+		extraction.countFiles(attachedFiles.size(), file);
+		for (Artifact attachedFile : attachedFiles) {
+			attachedFile.setParent(file);
+			attachedFile.setDepth(file.getDepth() + 1);
+		}
+		if (file.getDepth() >= maxReccurenceNesting || attachedFiles.isEmpty())
+			return attachedFiles;
+
+		List<ExtractionTask> tasks = new ArrayList<>();
+		for (Artifact attachedFile : attachedFiles) {
+			ExtractionTask task = new ExtractionTask(attachedFile, extraction);
+			if (extractionPool != null)
+				task.fork();
+			tasks.add(task);
+		}
+
+		List<Artifact> files = new ArrayList<>(attachedFiles);
+		try {
+			for (ExtractionTask task : tasks) {
+				List<Artifact> nestedFiles = extractionPool != null ? task.join() : task.compute();
 				if (!nestedFiles.isEmpty())
 					files.addAll(nestedFiles);
 			}
+		} catch (RuntimeException | Error e) {
+			extraction.failed = true;
+			if (extractionPool != null) {
+				for (ExtractionTask task : tasks) {
+					task.quietlyJoin();
+				}
+			}
+			throw e;
 		}
 		return files;
 	}
+
+	/**
+	 * State of extraction of a single request.
+	 */
+	private class Extraction {
+		private final Workspace workspace;
+		private final Map<String, SharedParse> parses = new ConcurrentHashMap<>();
+		private final AtomicInteger fileCount = new AtomicInteger();
+		/**
+		 * Set when a task fails, tasks which didn't start yet are skipped.
+		 */
+		private volatile boolean failed;
+
+		Extraction(Workspace workspace) {
+			this.workspace = workspace;
+		}
+
+		void countFiles(int count, Artifact file) {
+			int total = fileCount.addAndGet(count);
+			if (maxExtractedFiles > 0 && total > maxExtractedFiles) {
+				String message = "Limit of " + maxExtractedFiles + " files exceeded at " + file.getPath();
+				logger.warn(message);
+				throw new ExtractionLimitExceededException(message);
+			}
+		}
+
+		List<Artifact> getAttachedFiles(Artifact file, EidasParser parser) throws IOException {
+			if (!PACKAGE_TYPES.contains(file.getMimeType()))
+				return parser.getAttachedFiles();
+			SharedParse parse = parses.computeIfAbsent(file.computeSha256(), hash -> new SharedParse(file, parser));
+			return parse.getAttachedFiles(file, workspace);
+		}
+	}
+
+	/**
+	 * Attachments of a package, parsed by the first file with its contents.
+	 */
+	private static class SharedParse {
+		private final Artifact file;
+		private final EidasParser parser;
+		private List<Artifact> attachedFiles;
+
+		SharedParse(Artifact file, EidasParser parser) {
+			this.file = file;
+			this.parser = parser;
+		}
+
+		/**
+		 * Method used to get attachments of a file with the package contents.
+		 * The package is parsed on first call, other files get aliases of its
+		 * attachments, moved to their own folder.
+		 */
+		synchronized List<Artifact> getAttachedFiles(Artifact target, Workspace workspace) throws IOException {
+			if (attachedFiles == null)
+				attachedFiles = parser.getAttachedFiles();
+			if (target == file)
+				return attachedFiles;
+
+			logger.info("File " + target.getPath() + " is the same as " + file.getPath() + ", sharing its attachments");
+			String parentPath = file.getParentPath();
+			List<Artifact> aliases = new ArrayList<>();
+			for (Artifact attachedFile : attachedFiles) {
+				String path = attachedFile.getPath();
+				String relativePath = path.startsWith(parentPath) ? path.substring(parentPath.length())
+						: attachedFile.getName();
+				aliases.add(workspace.alias(target.getParentPath() + relativePath, attachedFile));
+			}
+			return aliases;
+		}
+	}
+
+	/**
+	 * Task extracting attachments of a file, together with their attachments.
+	 * Results are joined in the files order, so they are the same as in
+	 * sequential extraction.
+	 */
+	private class ExtractionTask extends RecursiveTask<List<Artifact>> {
+		private static final long serialVersionUID = 1L;
+		private final transient Artifact file;
+		private final transient Extraction extraction;
+
+		ExtractionTask(Artifact file, Extraction extraction) {
+			this.file = file;
+			this.extraction = extraction;
+		}
+
+		@Override
+		protected List<Artifact> compute() {
+			if (extraction.failed)
+				return new ArrayList<>();
+			try {
+				return extractFileAttachments(file, extraction);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
 }
@@ -3,22 +3,29 @@ package io.cryptomage.eidas.service;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import org.apache.log4j.Logger;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import eu.europa.esig.dss.DSSDocument;
-import eu.europa.esig.dss.FileDocument;
+import eu.europa.esig.dss.validation.CertificateVerifier;
 import eu.europa.esig.dss.validation.SignedDocumentValidator;
 import io.cryptomage.eidas.parser.EidasParser;
 import io.cryptomage.eidas.report.ReportConstantStrings;
 import io.cryptomage.eidas.report.ReportGenerator;
 import io.cryptomage.eidas.utils.FileParserFactory;
-import io.cryptomage.eidas.utils.FileUtilities;
 import io.cryptomage.eidas.utils.TrustedProfileUtils;
 import io.cryptomage.eidas.verifysignaturewsdl.ArrayOfAttachment;
+import io.cryptomage.eidas.workspace.Artifact;
+import io.cryptomage.eidas.workspace.ArtifactIndex;
+import io.cryptomage.eidas.workspace.Workspace;
 import lombok.Setter;
 
 /**
@@ -29,7 +36,15 @@ import lombok.Setter;
  * object. The procedure is repeated until all files are validated.
  * 
  * A file that is subject of signature but it is separate from signed file is
- * called a detached file by dss library.
+ * called a detached file by dss library. Detached files are given to dss
+ * library as digest documents when the signature needs only their digests,
+ * so a big file signed several times is read once.
+ * 
+ * When validation pool is set, files are validated in parallel and the
+ * report keeps the order of the files list.
+ * 
+ * All files of a request are validated with the trusted lists snapshot which
+ * was current when the validation started.
  * 
  * @author Dariusz Napłoszek
  */
@@ -50,14 +65,45 @@ public class FileValidator {
 	
 	@Setter 
 	private boolean addDssDiagnosticReport;
-	
+
+	/**
+	 * Pool used to validate files of a request in parallel, files are
+	 * validated one by one in the calling thread when it is not set. Pool size
+	 * is a global limit of files validated at the same time.
+	 */
+	@Setter
+	private ExecutorService validationExecutor;
+
+	/**
+	 * Limit of files of a single request validated at the same time, so one
+	 * large package can't take the whole pool.
+	 */
+	@Setter
+	private int maxParallelFilesPerRequest;
 	
+	/**
+	 * Interface used to receive file reports as soon as the file is validated.
+	 */
+	@FunctionalInterface
+	public interface FileReportConsumer {
+		/**
+		 * Method invoked with report of a single file. Reports are passed in
+		 * the order of the files list, always from the thread which started
+		 * the validation.
+		 * 
+		 * @param fileReport
+		 *            report of a single file
+		 * @throws IOException
+		 */
+		void accept(JSONObject fileReport) throws IOException;
+	}
+
 	/**
 	 * Main method used to initiate files validation. The procedure is described
 	 * in class documentation.
 	 * 
-	 * @param filesUniqueDir
-	 *            Root dir of the files
+	 * @param workspace
+	 *            Workspace holding the files
 	 * @param files
 	 *            List of files to be validated
 	 * @param policyFile
@@ -65,58 +111,182 @@ public class FileValidator {
 	 * @return validation report
 	 * @throws IOException
 	 */
-	public JSONArray validateFiles(String filesUniqueDir, List<File> files, File policyFile) throws IOException {
-		logger.info("Files validation starts");
+	public JSONArray validateFiles(Workspace workspace, List<Artifact> files, File policyFile) throws IOException {
+		return validateFiles(workspace, files, policyFile, Collections.emptyList());
+	}
+
+	/**
+	 * Method used to initiate files validation with detached contents given
+	 * by their digests, e.g. {@link eu.europa.esig.dss.DigestDocument}, which
+	 * are added to detached files of every signature.
+	 * 
+	 * @param workspace
+	 *            Workspace holding the files
+	 * @param files
+	 *            List of files to be validated
+	 * @param policyFile
+	 *            File with validation constraints
+	 * @param detachedDigests
+	 *            Detached contents given by their digests
+	 * @return validation report
+	 * @throws IOException
+	 */
+	public JSONArray validateFiles(Workspace workspace, List<Artifact> files, File policyFile,
+			List<DSSDocument> detachedDigests) throws IOException {
 		JSONArray jsArray = new JSONArray();
-		for (File file : files) {
-			String filename = file.getName();
-
-			logger.info("File " + filename + " validation starts");
-			JSONObject fileJson = new JSONObject();
-			EidasParser parser = FileParserFactory.getParserInstance(file, filesUniqueDir);
-			List<File> detachedFiles = parser.getDetachedFiles(files);
-			fileJson.put(ReportConstantStrings.FILE_NAME, filename);
-			if (!detachedFiles.isEmpty()) {
-				fileJson.put(ReportConstantStrings.DETACHED_FILES, getDetachedFilesJSONArray(filesUniqueDir, detachedFiles));
+		validateFiles(workspace, files, policyFile, detachedDigests, jsArray::put);
+		return jsArray;
+	}
+
+	/**
+	 * Method used to initiate files validation, which passes report of every
+	 * file to the consumer as soon as it is ready, instead of building the
+	 * whole report. Reports which were passed are not referenced any more.
+	 * 
+	 * @param workspace
+	 *            Workspace holding the files
+	 * @param files
+	 *            List of files to be validated
+	 * @param policyFile
+	 *            File with validation constraints
+	 * @param consumer
+	 *            Receiver of file reports
+	 * @throws IOException
+	 */
+	public void validateFiles(Workspace workspace, List<Artifact> files, File policyFile,
+			FileReportConsumer consumer) throws IOException {
+		validateFiles(workspace, files, policyFile, Collections.emptyList(), consumer);
+	}
+
+	private void validateFiles(Workspace workspace, List<Artifact> files, File policyFile,
+			List<DSSDocument> detachedDigests, FileReportConsumer consumer) throws IOException {
+		logger.info("Files validation starts");
+		ValidationContext context = new ValidationContext(workspace, new ArtifactIndex(files), policyFile,
+				detachedDigests, verifierProvider.getVerifier());
+		if (validationExecutor == null || files.size() < 2) {
+			for (Artifact file : files) {
+				consumer.accept(validateFile(context, file));
 			}
-			DSSDocument doc = parser.getDSSDocumentData();
-			if (doc != null) {
-				logger.info("Checking validation");
-				fileJson.put(ReportConstantStrings.CERTIFICATE_DATA, validateSignature(doc, policyFile, detachedFiles));
+			return;
+		}
+
+		validateFilesInParallel(context, consumer);
+	}
+
+	private void validateFilesInParallel(ValidationContext context, FileReportConsumer consumer)
+			throws IOException {
+		List<Artifact> files = context.fileIndex.getFiles();
+		logger.info("Validating " + files.size() + " files in parallel");
+		JSONObject[] results = new JSONObject[files.size()];
+		List<Future<?>> futures = new ArrayList<>();
+		Semaphore requestPermits = new Semaphore(Math.max(1, maxParallelFilesPerRequest));
+		int nextReport = 0;
+		try {
+			for (int i = 0; i < files.size(); i++) {
+				final int index = i;
+				nextReport = passReports(futures, results, nextReport, consumer, false);
+				requestPermits.acquire();
+				futures.add(validationExecutor.submit(() -> {
+					try {
+						results[index] = validateFile(context, files.get(index));
+					} finally {
+						requestPermits.release();
+					}
+					return null;
+				}));
 			}
-			jsArray.put(fileJson);
+			passReports(futures, results, nextReport, consumer, true);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cancelAll(futures);
+			throw new IOException("Files validation was interrupted", e);
+		} catch (ExecutionException e) {
+			cancelAll(futures);
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException(cause);
+		} catch (IOException | RuntimeException e) {
+			cancelAll(futures);
+			throw e;
 		}
-		return jsArray;
 	}
 
-	private JSONArray getDetachedFilesJSONArray(String filesUniqueDir, List<File> detachedFiles) {
+	/**
+	 * Passes reports of validated files to the consumer, keeping the files
+	 * order. Returns index of the next report to pass.
+	 */
+	private int passReports(List<Future<?>> futures, JSONObject[] results, int nextReport,
+			FileReportConsumer consumer, boolean waitForAll)
+			throws InterruptedException, ExecutionException, IOException {
+		int next = nextReport;
+		while (next < futures.size() && (waitForAll || futures.get(next).isDone())) {
+			futures.get(next).get();
+			consumer.accept(results[next]);
+			results[next] = null;
+			next++;
+		}
+		return next;
+	}
+
+	private void cancelAll(List<Future<?>> futures) {
+		for (Future<?> future : futures) {
+			future.cancel(true);
+		}
+	}
+
+	private JSONObject validateFile(ValidationContext context, Artifact file) throws IOException {
+		String filename = file.getName();
+
+		logger.info("File " + filename + " validation starts");
+		JSONObject fileJson = new JSONObject();
+		EidasParser parser = FileParserFactory.getParserInstance(file, context.workspace);
+		List<Artifact> detachedFiles = parser.getDetachedFiles(context.fileIndex);
+		fileJson.put(ReportConstantStrings.FILE_NAME, filename);
+		DSSDocument doc = parser.getDSSDocumentData();
+		List<DSSDocument> detachedDigests = doc != null ? context.detachedDigests : Collections.emptyList();
+		if (!detachedFiles.isEmpty() || !detachedDigests.isEmpty()) {
+			fileJson.put(ReportConstantStrings.DETACHED_FILES, getDetachedFilesJSONArray(detachedFiles, detachedDigests));
+		}
+		if (doc != null) {
+			logger.info("Checking validation");
+			fileJson.put(ReportConstantStrings.CERTIFICATE_DATA,
+					validateSignature(context, file, parser, doc, detachedFiles, detachedDigests));
+		}
+		return fileJson;
+	}
+
+	private JSONArray getDetachedFilesJSONArray(List<Artifact> detachedFiles, List<DSSDocument> detachedDigests) {
 		JSONArray ret = new JSONArray();
-		for (int i = 0; i < detachedFiles.size(); i++) {
-			String detachedFileName = detachedFiles.get(i).getAbsolutePath();
-			if (detachedFileName.length() >= filesUniqueDir.length() + 1)
-				ret.put(detachedFileName.substring(filesUniqueDir.length() + 1));
+		for (Artifact detachedFile : detachedFiles) {
+			ret.put(detachedFile.getPath());
+		}
+		for (DSSDocument detachedDigest : detachedDigests) {
+			ret.put(detachedDigest.getName());
 		}
 		return ret;
 	}
 
-	private JSONArray validateSignature(DSSDocument document, File policy, List<File> detachedFiles) {
+	private JSONArray validateSignature(ValidationContext context, Artifact file, EidasParser parser,
+			DSSDocument document, List<Artifact> detachedFiles, List<DSSDocument> detachedDigests) {
 		SignedDocumentValidator validator = SignedDocumentValidator.fromDocument(document);
-		validator.setCertificateVerifier(verifierProvider.getVerifier());
+		validator.setCertificateVerifier(context.verifier);
 
-		setDetachedContents(validator, detachedFiles);
+		setDetachedContents(validator, parser, detachedFiles, detachedDigests);
 
 		ReportGenerator reportGenerator;
-		reportGenerator = new ReportGenerator(validator.validateDocument(policy), addDssDetailedReport, addDssDiagnosticReport);
+		reportGenerator = new ReportGenerator(validator.validateDocument(context.policyFile), addDssDetailedReport, addDssDiagnosticReport);
 		if (enableTrustedProfileValidation)
-			reportGenerator.addTrustedProfileValidationResult(validateTrustedProfile(document, detachedFiles));
+			reportGenerator.addTrustedProfileValidationResult(validateTrustedProfile(file, document, detachedFiles));
 
 		return reportGenerator.generateSimpleValidationReport();
 	}
 
-	private JSONObject validateTrustedProfile(DSSDocument document, List<File> detachedFiles) {
+	private JSONObject validateTrustedProfile(Artifact file, DSSDocument document, List<Artifact> detachedFiles) {
 		logger.info("Trying to check for trusted profile data.");
-		File fileToCheck = new File(document.getAbsolutePath());
-		if (!checkIfShouldValidateTrustedProfile(fileToCheck))
+		if (!checkIfShouldValidateTrustedProfile(file))
 			return trustedProfileValidator.getJSONReport(ReportConstantStrings.INDETERMINATE, ReportConstantStrings.NOT_AN_XML);
 
 		try {
@@ -130,27 +300,42 @@ public class FileValidator {
 				ReportConstantStrings.TRUSTED_PROFILE_NOT_SUPPORTED_OR_ERROR);
 	}
 
-	private boolean checkIfShouldValidateTrustedProfile(File fileToCheck) {
-		String fileType = "";
-		try {
-			fileType = FileUtilities.detectFileType(fileToCheck);
-		} catch (IOException e1) {
-			logger.error("There was a problem with detecting file type: " + e1);
-		}
-		if (("xml").equals(fileType))
-			return true;
-		return false;
+	private boolean checkIfShouldValidateTrustedProfile(Artifact fileToCheck) {
+		return ("xml").equals(fileToCheck.getFileType());
 	}
 
-	private void setDetachedContents(SignedDocumentValidator validator, List<File> detachedFiles) {
-		if (detachedFiles.isEmpty())
+	private void setDetachedContents(SignedDocumentValidator validator, EidasParser parser,
+			List<Artifact> detachedFiles, List<DSSDocument> detachedDigests) {
+		if (detachedFiles.isEmpty() && detachedDigests.isEmpty())
 			return;
 
 		List<DSSDocument> detachedContentsList = new ArrayList<>();
-		for (File file : detachedFiles) {
-			DSSDocument detachedContents = new FileDocument(file.getAbsolutePath());
+		for (Artifact file : detachedFiles) {
+			DSSDocument detachedContents = parser.isDigestEnough(file) ? file.getDigestDocument()
+					: file.getDSSDocument();
 			detachedContentsList.add(detachedContents);
 		}
+		detachedContentsList.addAll(detachedDigests);
 		validator.setDetachedContents(detachedContentsList);
 	}
+
+	/**
+	 * Data shared by validations of all files of a request.
+	 */
+	private static class ValidationContext {
+		private final Workspace workspace;
+		private final ArtifactIndex fileIndex;
+		private final File policyFile;
+		private final List<DSSDocument> detachedDigests;
+		private final CertificateVerifier verifier;
+
+		ValidationContext(Workspace workspace, ArtifactIndex fileIndex, File policyFile,
+				List<DSSDocument> detachedDigests, CertificateVerifier verifier) {
+			this.workspace = workspace;
+			this.fileIndex = fileIndex;
+			this.policyFile = policyFile;
+			this.detachedDigests = detachedDigests;
+			this.verifier = verifier;
+		}
+	}
 }
@@ -0,0 +1,455 @@
+package io.cryptomage.eidas.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import eu.europa.esig.dss.tsl.CertSubjectDNAttributeCondition;
+import eu.europa.esig.dss.tsl.CompositeCondition;
+import eu.europa.esig.dss.tsl.Condition;
+import eu.europa.esig.dss.tsl.CriteriaListCondition;
+import eu.europa.esig.dss.tsl.ExtendedKeyUsageCondition;
+import eu.europa.esig.dss.tsl.KeyUsageCondition;
+import eu.europa.esig.dss.tsl.MatchingCriteriaIndicator;
+import eu.europa.esig.dss.tsl.PolicyIdCondition;
+import eu.europa.esig.dss.tsl.ServiceInfo;
+import eu.europa.esig.dss.tsl.ServiceInfoStatus;
+import eu.europa.esig.dss.tsl.TLInfo;
+import eu.europa.esig.dss.tsl.TrustedListsCertificateSource;
+import eu.europa.esig.dss.util.TimeDependentValues;
+import eu.europa.esig.dss.x509.CertificateToken;
+import eu.europa.esig.dss.x509.KeyUsageBit;
+
+/**
+ * File holding trusted lists state, written after every successful load of
+ * trusted lists and read when application starts, so trusted lists are
+ * available before they are loaded again.
+ *
+ * The file starts with a magic number and format version, followed by trusted
+ * certificates in DER encoding, each with the services it is trusted for
+ * written field by field, then metadata of the loaded trusted lists (country,
+ * sequence number, issue and next update dates, url). SHA-256 hash of the
+ * contents ends the file. The file is mapped to memory when it is read.
+ */
+class TrustedListSnapshotFile {
+	private static final Logger logger = Logger.getLogger(TrustedListSnapshotFile.class);
+	private static final int MAGIC = 0x45544C31;
+	private static final int VERSION = 1;
+	private static final String HASH_ALGORITHM = "SHA-256";
+	private static final int HASH_SIZE = 32;
+	private static final long NO_DATE = Long.MIN_VALUE;
+
+	private static final byte COMPOSITE_CONDITION = 1;
+	private static final byte CRITERIA_LIST_CONDITION = 2;
+	private static final byte KEY_USAGE_CONDITION = 3;
+	private static final byte POLICY_ID_CONDITION = 4;
+	private static final byte SUBJECT_DN_ATTRIBUTE_CONDITION = 5;
+	private static final byte EXTENDED_KEY_USAGE_CONDITION = 6;
+
+	private final File file;
+
+	/**
+	 * Trusted list snapshot file constructor.
+	 *
+	 * @param file
+	 *            file holding the snapshot
+	 */
+	TrustedListSnapshotFile(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Method used to write trusted certificates and trusted lists metadata of
+	 * the source. The file is replaced atomically, so it is never read when it
+	 * is partly written.
+	 *
+	 * @param certificateSource
+	 *            loaded trusted lists
+	 * @throws IOException
+	 *             thrown if the source holds service information which
+	 *             can't be stored or the file couldn't be written.
+	 */
+	void write(TrustedListsCertificateSource certificateSource) throws IOException {
+		List<CertificateToken> certificates = certificateSource.getCertificates();
+		Map<String, TLInfo> summary = certificateSource.getSummary();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(certificates.size());
+			for (CertificateToken certificate : certificates) {
+				byte[] encoded = certificate.getEncoded();
+				out.writeInt(encoded.length);
+				out.write(encoded);
+				Set<ServiceInfo> services = certificateSource.getTrustServices(certificate);
+				out.writeInt(services != null ? services.size() : 0);
+				if (services != null) {
+					for (ServiceInfo service : services) {
+						writeService(out, service);
+					}
+				}
+			}
+			out.writeInt(summary != null ? summary.size() : 0);
+			if (summary != null) {
+				for (Map.Entry<String, TLInfo> tl : summary.entrySet()) {
+					writeString(out, tl.getKey());
+					writeTlInfo(out, tl.getValue());
+				}
+			}
+		}
+
+		byte[] contents = bytes.toByteArray();
+		File tempFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tempFile.toPath()))) {
+			out.write(contents);
+			out.write(hash(contents, 0, contents.length));
+		}
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		logger.info("Stored " + certificates.size() + " trusted certificates in " + file + ", "
+				+ (contents.length + HASH_SIZE) + " bytes");
+	}
+
+	/**
+	 * Method used to read trusted certificates and trusted lists metadata.
+	 *
+	 * @return certificate source with stored trusted certificates, null if
+	 *         there is no stored snapshot.
+	 * @throws IOException
+	 *             thrown if the file is damaged.
+	 */
+	TrustedListsCertificateSource read() throws IOException {
+		if (!file.isFile())
+			return null;
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() <= HASH_SIZE || channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Trusted lists snapshot " + file + " has wrong size");
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			int length = (int) channel.size() - HASH_SIZE;
+			checkHash(buffer, length);
+
+			ByteBuffer contents = buffer.duplicate();
+			contents.limit(length);
+			return read(new ByteBufferInputStream(contents));
+		}
+	}
+
+	private TrustedListsCertificateSource read(InputStream is) throws IOException {
+		TrustedListsCertificateSource certificateSource = new TrustedListsCertificateSource();
+		try (DataInputStream in = new DataInputStream(is)) {
+			if (in.readInt() != MAGIC)
+				throw new IOException("File " + file + " is not a trusted lists snapshot");
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException("Trusted lists snapshot " + file + " has unsupported version " + version);
+
+			int count = in.readInt();
+			CertificateFactory certFactory = CertificateFactory.getInstance("X.509");
+			for (int i = 0; i < count; i++) {
+				byte[] encoded = new byte[in.readInt()];
+				in.readFully(encoded);
+				CertificateToken token = new CertificateToken(
+						(X509Certificate) certFactory.generateCertificate(new ByteArrayInputStream(encoded)));
+				int services = in.readInt();
+				for (int j = 0; j < services; j++) {
+					certificateSource.addCertificate(token, readService(in));
+				}
+			}
+			int tls = in.readInt();
+			for (int i = 0; i < tls; i++) {
+				certificateSource.updateTlInfo(readString(in), readTlInfo(in));
+			}
+			logger.info("Read " + count + " trusted certificates of " + tls + " trusted lists from " + file);
+			return certificateSource;
+		} catch (CertificateException | IllegalArgumentException e) {
+			throw new IOException("Couldn't read trusted lists snapshot " + file + ": " + e, e);
+		}
+	}
+
+	private static void writeService(DataOutputStream out, ServiceInfo service) throws IOException {
+		writeString(out, service.getTspName());
+		writeString(out, service.getTspTradeName());
+		writeString(out, service.getTspPostalAddress());
+		writeString(out, service.getTspElectronicAddress());
+		writeString(out, service.getTlCountryCode());
+
+		List<ServiceInfoStatus> statuses = new ArrayList<>();
+		if (service.getStatus() != null) {
+			for (ServiceInfoStatus status : service.getStatus()) {
+				statuses.add(status);
+			}
+		}
+		out.writeInt(statuses.size());
+		for (ServiceInfoStatus status : statuses) {
+			writeString(out, status.getServiceName());
+			writeString(out, status.getType());
+			writeString(out, status.getStatus());
+			Map<String, List<Condition>> qualifiers = status.getQualifiersAndConditions();
+			out.writeInt(qualifiers != null ? qualifiers.size() : 0);
+			if (qualifiers != null) {
+				for (Map.Entry<String, List<Condition>> qualifier : qualifiers.entrySet()) {
+					writeString(out, qualifier.getKey());
+					writeConditions(out, qualifier.getValue());
+				}
+			}
+			writeStrings(out, status.getAdditionalServiceInfoUris());
+			writeStrings(out, status.getServiceSupplyPoints());
+			writeDate(out, status.getExpiredCertsRevocationInfo());
+			writeDate(out, status.getStartDate());
+			writeDate(out, status.getEndDate());
+		}
+	}
+
+	private static ServiceInfo readService(DataInputStream in) throws IOException {
+		ServiceInfo service = new ServiceInfo();
+		service.setTspName(readString(in));
+		service.setTspTradeName(readString(in));
+		service.setTspPostalAddress(readString(in));
+		service.setTspElectronicAddress(readString(in));
+		service.setTlCountryCode(readString(in));
+
+		int count = in.readInt();
+		List<ServiceInfoStatus> statuses = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			String serviceName = readString(in);
+			String type = readString(in);
+			String status = readString(in);
+			int qualifierCount = in.readInt();
+			Map<String, List<Condition>> qualifiers = new LinkedHashMap<>();
+			for (int j = 0; j < qualifierCount; j++) {
+				qualifiers.put(readString(in), readConditions(in));
+			}
+			List<String> additionalServiceInfoUris = readStrings(in);
+			List<String> serviceSupplyPoints = readStrings(in);
+			Date expiredCertsRevocationInfo = readDate(in);
+			Date startDate = readDate(in);
+			Date endDate = readDate(in);
+			statuses.add(new ServiceInfoStatus(serviceName, type, status, qualifiers, additionalServiceInfoUris,
+					serviceSupplyPoints, expiredCertsRevocationInfo, startDate, endDate));
+		}
+		service.setStatus(new TimeDependentValues<>(statuses));
+		return service;
+	}
+
+	private static void writeTlInfo(DataOutputStream out, TLInfo info) throws IOException {
+		writeString(out, info.getCountryCode());
+		writeString(out, info.getUrl());
+		out.writeBoolean(info.isLotl());
+		out.writeInt(info.getSequenceNumber());
+		out.writeInt(info.getVersion());
+		writeDate(out, info.getIssueDate());
+		writeDate(out, info.getNextUpdate());
+		writeDate(out, info.getLastLoading());
+		out.writeBoolean(info.isWellSigned());
+	}
+
+	private static TLInfo readTlInfo(DataInputStream in) throws IOException {
+		TLInfo info = new TLInfo();
+		info.setCountryCode(readString(in));
+		info.setUrl(readString(in));
+		info.setLotl(in.readBoolean());
+		info.setSequenceNumber(in.readInt());
+		info.setVersion(in.readInt());
+		info.setIssueDate(readDate(in));
+		info.setNextUpdate(readDate(in));
+		info.setLastLoading(readDate(in));
+		info.setWellSigned(in.readBoolean());
+		return info;
+	}
+
+	private static void writeConditions(DataOutputStream out, List<Condition> conditions) throws IOException {
+		out.writeInt(conditions != null ? conditions.size() : 0);
+		if (conditions != null) {
+			for (Condition condition : conditions) {
+				writeCondition(out, condition);
+			}
+		}
+	}
+
+	private static List<Condition> readConditions(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<Condition> conditions = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			conditions.add(readCondition(in));
+		}
+		return conditions;
+	}
+
+	/**
+	 * Conditions are written with a tag of their type, composite ones with
+	 * their children. Criteria list is checked first, as it is also a
+	 * composite condition.
+	 */
+	private static void writeCondition(DataOutputStream out, Condition condition) throws IOException {
+		if (condition instanceof CompositeCondition) {
+			CompositeCondition composite = (CompositeCondition) condition;
+			out.writeByte(composite instanceof CriteriaListCondition ? CRITERIA_LIST_CONDITION : COMPOSITE_CONDITION);
+			out.writeUTF(composite.getMatchingCriteriaIndicator().name());
+			writeConditions(out, composite.getChildren());
+		} else if (condition instanceof KeyUsageCondition) {
+			KeyUsageCondition keyUsage = (KeyUsageCondition) condition;
+			out.writeByte(KEY_USAGE_CONDITION);
+			out.writeUTF(keyUsage.getBit().name());
+			out.writeBoolean(keyUsage.getValue());
+		} else if (condition instanceof PolicyIdCondition) {
+			out.writeByte(POLICY_ID_CONDITION);
+			out.writeUTF(((PolicyIdCondition) condition).getPolicyOid());
+		} else if (condition instanceof CertSubjectDNAttributeCondition) {
+			out.writeByte(SUBJECT_DN_ATTRIBUTE_CONDITION);
+			writeStrings(out, ((CertSubjectDNAttributeCondition) condition).getSubjectAttributeOids());
+		} else if (condition instanceof ExtendedKeyUsageCondition) {
+			out.writeByte(EXTENDED_KEY_USAGE_CONDITION);
+			writeStrings(out, ((ExtendedKeyUsageCondition) condition).getExtendedKeyUsageOids());
+		} else {
+			throw new IOException("Condition " + condition.getClass().getName()
+					+ " can't be stored in trusted lists snapshot");
+		}
+	}
+
+	private static Condition readCondition(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+		case COMPOSITE_CONDITION:
+		case CRITERIA_LIST_CONDITION:
+			MatchingCriteriaIndicator indicator = MatchingCriteriaIndicator.valueOf(in.readUTF());
+			CompositeCondition composite = type == CRITERIA_LIST_CONDITION ? new CriteriaListCondition(indicator)
+					: new CompositeCondition(indicator);
+			for (Condition child : readConditions(in)) {
+				composite.addChild(child);
+			}
+			return composite;
+		case KEY_USAGE_CONDITION:
+			return new KeyUsageCondition(KeyUsageBit.valueOf(in.readUTF()), in.readBoolean());
+		case POLICY_ID_CONDITION:
+			return new PolicyIdCondition(in.readUTF());
+		case SUBJECT_DN_ATTRIBUTE_CONDITION:
+			return new CertSubjectDNAttributeCondition(readStrings(in));
+		case EXTENDED_KEY_USAGE_CONDITION:
+			return new ExtendedKeyUsageCondition(readStrings(in));
+		default:
+			throw new IOException("Unknown condition type " + type + " in trusted lists snapshot");
+		}
+	}
+
+	private static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+		out.writeInt(values != null ? values.size() : 0);
+		if (values != null) {
+			for (String value : values) {
+				writeString(out, value);
+			}
+		}
+	}
+
+	private static List<String> readStrings(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<String> values = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			values.add(readString(in));
+		}
+		return values;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null)
+			out.writeUTF(value);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeDate(DataOutputStream out, Date date) throws IOException {
+		out.writeLong(date != null ? date.getTime() : NO_DATE);
+	}
+
+	private static Date readDate(DataInputStream in) throws IOException {
+		long time = in.readLong();
+		return time != NO_DATE ? new Date(time) : null;
+	}
+
+	private void checkHash(ByteBuffer buffer, int length) throws IOException {
+		MessageDigest digest = getMessageDigest();
+		ByteBuffer contents = buffer.duplicate();
+		contents.limit(length);
+		digest.update(contents);
+
+		byte[] stored = new byte[HASH_SIZE];
+		ByteBuffer hash = buffer.duplicate();
+		hash.position(length);
+		hash.get(stored);
+		if (!Arrays.equals(stored, digest.digest()))
+			throw new IOException("Trusted lists snapshot " + file + " is damaged");
+	}
+
+	private static byte[] hash(byte[] data, int offset, int length) throws IOException {
+		MessageDigest digest = getMessageDigest();
+		digest.update(data, offset, length);
+		return digest.digest();
+	}
+
+	private static MessageDigest getMessageDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance(HASH_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Stream reading mapped file contents.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0)
+				return 0;
+			if (!buffer.hasRemaining())
+				return -1;
+			int count = Math.min(len, buffer.remaining());
+			buffer.get(b, off, count);
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package io.cryptomage.eidas.service;
+
+import java.util.Date;
+import java.util.UUID;
+
+import lombok.Getter;
+
+/**
+ * Class describing asynchronous validation job and its result.
+ * 
+ * Job is created when request files are stored, it is then updated by the
+ * worker thread which validates them.
+ */
+@Getter
+public class ValidationJob {
+
+	/**
+	 * Validation job statuses.
+	 */
+	public enum Status {
+		QUEUED, RUNNING, DONE, FAILED
+	}
+
+	private final String id;
+	private final Date created;
+	private volatile Status status;
+	private volatile String report;
+	private volatile String error;
+	private volatile Date finished;
+
+	/**
+	 * Validation job constructor. Job gets an unique id and queued status.
+	 */
+	public ValidationJob() {
+		this.id = UUID.randomUUID().toString();
+		this.created = new Date();
+		this.status = Status.QUEUED;
+	}
+
+	void start() {
+		status = Status.RUNNING;
+	}
+
+	void finish(String report) {
+		this.report = report;
+		this.finished = new Date();
+		this.status = Status.DONE;
+	}
+
+	void fail(String error) {
+		this.error = error;
+		this.finished = new Date();
+		this.status = Status.FAILED;
+	}
+}
@@ -0,0 +1,125 @@
+package io.cryptomage.eidas.service;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.springframework.web.multipart.MultipartFile;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import lombok.Getter;
+
+/**
+ * Service used to run validations asynchronously.
+ * 
+ * Request files are stored in the calling thread, then the validation is
+ * queued on a bounded worker pool. When the queue is full, the job is
+ * rejected instead of waiting, so slow validations can't block the server
+ * threads. Jobs and their reports are kept for a configured time, so API
+ * consumers can poll for them.
+ */
+public class ValidationJobService {
+	private static final Logger logger = Logger.getLogger(ValidationJobService.class);
+
+	private final EidasService eidasService;
+	private final ThreadPoolExecutor executor;
+	private final Cache<String, ValidationJob> jobs;
+
+	@Getter
+	private final int retryAfter;
+
+	/**
+	 * Validation job service constructor.
+	 * 
+	 * @param eidasService
+	 *            service used to validate stored requests
+	 * @param workers
+	 *            number of validation threads
+	 * @param queueCapacity
+	 *            number of jobs which can wait for a free thread
+	 * @param jobTtl
+	 *            how long (in minutes) job results are kept
+	 * @param retryAfter
+	 *            number of seconds after which rejected API consumer should
+	 *            retry
+	 */
+	public ValidationJobService(EidasService eidasService, int workers, int queueCapacity, int jobTtl,
+			int retryAfter) {
+		logger.info("Creating validation job service.");
+		this.eidasService = eidasService;
+		this.retryAfter = retryAfter;
+		this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueCapacity),
+				new ThreadFactoryBuilder().setNameFormat("validation-job-%d").setDaemon(true).build());
+		this.jobs = CacheBuilder.newBuilder().expireAfterWrite(jobTtl, TimeUnit.MINUTES).build();
+	}
+
+	/**
+	 * Method used to store request files and queue their validation.
+	 * 
+	 * @param validationFile
+	 *            File sent by the API consumer.
+	 * @param policy
+	 *            Validation policy file.
+	 * @param bypassCache
+	 *            if cached report should be ignored
+	 * @return queued validation job
+	 * @throws IOException
+	 *             thrown if file is not readable.
+	 * @throws ValidationQueueFullException
+	 *             thrown if there is no place for the job in the queue.
+	 */
+	public ValidationJob submit(MultipartFile validationFile, MultipartFile policy, boolean bypassCache)
+			throws IOException {
+		ValidationRequest request = eidasService.createRequest(validationFile, policy);
+		ValidationJob job = new ValidationJob();
+		jobs.put(job.getId(), job);
+		try {
+			executor.execute(() -> runJob(job, request, bypassCache));
+		} catch (RejectedExecutionException e) {
+			jobs.invalidate(job.getId());
+			request.getWorkspace().close();
+			logger.warn("Validation queue is full, rejecting job " + job.getId());
+			throw new ValidationQueueFullException("Validation queue is full", e);
+		}
+		logger.info("Queued validation job " + job.getId());
+		return job;
+	}
+
+	/**
+	 * Method used to get validation job.
+	 * 
+	 * @param id
+	 *            job id
+	 * @return validation job or null if there is no such job.
+	 */
+	public ValidationJob getJob(String id) {
+		return jobs.getIfPresent(id);
+	}
+
+	/**
+	 * Method used to stop worker threads, it is invoked when application
+	 * context is closed.
+	 */
+	public void shutdown() {
+		logger.info("Stopping validation job service.");
+		executor.shutdownNow();
+	}
+
+	private void runJob(ValidationJob job, ValidationRequest request, boolean bypassCache) {
+		logger.info("Validation job " + job.getId() + " starts");
+		job.start();
+		try {
+			job.finish(eidasService.validate(request, bypassCache));
+		} catch (Exception e) {
+			logger.error("Validation job " + job.getId() + " failed: " + e);
+			job.fail(e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+		}
+	}
+}
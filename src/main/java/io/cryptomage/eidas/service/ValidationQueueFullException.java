@@ -0,0 +1,21 @@
+package io.cryptomage.eidas.service;
+
+/**
+ * Exception thrown when validation job can't be accepted, because validation
+ * queue is full.
+ */
+public class ValidationQueueFullException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Exception constructor.
+	 * 
+	 * @param message
+	 *            exception message
+	 * @param cause
+	 *            rejection cause
+	 */
+	public ValidationQueueFullException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
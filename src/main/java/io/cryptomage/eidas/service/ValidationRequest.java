@@ -0,0 +1,22 @@
+package io.cryptomage.eidas.service;
+
+import java.io.File;
+
+import io.cryptomage.eidas.workspace.Artifact;
+import io.cryptomage.eidas.workspace.Workspace;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Class holding files of a single validation request, which were already
+ * stored in request workspace. It allows to validate the request later, after
+ * the multipart upload is no longer available.
+ */
+@Getter
+@AllArgsConstructor
+public class ValidationRequest {
+	private Workspace workspace;
+	private Artifact upload;
+	private File policyFile;
+	private String policyHash;
+}
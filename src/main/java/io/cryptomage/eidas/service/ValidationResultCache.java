@@ -0,0 +1,115 @@
+package io.cryptomage.eidas.service;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import io.cryptomage.eidas.metrics.MetricsSource;
+
+/**
+ * Cache of validation reports.
+ * 
+ * Reports are stored under a key built from SHA-256 hash of the uploaded
+ * file, hash of the validation policy and trusted lists generation. When
+ * trusted lists are refreshed the generation changes, so reports created with
+ * older trusted lists are dropped. Cache size and entries lifetime are
+ * limited.
+ */
+public class ValidationResultCache implements MetricsSource {
+	private static final Logger logger = Logger.getLogger(ValidationResultCache.class);
+
+	private final CertificateVerifierProvider verifierProvider;
+	private final Cache<String, String> reports;
+	private volatile long generation;
+
+	/**
+	 * Validation result cache constructor.
+	 * 
+	 * @param verifierProvider
+	 *            provider of trusted lists generation
+	 * @param maxEntries
+	 *            maximum number of cached reports
+	 * @param ttl
+	 *            how long (in minutes) reports are kept
+	 */
+	public ValidationResultCache(CertificateVerifierProvider verifierProvider, long maxEntries, long ttl) {
+		logger.info("Creating validation result cache.");
+		this.verifierProvider = verifierProvider;
+		this.generation = verifierProvider.getTrustedListGeneration();
+		this.reports = CacheBuilder.newBuilder().maximumSize(maxEntries).expireAfterWrite(ttl, TimeUnit.MINUTES)
+				.recordStats().build();
+	}
+
+	/**
+	 * Method used to get key of a stored request.
+	 * 
+	 * @param request
+	 *            stored validation request
+	 * @return cache key
+	 */
+	public String getKey(ValidationRequest request) {
+		return request.getUpload().getSha256() + ":" + request.getPolicyHash() + ":"
+				+ verifierProvider.getTrustedListGeneration();
+	}
+
+	/**
+	 * Method used to get cached report.
+	 * 
+	 * @param key
+	 *            cache key
+	 * @return report or null if it is not cached.
+	 */
+	public String get(String key) {
+		dropOldGeneration();
+		return reports.getIfPresent(key);
+	}
+
+	/**
+	 * Method used to store a report.
+	 * 
+	 * @param key
+	 *            cache key
+	 * @param report
+	 *            validation report
+	 */
+	public void put(String key, String report) {
+		dropOldGeneration();
+		reports.put(key, report);
+	}
+
+	@Override
+	public String getMetricsName() {
+		return "validationCache";
+	}
+
+	@Override
+	public JSONObject getMetrics() {
+		CacheStats stats = reports.stats();
+		JSONObject json = new JSONObject();
+		json.put("size", reports.size());
+		json.put("hits", stats.hitCount());
+		json.put("misses", stats.missCount());
+		json.put("hitRate", stats.hitRate());
+		json.put("evictions", stats.evictionCount());
+		json.put("trustedListGeneration", generation);
+		return json;
+	}
+
+	private void dropOldGeneration() {
+		long current = verifierProvider.getTrustedListGeneration();
+		if (current != generation) {
+			synchronized (this) {
+				if (current != generation) {
+					logger.info("Trusted lists were refreshed, dropping cached reports");
+					reports.invalidateAll();
+					generation = current;
+				}
+			}
+		}
+	}
+}
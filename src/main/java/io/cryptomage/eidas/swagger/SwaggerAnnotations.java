@@ -12,15 +12,41 @@ public final class SwaggerAnnotations {
 	public static final String VALIDATE_PATH_STATUS_200_MESSAGE = "Signature validation was finished and the results are sent in response";
 	public static final String VALIDATE_PATH_STATUS_500_MESSAGE = "File error";
 
+	public static final String VALIDATE_STREAM_PATH_SUMMARY = "Validate signed file or a package of files and stream the report";
+	public static final String VALIDATE_STREAM_PATH_DESCRIPTION = "Works like validate endpoint, but the response is sent as newline delimited JSON (application/x-ndjson). Every line holds report of a single file and it is sent as soon as the file is validated, so the first results arrive before the whole package is validated.";
+
+	public static final String VALIDATE_DIGEST_PATH_SUMMARY = "Validate signature with detached contents given by their digests";
+	public static final String VALIDATE_DIGEST_PATH_DESCRIPTION = "Works like validate endpoint, but detached contents of the signature are not uploaded. They are given by a JSON array of their names, digest algorithms (e.g. SHA256) and base64 encoded digest values, e.g. [{\"name\": \"video.mp4\", \"digestAlgorithm\": \"SHA256\", \"digestValue\": \"...\"}]. Every entry is used as detached contents of each signature. Such reports are not cached.";
+
+	public static final String VALIDATIONS_PATH_SUMMARY = "Queue validation of signed file or a package of files";
+	public static final String VALIDATIONS_PATH_DESCRIPTION = "Obtains a file from POST data upload and queues its validation. The validation is the same as in validate endpoint, but it is done asynchronously. Response holds id of the validation job which should be used to poll for the report. If the validation queue is full the request is rejected and should be retried after the number of seconds given in Retry-After header.";
+	public static final String VALIDATIONS_PATH_STATUS_202_MESSAGE = "Validation job was queued";
+	public static final String VALIDATIONS_PATH_STATUS_503_MESSAGE = "Validation queue is full";
+
+	public static final String VALIDATION_JOB_PATH_SUMMARY = "Get validation job status and report";
+	public static final String VALIDATION_JOB_PATH_DESCRIPTION = "Returns status of the validation job. When status is DONE the report field holds the same array as the response of validate endpoint. When status is FAILED the error field holds the problem description.";
+	public static final String VALIDATION_JOB_PATH_STATUS_200_MESSAGE = "Validation job status";
+	public static final String VALIDATION_JOB_PATH_STATUS_404_MESSAGE = "There is no such validation job";
+
+	public static final String PARAMS_JOB_ID_DESCRIPTION = "Validation job id";
+
 	public static final String PARAMS_FILE_NAME = "file";
 	public static final String PARAMS_FILE_DESCRITPION = "File to be analyzed";
 
 	public static final String PARAMS_POLICY_NAME = "policy";
 	public static final String PARAMS_POLICY_DESCRITPION = "Validation policy file";
 	
+	public static final String PARAMS_DETACHED_DIGESTS_DESCRIPTION = "JSON array of detached contents: name, digestAlgorithm and digestValue of each file";
+
+	public static final String PARAMS_CACHE_BYPASS_DESCRIPTION = "Set to true to validate the file again instead of returning cached report";
+
 	public static final String PARAMS_FILE_DATA_TYPE = "java.io.File";
 	
 	
+	public static final String METRICS_PATH_SUMMARY = "Service metrics";
+	public static final String METRICS_PATH_DESCRIPTION = "Returns counters of the service components, e.g. validation cache hits and misses, which can be used to size them.";
+	public static final String METRICS_PATH_STATUS_200_MESSAGE = "Current metrics";
+
 	public static final String ROOT_PATH_SUMMARY = "API welcome message";
 	public static final String ROOT_PATH_DESCRIPTION = "Base API path to test if service is online";
 	public static final String ROOT_PATH_STATUS_200_MESSAGE = "Service is up";
@@ -0,0 +1,18 @@
+package io.cryptomage.eidas.swagger;
+
+import java.util.ArrayList;
+
+import lombok.Getter;
+
+/**
+ * A class created for springfox swagger to create a model of a response.
+ */
+@Getter
+public class ValidationJobModel {
+	private String id;
+	private String status;
+	private String created;
+	private String finished;
+	private ArrayList<FileDataModel> report;
+	private String error;
+}
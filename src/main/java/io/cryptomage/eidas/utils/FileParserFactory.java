@@ -1,22 +1,24 @@
 package io.cryptomage.eidas.utils;
 
-import java.io.File;
 import java.io.IOException;
 
 import org.apache.log4j.Logger;
 
+import io.cryptomage.eidas.parser.AsicEidasParser;
 import io.cryptomage.eidas.parser.DefaultEidasParser;
 import io.cryptomage.eidas.parser.EidasParser;
 import io.cryptomage.eidas.parser.PdfEidasParser;
 import io.cryptomage.eidas.parser.SigEidasParser;
 import io.cryptomage.eidas.parser.XmlEidasParser;
 import io.cryptomage.eidas.parser.ZipEidasParser;
+import io.cryptomage.eidas.workspace.Artifact;
+import io.cryptomage.eidas.workspace.Workspace;
 
 /**
  * Class creating appropriate file parser objects.
  * 
- * The class has methods allowing it to recognize file type using Apache Tika
- * Library. It has only one public method used to acquire created object.
+ * The class recognizes file type using FileTypeDetector. It has only one
+ * public method used to acquire created object.
  * 
  * @author Dariusz Napłoszek
  */
@@ -27,34 +29,50 @@ public final class FileParserFactory {
 	private static final String ZIP_FILE = "zip";
 	private static final String PDF_FILE = "pdf";
 	private static final String SIG_FILE = "pkcs7-signature";
+	private static final String ASIC_S_FILE = "vnd.etsi.asic-s+zip";
+	private static final String ASIC_E_FILE = "vnd.etsi.asic-e+zip";
 
 	private FileParserFactory() {
 	}
 
 	/**
 	 * Method for obtaining appropriate file parser object. It needs a file to
-	 * recognize its type and create appropriate file parser.
+	 * recognize its type and create appropriate file parser. File type and
+	 * parser are stored in the file, so they are created only once.
 	 * 
 	 * @param file
 	 *            which needs to be analyzed,
-	 * @param uniqueDir
-	 *            root dir of the file.
+	 * @param workspace
+	 *            workspace holding files of the request.
 	 * @return appropriate file parser.
 	 */
-	public static EidasParser getParserInstance(File file, String uniqueDir) throws IOException {
+	public static EidasParser getParserInstance(Artifact file, Workspace workspace) throws IOException {
+		if (file.getParser() != null)
+			return file.getParser();
+
 		logger.info("Creating file parser");
-		String fileType = FileUtilities.detectFileType(file);
-		switch (fileType) {
+		if (file.getMimeType() == null)
+			file.setMimeType(FileTypeDetector.detectMimeType(file));
+		EidasParser parser = createParser(file, workspace);
+		file.setParser(parser);
+		return parser;
+	}
+
+	private static EidasParser createParser(Artifact file, Workspace workspace) {
+		switch (file.getFileType()) {
 		case SIG_FILE:
-			return new SigEidasParser(file, uniqueDir);
+			return new SigEidasParser(file, workspace);
 		case PDF_FILE:
-			return new PdfEidasParser(file, uniqueDir);
+			return new PdfEidasParser(file, workspace);
 		case XML_FILE:
-			return new XmlEidasParser(file, uniqueDir);
+			return new XmlEidasParser(file, workspace);
 		case ZIP_FILE:
-			return new ZipEidasParser(file, uniqueDir);
+			return new ZipEidasParser(file, workspace);
+		case ASIC_S_FILE:
+		case ASIC_E_FILE:
+			return new AsicEidasParser(file, workspace);
 		default:
-			return new DefaultEidasParser(file, uniqueDir);
+			return new DefaultEidasParser(file, workspace);
 		}
 	}
 }
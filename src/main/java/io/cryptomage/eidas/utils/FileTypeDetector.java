@@ -0,0 +1,195 @@
+package io.cryptomage.eidas.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+
+import org.apache.log4j.Logger;
+import org.apache.tika.detect.DefaultDetector;
+import org.apache.tika.detect.Detector;
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MimeTypes;
+
+import io.cryptomage.eidas.workspace.Artifact;
+
+/**
+ * Class used to detect MIME type of request files.
+ *
+ * File types handled by file parsers (PDF, ZIP, ASiC, XML and PKCS#7
+ * signature) are recognised from the first bytes of the file, without
+ * creating any objects. Other files, and files which header is ambiguous, are passed to Apache Tika.
+ * Tika detector is created once and shared, as detection is thread safe.
+ */
+public final class FileTypeDetector {
+	private static final Logger logger = Logger.getLogger(FileTypeDetector.class);
+
+	public static final String PDF = "application/pdf";
+	public static final String ZIP = "application/zip";
+	public static final String XML = "application/xml";
+	public static final String PKCS7_SIGNATURE = "application/pkcs7-signature";
+	public static final String ASIC_S = "application/vnd.etsi.asic-s+zip";
+	public static final String ASIC_E = "application/vnd.etsi.asic-e+zip";
+
+	/**
+	 * Number of bytes needed to recognise file type from its header.
+	 */
+	public static final int HEADER_SIZE = 128;
+
+	private static final byte[] PDF_MAGIC = { '%', 'P', 'D', 'F', '-' };
+	private static final byte[] ZIP_MAGIC = { 'P', 'K', 3, 4 };
+	private static final byte[] XML_MAGIC = { '<', '?', 'x', 'm', 'l' };
+	private static final byte[] UTF8_BOM = { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF };
+	// OID 1.2.840.113549.1.7.2 (signedData)
+	private static final byte[] SIGNED_DATA_OID = { 0x06, 0x09, 0x2A, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xF7,
+			0x0D, 0x01, 0x07, 0x02 };
+	// First entries of zip containers, which Tika recognises as other types
+	private static final byte[] MIMETYPE_ENTRY = "mimetype".getBytes();
+	private static final byte[][] ZIP_CONTAINER_ENTRIES = { MIMETYPE_ENTRY, "[Content_Types].xml".getBytes(),
+			"META-INF/".getBytes() };
+	private static final String[] ASIC_TYPES = { ASIC_S, ASIC_E };
+	private static final byte[][] ASIC_MIMETYPES = { ASIC_S.getBytes(StandardCharsets.US_ASCII),
+			ASIC_E.getBytes(StandardCharsets.US_ASCII) };
+	private static final int ZIP_METHOD_OFFSET = 8;
+	private static final int ZIP_NAME_LENGTH_OFFSET = 26;
+	private static final int ZIP_EXTRA_LENGTH_OFFSET = 28;
+	private static final int ZIP_ENTRY_NAME_OFFSET = 30;
+
+	private static final Detector TIKA_DETECTOR = new DefaultDetector(MimeTypes.getDefaultMimeTypes());
+	private static final ThreadLocal<byte[]> HEADER_BUFFER = ThreadLocal.withInitial(() -> new byte[HEADER_SIZE]);
+
+	private FileTypeDetector() {
+	}
+
+	/**
+	 * Method used to detect MIME type of a file.
+	 *
+	 * @param file
+	 *            to check
+	 * @return MIME type without parameters, e.g. application/pdf
+	 * @throws IOException
+	 */
+	public static String detectMimeType(Artifact file) throws IOException {
+		String mimeType;
+		if (file.isInMemory()) {
+			byte[] data = file.getData();
+			mimeType = sniff(data, Math.min(data.length, HEADER_SIZE));
+		} else {
+			byte[] header = HEADER_BUFFER.get();
+			int length;
+			try (InputStream is = file.openStream()) {
+				length = readHeader(is, header);
+			}
+			mimeType = sniff(header, length);
+		}
+
+		if (mimeType != null)
+			return mimeType;
+		logger.info("Detecting file type with Tika");
+		return detectWithTika(file);
+	}
+
+	/**
+	 * Method used to recognise file type from its header.
+	 *
+	 * @param header
+	 *            first bytes of the file
+	 * @param length
+	 *            number of valid bytes in header
+	 * @return MIME type or null if file type was not recognised.
+	 */
+	public static String sniff(byte[] header, int length) {
+		int offset = startsWith(header, length, 0, UTF8_BOM) ? UTF8_BOM.length : 0;
+		if (startsWith(header, length, offset, PDF_MAGIC))
+			return PDF;
+		if (startsWith(header, length, offset, XML_MAGIC))
+			return XML;
+		if (startsWith(header, length, 0, ZIP_MAGIC)) {
+			String asicType = getAsicType(header, length);
+			if (asicType != null)
+				return asicType;
+			return isZipContainer(header, length) ? null : ZIP;
+		}
+		if (isSignedData(header, length))
+			return PKCS7_SIGNATURE;
+		return null;
+	}
+
+	/**
+	 * Method used to detect MIME type of a file with Apache Tika.
+	 *
+	 * @param file
+	 *            to check
+	 * @return MIME type without parameters, e.g. application/pdf
+	 * @throws IOException
+	 */
+	public static String detectWithTika(Artifact file) throws IOException {
+		try (TikaInputStream tikaIS = file.isInMemory() ? TikaInputStream.get(file.getData())
+				: TikaInputStream.get(file.openStream())) {
+			return TIKA_DETECTOR.detect(tikaIS, new Metadata()).getBaseType().toString();
+		}
+	}
+
+	private static int readHeader(InputStream is, byte[] header) throws IOException {
+		int length = 0;
+		int read;
+		while (length < header.length && (read = is.read(header, length, header.length - length)) != -1) {
+			length += read;
+		}
+		return length;
+	}
+
+	private static boolean isZipContainer(byte[] header, int length) {
+		for (byte[] entry : ZIP_CONTAINER_ENTRIES) {
+			if (startsWith(header, length, ZIP_ENTRY_NAME_OFFSET, entry))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * ASiC container starts with stored mimetype entry, which contents is the
+	 * container type.
+	 */
+	private static String getAsicType(byte[] header, int length) {
+		if (!startsWith(header, length, ZIP_ENTRY_NAME_OFFSET, MIMETYPE_ENTRY)
+				|| readShort(header, ZIP_METHOD_OFFSET) != ZipEntry.STORED)
+			return null;
+		int offset = ZIP_ENTRY_NAME_OFFSET + readShort(header, ZIP_NAME_LENGTH_OFFSET)
+				+ readShort(header, ZIP_EXTRA_LENGTH_OFFSET);
+		for (int i = 0; i < ASIC_TYPES.length; i++) {
+			if (startsWith(header, length, offset, ASIC_MIMETYPES[i]))
+				return ASIC_TYPES[i];
+		}
+		return null;
+	}
+
+	private static int readShort(byte[] header, int offset) {
+		return (header[offset] & 0xFF) | (header[offset + 1] & 0xFF) << 8;
+	}
+
+	/**
+	 * DER or BER encoded ContentInfo: SEQUENCE with any length form, followed
+	 * by signedData content type.
+	 */
+	private static boolean isSignedData(byte[] header, int length) {
+		if (length < 2 || header[0] != 0x30)
+			return false;
+		int lengthByte = header[1] & 0xFF;
+		int offset = 2;
+		if (lengthByte > 0x80)
+			offset += lengthByte - 0x80;
+		return startsWith(header, length, offset, SIGNED_DATA_OID);
+	}
+
+	private static boolean startsWith(byte[] header, int length, int offset, byte[] magic) {
+		if (offset + magic.length > length)
+			return false;
+		for (int i = 0; i < magic.length; i++) {
+			if (header[offset + i] != magic[i])
+				return false;
+		}
+		return true;
+	}
+}
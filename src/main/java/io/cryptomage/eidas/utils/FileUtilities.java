@@ -1,31 +1,33 @@
 package io.cryptomage.eidas.utils;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 
 import org.apache.log4j.Logger;
-import org.apache.tika.detect.DefaultDetector;
-import org.apache.tika.detect.Detector;
-import org.apache.tika.io.TikaInputStream;
-import org.apache.tika.metadata.Metadata;
-import org.apache.tika.mime.MimeTypes;
 import org.springframework.stereotype.Component;
 import org.springframework.web.multipart.MultipartFile;
 import org.w3c.dom.Document;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import io.cryptomage.eidas.workspace.Artifact;
+
 /**
  * Class implementing file utilities.
  * 
@@ -34,34 +36,12 @@ import org.xml.sax.SAXException;
 @Component
 public final class FileUtilities {
 	private static final Logger logger = Logger.getLogger(FileUtilities.class);
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+	private static final ThreadLocal<byte[]> COPY_BUFFER = ThreadLocal.withInitial(() -> new byte[COPY_BUFFER_SIZE]);
 
 	private FileUtilities() {
 	}
 
-	/**
-	 * Method used to detect file type.
-	 * 
-	 * @param file
-	 *            to check
-	 * @return file type
-	 * @throws IOException
-	 */
-	public static String detectFileType(File file) throws IOException {
-		logger.info("Detecting file type");
-		Detector detector = new DefaultDetector(MimeTypes.getDefaultMimeTypes());
-		final Metadata metadata = new Metadata();
-
-		TikaInputStream tikaIS = null;
-		try {
-			tikaIS = TikaInputStream.get(file);
-			return detector.detect(tikaIS, metadata).getSubtype();
-		} finally {
-			if (tikaIS != null) {
-				tikaIS.close();
-			}
-		}
-	}
-
 	/**
 	 * Method used to create a directory with unique name.
 	 * 
@@ -95,16 +75,74 @@ public final class FileUtilities {
 	public static File createFileFromMultipartFile(String dir, MultipartFile multipartFile) throws IOException {
 		if (null == multipartFile || multipartFile.isEmpty())
 			return new File(dir + "emptyConstraints");
+		return streamMultipartFile(dir, multipartFile, 0).getFile();
+	}
+
+	/**
+	 * Method used to stream multipart file to a file. The upload is copied
+	 * through a reusable buffer, so it is never held in memory as a whole.
+	 * Size and SHA-256 hash of the file are computed while copying.
+	 * 
+	 * @param dir
+	 *            Directory in which file will be created.
+	 * @param multipartFile
+	 *            Object to be streamed.
+	 * @param maxSize
+	 *            Maximum number of bytes which can be written, 0 or less
+	 *            disables the check.
+	 * @return streamed file with its size and hash.
+	 * @throws IOException
+	 *             thrown if file couldn't be written or it exceeds maxSize.
+	 */
+	public static StreamedFile streamMultipartFile(String dir, MultipartFile multipartFile, long maxSize)
+			throws IOException {
 		File file = new File(dir + multipartFile.getOriginalFilename());
-		FileOutputStream fos = new FileOutputStream(file);
-		fos.write(multipartFile.getBytes());
-		fos.close();
+		try (InputStream is = multipartFile.getInputStream()) {
+			return streamToFile(is, file, maxSize);
+		}
+	}
+
+	/**
+	 * Method used to copy a stream to a file through a reusable buffer. Size
+	 * and SHA-256 hash of the file are computed while copying.
+	 * 
+	 * @param is
+	 *            stream to copy, it is not closed by this method
+	 * @param file
+	 *            file to create
+	 * @param maxSize
+	 *            Maximum number of bytes which can be written, 0 or less
+	 *            disables the check.
+	 * @return streamed file with its size and hash.
+	 * @throws IOException
+	 *             thrown if file couldn't be written or it exceeds maxSize.
+	 */
+	public static StreamedFile streamToFile(InputStream is, File file, long maxSize) throws IOException {
+		Hasher hasher = Hashing.sha256().newHasher();
+		byte[] buffer = COPY_BUFFER.get();
+		long size = 0;
+		try (OutputStream os = new FileOutputStream(file)) {
+			int read;
+			while ((read = is.read(buffer)) != -1) {
+				size += read;
+				if (maxSize > 0 && size > maxSize) {
+					throw new IOException("File " + file.getName() + " exceeds maximum size of " + maxSize + " bytes");
+				}
+				hasher.putBytes(buffer, 0, read);
+				os.write(buffer, 0, read);
+			}
+		} catch (IOException e) {
+			if (file.exists() && !file.delete())
+				logger.error("Couldn't remove partially written file " + file.getAbsolutePath());
+			throw e;
+		}
+
 		if (!file.isFile()) {
-			String errorMsg = "Couldn't create file from multipart file";
+			String errorMsg = "Couldn't create file from stream";
 			logger.error(errorMsg);
 			throw new IOException(errorMsg);
 		}
-		return file;
+		return new StreamedFile(file, size, hasher.hash().toString());
 	}
 
 	/**
@@ -117,14 +155,10 @@ public final class FileUtilities {
 	 * @return A list that has all elements of first list and those from second
 	 *         list that are not duplicates.
 	 */
-	public static List<File> mergeFileListsWithoutDuplicates(List<File> first, List<File> second) {
-		List<File> ret = new ArrayList<>();
-		ret.addAll(first);
-		for (File file : second) {
-			if (!ret.contains(file))
-				ret.add(file);
-		}
-		return ret;
+	public static List<Artifact> mergeFileListsWithoutDuplicates(List<Artifact> first, List<Artifact> second) {
+		Set<Artifact> ret = new LinkedHashSet<>(first);
+		ret.addAll(second);
+		return new ArrayList<>(ret);
 	}
 
 	/**
@@ -135,48 +169,27 @@ public final class FileUtilities {
 	 * @return whether a file is valid or not
 	 */
 	public static boolean checkIfXmlIsValid(File xmlFile) {
-		DocumentBuilder dBuilder = getDocumentBuilder();
-		if (dBuilder == null)
-			return false;
-
-		try {
-			dBuilder.parse(xmlFile);
-		} catch (SAXException | IOException e) {
+		try (InputStream is = new FileInputStream(xmlFile)) {
+			XmlProcessor.checkWellFormed(is);
+		} catch (XMLStreamException | IOException e) {
 			logger.info("This is not a valid xml file,  " + e);
 			return false;
 		}
 		return true;
 	}
 
-	private static DocumentBuilder getDocumentBuilder() {
-		DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-		DocumentBuilder dBuilder = null;
-		try {
-			dBuilder = dbFactory.newDocumentBuilder();
-		} catch (ParserConfigurationException e1) {
-			logger.error("There was a problem with document builder,  " + e1);
-		}
-		return dBuilder;
-	}
-
 	/**
 	 * Method used to load xml from string expression
 	 * 
 	 * @param xml
 	 *            string
 	 * @return xml Document
-	 * @throws ParserConfigurationException
-	 * @throws IOException
-	 * @throws SAXException
 	 */
 	public static Document loadXMLFromString(String xml) {
-		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-		DocumentBuilder builder;
 		InputSource is = new InputSource(new StringReader(xml));
 		try {
-			builder = factory.newDocumentBuilder();
-			return builder.parse(is);
-		} catch (SAXException | IOException | ParserConfigurationException e) {
+			return XmlProcessor.parse(is);
+		} catch (SAXException | IOException e) {
 			logger.info("Couldn't load xml from string: " + e);
 		}
 		return null;
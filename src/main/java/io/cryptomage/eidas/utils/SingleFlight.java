@@ -0,0 +1,109 @@
+package io.cryptomage.eidas.utils;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class used to coalesce concurrent calls of the same operation.
+ * 
+ * The first caller for a given key executes the operation, every caller
+ * asking for the same key while it is still running waits for it and gets
+ * the same result (or exception). The key is released when the operation
+ * finishes, so later callers execute it again.
+ *
+ * @param <K>
+ *            operation key type
+ * @param <V>
+ *            operation result type
+ */
+public class SingleFlight<K, V> {
+	private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+	private final AtomicLong executed = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	/**
+	 * Operation executed by the first caller.
+	 *
+	 * @param <V>
+	 *            operation result type
+	 */
+	@FunctionalInterface
+	public interface Operation<V> {
+		V execute() throws IOException;
+	}
+
+	/**
+	 * Method used to execute the operation or wait for the same operation
+	 * started by another thread.
+	 * 
+	 * @param key
+	 *            operation key
+	 * @param operation
+	 *            operation to execute
+	 * @return operation result
+	 * @throws IOException
+	 *             thrown by the operation
+	 */
+	public V execute(K key, Operation<V> operation) throws IOException {
+		CompletableFuture<V> future = new CompletableFuture<>();
+		CompletableFuture<V> running = inFlight.putIfAbsent(key, future);
+		if (running != null) {
+			coalesced.incrementAndGet();
+			return await(running);
+		}
+
+		executed.incrementAndGet();
+		try {
+			V result = operation.execute();
+			future.complete(result);
+			return result;
+		} catch (IOException | RuntimeException | Error e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(key, future);
+		}
+	}
+
+	/**
+	 * @return number of operations which were executed.
+	 */
+	public long getExecutedCount() {
+		return executed.get();
+	}
+
+	/**
+	 * @return number of calls which waited for an already running operation.
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	/**
+	 * @return number of operations running at the moment.
+	 */
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+
+	private V await(CompletableFuture<V> running) throws IOException {
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the same operation", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package io.cryptomage.eidas.utils;
+
+import java.io.File;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Class describing a file which was streamed to the request directory.
+ *
+ * Size and SHA-256 hash are computed in the same pass in which the file is
+ * written, so they can be used without reading the file again.
+ */
+@Getter
+@AllArgsConstructor
+public class StreamedFile {
+	private File file;
+	private long size;
+	private String sha256;
+}
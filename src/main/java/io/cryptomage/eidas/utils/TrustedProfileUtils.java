@@ -1,16 +1,15 @@
 package io.cryptomage.eidas.utils;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.io.InputStream;
 import java.util.List;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.springframework.stereotype.Component;
 
 import eu.europa.esig.dss.DSSDocument;
+import io.cryptomage.eidas.workspace.Artifact;
 import io.cryptomage.eidas.verifysignaturewsdl.ArrayOfAttachment;
 import io.cryptomage.eidas.verifysignaturewsdl.Attachment;
 
@@ -35,9 +34,9 @@ public final class TrustedProfileUtils {
 	 */
 	public static byte[] getByteFromDssDocument(DSSDocument document) throws IOException {
 		logger.info("Converting dss document to byte array");
-		Path filePath = Paths.get(document.getAbsolutePath());
-
-		return Files.readAllBytes(filePath);
+		try (InputStream is = document.openStream()) {
+			return IOUtils.toByteArray(is);
+		}
 	}
 
 	/**
@@ -47,23 +46,21 @@ public final class TrustedProfileUtils {
 	 * @return
 	 * @throws IOException
 	 */
-	public static ArrayOfAttachment getArrayOfAttachmentsFromFileList(List<File> detachedFiles) throws IOException {
+	public static ArrayOfAttachment getArrayOfAttachmentsFromFileList(List<Artifact> detachedFiles) throws IOException {
 		logger.info("Converting list of file to wsdl ArrayOfAttachment");
 		ArrayOfAttachment array = new ArrayOfAttachment();
 		List<Attachment> list = array.getAttachment();
-		for (File file : detachedFiles) {
+		for (Artifact file : detachedFiles) {
 			Attachment attachment = setupAttachment(file);
 			list.add(attachment);
 		}
 		return array;
 	}
 
-	private static Attachment setupAttachment(File file) throws IOException {
+	private static Attachment setupAttachment(Artifact file) throws IOException {
 		Attachment attachment = new Attachment();
 		attachment.setName(file.getName());
-		Path filePath = Paths.get(file.getAbsolutePath());
-		byte[] attachmentContents = Files.readAllBytes(filePath);
-		attachment.setContent(attachmentContents);
+		attachment.setContent(file.readBytes());
 		return attachment;
 	}
 }
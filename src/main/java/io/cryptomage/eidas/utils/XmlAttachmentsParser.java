@@ -3,24 +3,36 @@
  */
 package io.cryptomage.eidas.utils;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Deque;
 import java.util.List;
 
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
 import org.apache.commons.io.FilenameUtils;
 import org.apache.log4j.Logger;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+
+import io.cryptomage.eidas.workspace.Artifact;
+import io.cryptomage.eidas.workspace.Workspace;
+import lombok.Getter;
 
 /**
  * Class used to parse xml files for attachments.
- * 
+ *
+ * The file is read in a single StAX pass, which collects attachments together
+ * with Reference URIs and Description file names used to find detached files.
+ * URIs of References with Transforms are collected too, content of such
+ * references is needed to check them, not only its digest.
+ * Only text of the elements of interest is kept, so memory used by the pass
+ * doesn't depend on the size of the document. Base64 attachments are decoded
+ * from the character stream straight into the workspace.
+ *
  * @author Dariusz Napłoszek
  */
 public class XmlAttachmentsParser {
@@ -37,117 +49,336 @@ public class XmlAttachmentsParser {
 	private static final String TAGNAME_MD5 = "md5";
 	private static final String TAGNAME_ATTACHMENT_DATA = "DaneZalacznika";
 	private static final String TAGNAME_OBJECT = "Object";
+	private static final String TAGNAME_REFERENCE = "Reference";
+	private static final String TAGNAME_TRANSFORM = "Transform";
+	private static final String TAGNAME_DESCRIPTION = "Description";
+	private static final String URI_ATTRIBUTE = "URI";
+	private static final String DESCRIPTION_FILENAME = "filename=\"";
 
-	private File signedFile;
+	private static final int CHAR_BUFFER_SIZE = 8 * 1024;
+
+	private static final ThreadLocal<char[]> CHAR_BUFFER = ThreadLocal.withInitial(() -> new char[CHAR_BUFFER_SIZE]);
+
+	private enum Mode {
+		CRD_GOV, W3, OTHER
+	}
+
+	private Artifact signedFile;
+	private Workspace workspace;
 
 	/**
 	 * Class constructor assigns private fields.
-	 * 
-	 * @param savePath
-	 *            path to save parsed attachments,
+	 *
 	 * @param signedFile
 	 *            file to check for attachments
+	 * @param workspace
+	 *            workspace to save parsed attachments
 	 */
-	public XmlAttachmentsParser(File signedFile) {
+	public XmlAttachmentsParser(Artifact signedFile, Workspace workspace) {
 		this.signedFile = signedFile;
+		this.workspace = workspace;
 	}
 
 	/**
-	 * Method used to initiate checking for attachments in xml file. It will
-	 * check the namespace of the file and then apply appropriate function to
-	 * handle file attachment extraction.
-	 * 
-	 * @param document
-	 *            to check for attachments
-	 * @return list of files attached to the xml file
-	 * @throws IOException
+	 * Result of a single pass over xml file.
 	 */
-	public List<File> checkForAttachments(Document document) throws IOException {
-		List<File> fileList;
+	@Getter
+	public static class ScanResult {
+		private final List<Artifact> attachedFiles = new ArrayList<>();
+		private final List<String> referenceUris = new ArrayList<>();
+		private final List<String> transformedReferenceUris = new ArrayList<>();
+		private final List<String> descriptionFileNames = new ArrayList<>();
+		private boolean attachmentsExtracted;
+	}
 
-		String namespace = document.getDocumentElement().getNamespaceURI();
-		if (namespace == null)
-			namespace = "";
-		switch (namespace) {
-		case CRD_GOV_NAMESPACE_1:
-		case CRD_GOV_NAMESPACE_2:
-			fileList = checkForAttachmentsInCrdGovNamespace(document);
-			break;
-		case W3_NAMESPACE:
-			fileList = checkForAttachmentsInW3Namespace(document);
-			break;
-		default:
-			fileList = checkForAttachmentsInOtherNamespace(document);
+	/**
+	 * Method used to scan xml file. Namespace of the root element decides how
+	 * attachments are recognised, Reference URIs and Description file names
+	 * are collected in the same pass.
+	 *
+	 * @param is
+	 *            xml file contents, it is not closed by this method
+	 * @param extractAttachments
+	 *            whether attachments should be decoded and saved in the
+	 *            workspace
+	 * @return attachments and names of detached files found in the xml file
+	 * @throws IOException
+	 *             thrown if file is not a well formed xml or attachment
+	 *             couldn't be saved.
+	 */
+	public ScanResult scan(InputStream is, boolean extractAttachments) throws IOException {
+		ScanResult result = new ScanResult();
+		result.attachmentsExtracted = extractAttachments;
+		try {
+			return XmlProcessor.parse(is, reader -> {
+				new Scan(reader, result, extractAttachments).run();
+				return result;
+			});
+		} catch (XMLStreamException | IllegalArgumentException e) {
+			throw new IOException("Couldn't parse xml file " + signedFile.getPath() + ": " + e.getMessage(), e);
 		}
-		return fileList;
 	}
 
-	private List<File> checkForAttachmentsInCrdGovNamespace(Document document) throws IOException {
-		List<File> fileList = new ArrayList<>();
+	/**
+	 * State of a single pass. Text of a description is collected from the
+	 * start of its element up to its end, including text of nested elements.
+	 * Attachments are decoded while they are read, see
+	 * {@link ElementTextStream}.
+	 */
+	private class Scan {
+		private final XMLStreamReader reader;
+		private final ScanResult result;
+		private final boolean extractAttachments;
+		private final Deque<String[]> attributesStack = new ArrayDeque<>();
+		private Mode mode;
+		private int depth;
+		private int md5Count;
+		private int objectCount;
+
+		private StringBuilder descriptionText;
+		private int descriptionDepth;
 
-		NodeList aList = document.getElementsByTagNameNS("*", TAGNAME_MD5);
-		for (int i = 0; i < aList.getLength(); i++) {
-			Node node = aList.item(i);
-			byte[] buffer = Base64.getDecoder().decode(node.getTextContent().getBytes());
-			File attachment = parseAttachment(buffer, null, i);
-			if (attachment.isFile())
-				fileList.add(attachment);
+		private String referenceUri;
+		private int referenceDepth;
+
+		Scan(XMLStreamReader reader, ScanResult result, boolean extractAttachments) {
+			this.reader = reader;
+			this.result = result;
+			this.extractAttachments = extractAttachments;
+		}
+
+		void run() throws XMLStreamException, IOException {
+			while (reader.hasNext()) {
+				switch (reader.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					startElement();
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					characters();
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					endElement();
+					break;
+				default:
+					break;
+				}
+			}
 		}
-		return fileList;
-	}
 
-	private List<File> checkForAttachmentsInOtherNamespace(Document document) throws IOException {
-		List<File> fileList = new ArrayList<>();
+		private void startElement() throws IOException {
+			depth++;
+			String localName = reader.getLocalName();
+			String namespace = reader.getNamespaceURI();
+			if (mode == null)
+				mode = getMode(namespace);
 
-		NodeList aList = document.getElementsByTagNameNS("*", TAGNAME_ATTACHMENT_DATA);
-		for (int i = 0; i < aList.getLength(); i++) {
-			Node node = aList.item(i);
-			if (node.getNamespaceURI().startsWith(CRD_GOV_STRUCT)) {
-				Element parent = (Element) node.getParentNode();
-				if (!BASE64.equals(parent.getAttribute(ENCODING_PL))) {
-					continue;
+			if (TAGNAME_REFERENCE.equals(localName)) {
+				String uri = reader.getAttributeValue(null, URI_ATTRIBUTE);
+				if (uri != null) {
+					result.referenceUris.add(uri);
+					referenceUri = uri;
+					referenceDepth = depth;
 				}
-				byte[] buffer = Base64.getDecoder().decode(node.getTextContent().trim().getBytes());
-				String fileName = parent.getAttribute(FILENAME_ATTRIBUTE);
-				File attachment = parseAttachment(buffer, fileName, 0);
-				if (attachment.isFile())
-					fileList.add(attachment);
+			} else if (TAGNAME_TRANSFORM.equals(localName) && referenceUri != null) {
+				if (!result.transformedReferenceUris.contains(referenceUri))
+					result.transformedReferenceUris.add(referenceUri);
+			} else if (TAGNAME_DESCRIPTION.equals(localName) && descriptionText == null) {
+				descriptionText = new StringBuilder();
+				descriptionDepth = depth;
 			}
+
+			String attachmentPath = extractAttachments ? findAttachmentPath(localName, namespace) : null;
+			attributesStack.push(new String[] { reader.getAttributeValue(null, ENCODING_PL),
+					reader.getAttributeValue(null, FILENAME_ATTRIBUTE) });
+			if (attachmentPath != null) {
+				ElementTextStream text = new ElementTextStream(reader);
+				result.attachedFiles.add(parseAttachment(Base64.getMimeDecoder().wrap(text), attachmentPath));
+				// decoder stops at padding, text after it is skipped
+				text.skipToEnd();
+				endElement();
+			}
+		}
+
+		private String findAttachmentPath(String localName, String namespace) {
+			switch (mode) {
+			case CRD_GOV:
+				if (TAGNAME_MD5.equals(localName))
+					return getAttachmentPath(null, md5Count++);
+				break;
+			case W3:
+				if (TAGNAME_OBJECT.equals(localName)) {
+					int number = objectCount++;
+					if (W3_ENCODING.equals(reader.getAttributeValue(null, ENCODING)))
+						return getAttachmentPath(null, number);
+				}
+				break;
+			default:
+				String[] parentAttributes = attributesStack.peek();
+				if (TAGNAME_ATTACHMENT_DATA.equals(localName) && namespace != null
+						&& namespace.startsWith(CRD_GOV_STRUCT) && parentAttributes != null
+						&& BASE64.equals(parentAttributes[0])) {
+					return getAttachmentPath(parentAttributes[1] != null ? parentAttributes[1] : "", 0);
+				}
+			}
+			return null;
+		}
+
+		private void characters() {
+			if (descriptionText != null)
+				descriptionText.append(reader.getText());
+		}
+
+		private void endElement() {
+			if (descriptionText != null && descriptionDepth == depth) {
+				String fileName = getDescriptionFileName(descriptionText.toString());
+				if (fileName != null)
+					result.descriptionFileNames.add(fileName);
+				descriptionText = null;
+			}
+			if (referenceUri != null && referenceDepth == depth)
+				referenceUri = null;
+			attributesStack.pop();
+			depth--;
 		}
-		return fileList;
 	}
 
-	private List<File> checkForAttachmentsInW3Namespace(Document document) throws IOException {
-		List<File> fileList = new ArrayList<>();
+	/**
+	 * Stream of text of the current element, including text of nested
+	 * elements. Characters are copied from the reader to a reusable buffer, so
+	 * attachment text is never held as a whole. The stream ends at the end of
+	 * the element and leaves the reader at its END_ELEMENT event.
+	 */
+	private static class ElementTextStream extends InputStream {
+		private final XMLStreamReader reader;
+		private final char[] chars = CHAR_BUFFER.get();
+		private int position;
+		private int length;
+		private boolean inText;
+		private int textOffset;
+		private int nesting;
+		private boolean finished;
+
+		ElementTextStream(XMLStreamReader reader) {
+			this.reader = reader;
+		}
 
-		NodeList aList = document.getElementsByTagNameNS("*", TAGNAME_OBJECT);
-		for (int i = 0; i < aList.getLength(); i++) {
-			Node node = aList.item(i);
-			NamedNodeMap attributes = node.getAttributes();
-			if (attributes != null && attributes.getNamedItem(ENCODING) != null
-					&& W3_ENCODING.equals(attributes.getNamedItem(ENCODING).getTextContent())) {
-				byte[] buffer = Base64.getDecoder().decode(node.getTextContent().getBytes());
+		@Override
+		public int read() throws IOException {
+			if (!fill())
+				return -1;
+			return toByte(chars[position++]);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!fill())
+				return -1;
+			int count = Math.min(len, length - position);
+			for (int i = 0; i < count; i++) {
+				b[off + i] = (byte) toByte(chars[position++]);
+			}
+			return count;
+		}
+
+		void skipToEnd() throws IOException {
+			while (fill()) {
+				position = length;
+			}
+		}
+
+		private boolean fill() throws IOException {
+			try {
+				while (position == length) {
+					if (inText) {
+						length = reader.getTextCharacters(textOffset, chars, 0, chars.length);
+						position = 0;
+						textOffset += length;
+						inText = length > 0;
+						continue;
+					}
+					if (finished)
+						return false;
+					nextEvent();
+				}
+				return true;
+			} catch (XMLStreamException e) {
+				throw new IOException("Couldn't read attachment: " + e.getMessage(), e);
+			}
+		}
 
-				File attachment = parseAttachment(buffer, null, i);
-				if (attachment.isFile())
-					fileList.add(attachment);
+		private void nextEvent() throws XMLStreamException {
+			switch (reader.next()) {
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				inText = true;
+				textOffset = 0;
+				break;
+			case XMLStreamConstants.START_ELEMENT:
+				nesting++;
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				if (nesting == 0)
+					finished = true;
+				else
+					nesting--;
+				break;
+			case XMLStreamConstants.END_DOCUMENT:
+				finished = true;
+				break;
+			default:
+				break;
 			}
 		}
-		return fileList;
+
+		/**
+		 * Base64 text is ASCII, other characters are mapped to a space, which
+		 * is skipped by the MIME decoder.
+		 */
+		private static int toByte(char c) {
+			return c < 0x80 ? c : ' ';
+		}
 	}
 
-	private File parseAttachment(byte[] buffer, String fileName, int attachmentNumber) throws IOException {
-		String filePath;
+	private static Mode getMode(String namespace) {
+		if (namespace == null)
+			return Mode.OTHER;
+		switch (namespace) {
+		case CRD_GOV_NAMESPACE_1:
+		case CRD_GOV_NAMESPACE_2:
+			return Mode.CRD_GOV;
+		case W3_NAMESPACE:
+			return Mode.W3;
+		default:
+			return Mode.OTHER;
+		}
+	}
+
+	private static String getDescriptionFileName(String description) {
+		int index = description.lastIndexOf(DESCRIPTION_FILENAME);
+		if (index == -1)
+			return null;
+		index += DESCRIPTION_FILENAME.length();
+		int end = description.indexOf('"', index);
+		if (end == -1)
+			return null;
+		return description.substring(index, end);
+	}
+
+	private String getAttachmentPath(String fileName, int attachmentNumber) {
 		if (fileName == null)
-			filePath = signedFile.getParent() + "/" + "Zal" + attachmentNumber
+			return signedFile.getParentPath() + "Zal" + attachmentNumber
 					+ FilenameUtils.removeExtension(signedFile.getName());
-		else
-			filePath = signedFile.getParent() + "/" + fileName;
-		File attachedFile = new File(filePath);
-		FileOutputStream fos = new FileOutputStream(attachedFile);
-		fos.write(buffer);
-		fos.close();
-		logger.info("File created in " + attachedFile.getAbsolutePath());
+		return signedFile.getParentPath() + fileName;
+	}
+
+	private Artifact parseAttachment(InputStream is, String filePath) throws IOException {
+		Artifact attachedFile = workspace.write(filePath, is, 0);
+		logger.info("File created in " + attachedFile.getPath());
 		return attachedFile;
 	}
 }
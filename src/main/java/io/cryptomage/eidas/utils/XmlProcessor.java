@@ -0,0 +1,226 @@
+package io.cryptomage.eidas.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+import org.w3c.dom.Document;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+/**
+ * Class providing xml parsing for the whole application.
+ *
+ * Factories are looked up and configured once. Document builders are kept
+ * per thread, as they are not thread safe but can be reused. All parsers
+ * have secure processing enabled, external entities and DTDs are not
+ * loaded. Number of parses and time spent in them is counted and exposed in
+ * metrics endpoint.
+ */
+public final class XmlProcessor {
+	private static final Logger logger = Logger.getLogger(XmlProcessor.class);
+
+	private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = createDocumentBuilderFactory();
+	private static final XMLInputFactory INPUT_FACTORY = createInputFactory();
+	private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER = ThreadLocal
+			.withInitial(XmlProcessor::createDocumentBuilder);
+
+	private static final LongAdder documentParses = new LongAdder();
+	private static final LongAdder documentParseNanos = new LongAdder();
+	private static final LongAdder streamParses = new LongAdder();
+	private static final LongAdder streamParseNanos = new LongAdder();
+	private static final LongAdder failedParses = new LongAdder();
+
+	private XmlProcessor() {
+	}
+
+	/**
+	 * Handler of a streamed xml file.
+	 *
+	 * @param <T>
+	 *            type of the handling result
+	 */
+	@FunctionalInterface
+	public interface StreamHandler<T> {
+		/**
+		 * Method called with a reader positioned at the start of the document.
+		 *
+		 * @param reader
+		 *            reader of the xml file, it is closed after the handler
+		 *            returns
+		 * @return handling result
+		 * @throws XMLStreamException
+		 * @throws IOException
+		 */
+		T handle(XMLStreamReader reader) throws XMLStreamException, IOException;
+	}
+
+	/**
+	 * Method used to parse xml to a document.
+	 *
+	 * @param source
+	 *            xml source
+	 * @return parsed document
+	 * @throws SAXException
+	 *             thrown if source is not a well formed xml.
+	 * @throws IOException
+	 */
+	public static Document parse(InputSource source) throws SAXException, IOException {
+		long start = System.nanoTime();
+		boolean parsed = false;
+		try {
+			Document document = DOCUMENT_BUILDER.get().parse(source);
+			parsed = true;
+			return document;
+		} finally {
+			documentParses.increment();
+			documentParseNanos.add(System.nanoTime() - start);
+			if (!parsed)
+				failedParses.increment();
+		}
+	}
+
+	/**
+	 * Method used to read xml with a StAX reader, without building a
+	 * document.
+	 *
+	 * @param is
+	 *            xml contents, it is not closed by this method
+	 * @param handler
+	 *            handler reading the document
+	 * @return handling result
+	 * @throws XMLStreamException
+	 *             thrown if contents is not a well formed xml.
+	 * @throws IOException
+	 */
+	public static <T> T parse(InputStream is, StreamHandler<T> handler) throws XMLStreamException, IOException {
+		long start = System.nanoTime();
+		boolean parsed = false;
+		XMLStreamReader reader = null;
+		try {
+			reader = INPUT_FACTORY.createXMLStreamReader(is);
+			T result = handler.handle(reader);
+			parsed = true;
+			return result;
+		} finally {
+			closeQuietly(reader);
+			streamParses.increment();
+			streamParseNanos.add(System.nanoTime() - start);
+			if (!parsed)
+				failedParses.increment();
+		}
+	}
+
+	/**
+	 * Method used to check if xml is well formed. The document is read with a
+	 * StAX reader, so it is not kept in memory.
+	 *
+	 * @param is
+	 *            xml contents, it is not closed by this method
+	 * @throws XMLStreamException
+	 *             thrown if contents is not a well formed xml.
+	 * @throws IOException
+	 */
+	public static void checkWellFormed(InputStream is) throws XMLStreamException, IOException {
+		parse(is, reader -> {
+			while (reader.hasNext()) {
+				reader.next();
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * Method allowing to get parsing counters.
+	 *
+	 * @return counters in form of a JSON object
+	 */
+	public static JSONObject getMetrics() {
+		JSONObject json = new JSONObject();
+		json.put("documentParses", documentParses.sum());
+		json.put("documentParseTimeMs", TimeUnit.NANOSECONDS.toMillis(documentParseNanos.sum()));
+		json.put("streamParses", streamParses.sum());
+		json.put("streamParseTimeMs", TimeUnit.NANOSECONDS.toMillis(streamParseNanos.sum()));
+		json.put("failedParses", failedParses.sum());
+		return json;
+	}
+
+	private static DocumentBuilderFactory createDocumentBuilderFactory() {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setXIncludeAware(false);
+		factory.setExpandEntityReferences(false);
+		try {
+			factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+			factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+			factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+			factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+		} catch (ParserConfigurationException e) {
+			logger.error("Couldn't configure secure xml processing: " + e);
+		}
+		return factory;
+	}
+
+	private static DocumentBuilder createDocumentBuilder() {
+		try {
+			DocumentBuilder builder = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();
+			builder.setErrorHandler(new QuietErrorHandler());
+			return builder;
+		} catch (ParserConfigurationException e) {
+			logger.error("There was a problem with document builder,  " + e);
+			throw new IllegalStateException("Couldn't create document builder", e);
+		}
+	}
+
+	private static XMLInputFactory createInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		return factory;
+	}
+
+	private static void closeQuietly(XMLStreamReader reader) {
+		if (reader == null)
+			return;
+		try {
+			reader.close();
+		} catch (XMLStreamException e) {
+			logger.debug("Couldn't close xml reader: " + e);
+		}
+	}
+
+	/**
+	 * Error handler which doesn't print parse errors to standard error, as
+	 * default one does. Like the default one, only fatal errors stop parsing.
+	 */
+	private static class QuietErrorHandler implements ErrorHandler {
+		@Override
+		public void warning(SAXParseException exception) {
+			logger.debug("Xml parse warning: " + exception);
+		}
+
+		@Override
+		public void error(SAXParseException exception) {
+			logger.debug("Xml parse error: " + exception);
+		}
+
+		@Override
+		public void fatalError(SAXParseException exception) throws SAXException {
+			throw exception;
+		}
+	}
+}
@@ -0,0 +1,331 @@
+package io.cryptomage.eidas.workspace;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FilenameUtils;
+
+import eu.europa.esig.dss.DSSDocument;
+import eu.europa.esig.dss.DSSException;
+import eu.europa.esig.dss.DigestAlgorithm;
+import eu.europa.esig.dss.DigestDocument;
+import eu.europa.esig.dss.FileDocument;
+import eu.europa.esig.dss.InMemoryDocument;
+import io.cryptomage.eidas.parser.EidasParser;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Class describing a single file of a validation request (uploaded file,
+ * packed file or attachment).
+ * 
+ * Small artifacts are kept in memory, bigger ones are stored in request
+ * directory. Path is relative to the request root and always uses '/' as a
+ * separator.
+ * 
+ * Artifact is created once, when the file is stored. Its hash is computed
+ * while storing, MIME type and parser are assigned once during extraction and
+ * are reused by validation, so the file is never sniffed or parsed again.
+ * 
+ * Lazy artifacts (entries of big zip packages) are not stored when they are
+ * created. Their contents are streamed from the source when they are read and
+ * they are stored in the workspace only when a DSS document or a file is
+ * needed.
+ * 
+ * DSS documents of an artifact are created once and shared. Digests which DSS
+ * needs are computed once, in a single pass over the contents, see
+ * {@link ArtifactDigests}.
+ */
+@Getter
+public class Artifact {
+	private final String path;
+	private final String name;
+	private final long size;
+	private volatile String sha256;
+	private volatile byte[] data;
+	private volatile File file;
+
+	@Getter(AccessLevel.NONE)
+	private final Source source;
+
+	@Getter(AccessLevel.NONE)
+	private final Workspace workspace;
+
+	@Getter(AccessLevel.NONE)
+	private final ArtifactDigests digests;
+
+	@Getter(AccessLevel.NONE)
+	private volatile DSSDocument dssDocument;
+
+	@Getter(AccessLevel.NONE)
+	private volatile DigestDocument digestDocument;
+
+	/**
+	 * MIME type of the file, e.g. application/pdf.
+	 */
+	@Setter
+	private String mimeType;
+
+	/**
+	 * Parser created for the file type.
+	 */
+	@Setter
+	private EidasParser parser;
+
+	/**
+	 * File from which the artifact was extracted, null for uploaded file.
+	 */
+	@Setter
+	private Artifact parent;
+
+	/**
+	 * Number of extractions needed to get the artifact from uploaded file.
+	 */
+	@Setter
+	private int depth;
+
+	/**
+	 * Interface used to read contents of lazy artifacts.
+	 */
+	@FunctionalInterface
+	public interface Source {
+		/**
+		 * @return new stream of artifact contents, it has to be closed by the
+		 *         caller.
+		 * @throws IOException
+		 */
+		InputStream open() throws IOException;
+	}
+
+	Artifact(String path, byte[] data, File file, long size, String sha256) {
+		this.path = path;
+		this.name = FilenameUtils.getName(path);
+		this.data = data;
+		this.file = file;
+		this.size = size;
+		this.sha256 = sha256;
+		this.source = null;
+		this.workspace = null;
+		this.digests = new ArtifactDigests(this);
+	}
+
+	Artifact(String path, long size, Source source, Workspace workspace) {
+		this.path = path;
+		this.name = FilenameUtils.getName(path);
+		this.size = size;
+		this.source = source;
+		this.workspace = workspace;
+		this.digests = new ArtifactDigests(this);
+	}
+
+	/**
+	 * Constructor of an artifact sharing contents of another one under a
+	 * different path.
+	 */
+	Artifact(String path, Artifact artifact) {
+		this.path = path;
+		this.name = FilenameUtils.getName(path);
+		this.size = artifact.size;
+		this.sha256 = artifact.sha256;
+		this.data = artifact.data;
+		this.file = artifact.file;
+		this.source = artifact.source;
+		this.workspace = artifact.workspace;
+		this.mimeType = artifact.mimeType;
+		this.digests = artifact.digests;
+	}
+
+	/**
+	 * @return true if artifact is kept in memory.
+	 */
+	public boolean isInMemory() {
+		return data != null;
+	}
+
+	/**
+	 * @return true if artifact is kept in memory or in request directory.
+	 */
+	public boolean isMaterialized() {
+		return data != null || file != null;
+	}
+
+	/**
+	 * Method used to store lazy artifact in the workspace, so it is kept in
+	 * memory or in request directory afterwards. It does nothing for other
+	 * artifacts.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void materialize() throws IOException {
+		if (isMaterialized())
+			return;
+		Artifact stored;
+		try (InputStream is = source.open()) {
+			stored = workspace.store(path, is, size);
+		}
+		sha256 = stored.sha256;
+		file = stored.file;
+		data = stored.data;
+	}
+
+	/**
+	 * Method used to get SHA-256 hash of the artifact. Hash of lazy artifacts
+	 * is computed on first call, {@link #getSha256()} returns null until then.
+	 * 
+	 * @return hex encoded hash
+	 * @throws IOException
+	 */
+	public String computeSha256() throws IOException {
+		if (sha256 == null) {
+			try (InputStream is = openStream()) {
+				sha256 = Workspace.hash(is);
+			}
+		}
+		return sha256;
+	}
+
+	/**
+	 * Method used to get file type, which is a subtype of the MIME type, e.g.
+	 * pdf for application/pdf.
+	 * 
+	 * @return file type or null if it was not detected yet.
+	 */
+	public String getFileType() {
+		if (mimeType == null)
+			return null;
+		return mimeType.substring(mimeType.indexOf('/') + 1);
+	}
+
+	/**
+	 * Method used to get path of the directory holding the artifact, relative
+	 * to the request root. It is empty for artifacts in request root, otherwise
+	 * it ends with '/'.
+	 * 
+	 * @return path of the parent directory
+	 */
+	public String getParentPath() {
+		return FilenameUtils.getPath(path);
+	}
+
+	/**
+	 * Method used to read artifact contents.
+	 * 
+	 * @return new stream of artifact contents, it has to be closed by the
+	 *         caller.
+	 * @throws IOException
+	 */
+	public InputStream openStream() throws IOException {
+		if (data != null)
+			return new ByteArrayInputStream(data);
+		if (file != null)
+			return new FileInputStream(file);
+		return source.open();
+	}
+
+	/**
+	 * Method used to get whole artifact contents. For artifacts kept in memory
+	 * the returned array is shared and must not be modified.
+	 * 
+	 * @return artifact contents
+	 * @throws IOException
+	 */
+	public byte[] readBytes() throws IOException {
+		materialize();
+		if (data != null)
+			return data;
+		return Files.readAllBytes(file.toPath());
+	}
+
+	/**
+	 * Method used to get digest of the artifact. Digests are computed once,
+	 * common algorithms in a single pass, see {@link ArtifactDigests}.
+	 * 
+	 * @param digestAlgorithm
+	 *            digest algorithm
+	 * @return base64 encoded digest
+	 * @throws IOException
+	 */
+	public String getDigest(DigestAlgorithm digestAlgorithm) throws IOException {
+		return digests.get(digestAlgorithm);
+	}
+
+	/**
+	 * Method used to get artifact as a DSS document given by its digests, for
+	 * validators which need only digests of detached contents, e.g. CAdES
+	 * signatures. The document is created once and shared by all signatures
+	 * of the artifact. Lazy artifact is not stored, its digests are computed
+	 * from the source.
+	 * 
+	 * @return digest document of the artifact.
+	 */
+	public DigestDocument getDigestDocument() {
+		DigestDocument document = digestDocument;
+		if (document != null)
+			return document;
+		synchronized (this) {
+			if (digestDocument == null)
+				digestDocument = new ArtifactDigestDocument(this);
+			return digestDocument;
+		}
+	}
+
+	/**
+	 * Method used to get artifact as a DSS document. Lazy artifact is stored
+	 * first. The document is created once and shared, e.g. by all signatures
+	 * of a detached file which need its contents, see
+	 * {@link #getDigestDocument()} for signatures which need only digests.
+	 * 
+	 * @return in memory document or file document.
+	 * @throws DSSException
+	 *             thrown if lazy artifact couldn't be stored.
+	 */
+	public DSSDocument getDSSDocument() {
+		DSSDocument document = dssDocument;
+		if (document != null)
+			return document;
+
+		try {
+			materialize();
+		} catch (IOException e) {
+			throw new DSSException("Couldn't store " + path, e);
+		}
+		synchronized (this) {
+			if (dssDocument == null)
+				dssDocument = data != null ? new InMemoryDocument(data, name) : new FileDocument(file);
+			return dssDocument;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return path;
+	}
+
+	/**
+	 * Digest document which digests are taken from the artifact, so any
+	 * algorithm DSS asks for is available.
+	 */
+	private static class ArtifactDigestDocument extends DigestDocument {
+		private static final long serialVersionUID = 1L;
+		private final transient Artifact artifact;
+
+		ArtifactDigestDocument(Artifact artifact) {
+			this.artifact = artifact;
+			setName(artifact.name);
+		}
+
+		@Override
+		public String getDigest(DigestAlgorithm digestAlgorithm) {
+			try {
+				return artifact.getDigest(digestAlgorithm);
+			} catch (IOException e) {
+				throw new DSSException("Couldn't compute " + digestAlgorithm + " digest of " + artifact.path, e);
+			}
+		}
+	}
+}
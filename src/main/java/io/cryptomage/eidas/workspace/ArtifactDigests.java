@@ -0,0 +1,104 @@
+package io.cryptomage.eidas.workspace;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.hash.HashCode;
+
+import eu.europa.esig.dss.DigestAlgorithm;
+
+/**
+ * Digests of an artifact used by DSS library, e.g. to check references of
+ * detached signatures.
+ *
+ * Digests are computed once per artifact and shared by every signature which
+ * refers to it. When one of the common algorithms is needed, all of them are
+ * computed in a single pass over the artifact contents, so a big detached file
+ * signed several times with different algorithms is read only once. SHA-256
+ * computed while storing the artifact is reused.
+ */
+class ArtifactDigests {
+	private static final Logger logger = Logger.getLogger(ArtifactDigests.class);
+	private static final Set<DigestAlgorithm> SINGLE_PASS_ALGORITHMS = EnumSet.of(DigestAlgorithm.SHA1,
+			DigestAlgorithm.SHA256, DigestAlgorithm.SHA384, DigestAlgorithm.SHA512);
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+	private final Artifact artifact;
+	private final Map<DigestAlgorithm, String> digests = new ConcurrentHashMap<>();
+
+	ArtifactDigests(Artifact artifact) {
+		this.artifact = artifact;
+	}
+
+	/**
+	 * Method used to get digest of the artifact.
+	 *
+	 * @param digestAlgorithm
+	 *            digest algorithm
+	 * @return base64 encoded digest
+	 * @throws IOException
+	 */
+	String get(DigestAlgorithm digestAlgorithm) throws IOException {
+		String digest = digests.get(digestAlgorithm);
+		if (digest != null)
+			return digest;
+
+		synchronized (this) {
+			String sha256 = artifact.getSha256();
+			if (sha256 != null && !digests.containsKey(DigestAlgorithm.SHA256))
+				digests.put(DigestAlgorithm.SHA256,
+						Base64.getEncoder().encodeToString(HashCode.fromString(sha256).asBytes()));
+			digest = digests.get(digestAlgorithm);
+			if (digest != null)
+				return digest;
+
+			Set<DigestAlgorithm> algorithms = SINGLE_PASS_ALGORITHMS.contains(digestAlgorithm)
+					? EnumSet.copyOf(SINGLE_PASS_ALGORITHMS) : EnumSet.of(digestAlgorithm);
+			algorithms.removeAll(digests.keySet());
+			compute(algorithms);
+			return digests.get(digestAlgorithm);
+		}
+	}
+
+	private void compute(Set<DigestAlgorithm> algorithms) throws IOException {
+		logger.info("Computing " + algorithms + " digests of " + artifact.getPath());
+		MessageDigest[] messageDigests = new MessageDigest[algorithms.size()];
+		int i = 0;
+		for (DigestAlgorithm algorithm : algorithms) {
+			messageDigests[i++] = getMessageDigest(algorithm);
+		}
+
+		byte[] buffer = BUFFER.get();
+		try (InputStream is = artifact.openStream()) {
+			int read;
+			while ((read = is.read(buffer)) != -1) {
+				for (MessageDigest messageDigest : messageDigests) {
+					messageDigest.update(buffer, 0, read);
+				}
+			}
+		}
+
+		i = 0;
+		for (DigestAlgorithm algorithm : algorithms) {
+			digests.put(algorithm, Base64.getEncoder().encodeToString(messageDigests[i++].digest()));
+		}
+	}
+
+	private static MessageDigest getMessageDigest(DigestAlgorithm algorithm) throws IOException {
+		try {
+			return MessageDigest.getInstance(algorithm.getJavaName());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Digest algorithm " + algorithm + " is not supported", e);
+		}
+	}
+}
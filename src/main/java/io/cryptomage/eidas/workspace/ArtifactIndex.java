@@ -0,0 +1,85 @@
+package io.cryptomage.eidas.workspace;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Index of files of a request, used to match signatures with their detached
+ * contents.
+ *
+ * Every file is indexed under its path counted from the request root and from
+ * each of its directories, e.g. a/b/c.txt is indexed as /a/b/c.txt, /b/c.txt
+ * and /c.txt. Files which path contains a given path can then be found with a
+ * range lookup instead of checking every file of the request. The index is
+ * built once, after extraction, and it is read only afterwards, so it can be
+ * shared by files validated in parallel.
+ */
+public class ArtifactIndex {
+	private static final Logger logger = Logger.getLogger(ArtifactIndex.class);
+
+	private final List<Artifact> files;
+	private final Map<Artifact, Integer> positions = new IdentityHashMap<>();
+	private final NavigableMap<String, List<Artifact>> filesBySubpath = new TreeMap<>();
+
+	/**
+	 * Artifact index constructor.
+	 *
+	 * @param files
+	 *            files of the request
+	 */
+	public ArtifactIndex(List<Artifact> files) {
+		this.files = files;
+		for (int i = 0; i < files.size(); i++) {
+			Artifact file = files.get(i);
+			if (positions.putIfAbsent(file, i) != null)
+				continue;
+			String path = "/" + file.getPath();
+			for (int index = 0; index != -1; index = path.indexOf('/', index + 1)) {
+				filesBySubpath.computeIfAbsent(path.substring(index), key -> new ArrayList<>(1)).add(file);
+			}
+		}
+		logger.info("Indexed " + positions.size() + " files under " + filesBySubpath.size() + " paths");
+	}
+
+	/**
+	 * Method allowing to get indexed files.
+	 *
+	 * @return files of the request
+	 */
+	public List<Artifact> getFiles() {
+		return files;
+	}
+
+	/**
+	 * Method used to find files which path, counted from the request root or
+	 * from any of its directories, starts with given path. It's the same as
+	 * checking if "/" + file path contains "/" + path.
+	 *
+	 * @param path
+	 *            relative path, '/' separated
+	 * @return found files, in the order of the request files.
+	 */
+	public List<Artifact> findByPathPrefix(String path) {
+		String prefix = "/" + path;
+		Map<Artifact, Boolean> found = new IdentityHashMap<>();
+		for (List<Artifact> candidates : filesBySubpath
+				.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values()) {
+			for (Artifact candidate : candidates) {
+				found.put(candidate, Boolean.TRUE);
+			}
+		}
+
+		List<Artifact> ret = new ArrayList<>(found.keySet());
+		if (ret.size() > 1)
+			Collections.sort(ret, Comparator.comparing(positions::get));
+		return ret;
+	}
+}
@@ -0,0 +1,216 @@
+package io.cryptomage.eidas.workspace;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Class holding package extraction limits of a single request.
+ * 
+ * It limits number of extracted entries, number of bytes they inflate to and
+ * compression ratio of every entry. Limits are checked while entries are
+ * read, so extraction of a zip bomb stops as soon as a limit is exceeded. A
+ * limit set to 0 or less is disabled.
+ */
+public class ExtractionBudget {
+	private static final Logger logger = Logger.getLogger(ExtractionBudget.class);
+	/**
+	 * Entries smaller than this are not checked for compression ratio, as
+	 * small text files can be compressed very well.
+	 */
+	private static final long RATIO_GRACE_SIZE = 1024 * 1024;
+
+	private final int maxEntries;
+	private final long maxInflatedSize;
+	private final int maxCompressionRatio;
+	private final AtomicInteger entries = new AtomicInteger();
+	private final AtomicLong inflatedSize = new AtomicLong();
+
+	/**
+	 * Extraction budget constructor.
+	 * 
+	 * @param maxEntries
+	 *            maximum number of entries extracted from all packages
+	 * @param maxInflatedSize
+	 *            maximum number of bytes extracted from all packages
+	 * @param maxCompressionRatio
+	 *            maximum ratio of entry size to its compressed size
+	 */
+	public ExtractionBudget(int maxEntries, long maxInflatedSize, int maxCompressionRatio) {
+		this.maxEntries = maxEntries;
+		this.maxInflatedSize = maxInflatedSize;
+		this.maxCompressionRatio = maxCompressionRatio;
+	}
+
+	/**
+	 * @return budget without any limits.
+	 */
+	public static ExtractionBudget unlimited() {
+		return new ExtractionBudget(0, 0, 0);
+	}
+
+	/**
+	 * Method used to count an extracted entry.
+	 * 
+	 * @param name
+	 *            entry name
+	 * @throws ExtractionLimitExceededException
+	 *             thrown if there are too many entries.
+	 */
+	public void addEntry(String name) {
+		int count = entries.incrementAndGet();
+		if (maxEntries > 0 && count > maxEntries)
+			fail("Limit of " + maxEntries + " extracted entries exceeded at " + name);
+	}
+
+	/**
+	 * Method used to count declared size of an entry, which is not extracted
+	 * yet. Entry stream has to be limited to the declared size.
+	 * 
+	 * @param name
+	 *            entry name
+	 * @param size
+	 *            declared size of the entry
+	 * @param compressedSize
+	 *            compressed size of the entry
+	 * @throws ExtractionLimitExceededException
+	 *             thrown if a limit is exceeded.
+	 */
+	public void addEntrySize(String name, long size, long compressedSize) {
+		if (size > 0)
+			inflated(name, size, compressedSize, size);
+	}
+
+	/**
+	 * Method used to wrap entry stream, so the limits are checked while it is
+	 * read.
+	 * 
+	 * @param name
+	 *            entry name
+	 * @param is
+	 *            entry stream
+	 * @param compressedSize
+	 *            compressed size of the entry, or size of the package if it
+	 *            is not known
+	 * @return stream throwing ExtractionLimitExceededException when a limit
+	 *         is exceeded.
+	 */
+	public InputStream limit(String name, InputStream is, long compressedSize) {
+		return new LimitedInputStream(name, is, -1, compressedSize, false);
+	}
+
+	/**
+	 * Method used to wrap stream of an entry read in place, which declared
+	 * size was already counted with {@link #addEntrySize(String, long, long)}.
+	 * Stream of an entry with known size fails when it is longer than
+	 * declared, stream of an entry with unknown size is counted while it is
+	 * read. The entry stream is closed with the returned stream.
+	 * 
+	 * @param name
+	 *            entry name
+	 * @param is
+	 *            entry stream
+	 * @param size
+	 *            declared size of the entry, -1 if it is not known
+	 * @param compressedSize
+	 *            compressed size of the entry
+	 * @return stream throwing ExtractionLimitExceededException when a limit
+	 *         is exceeded.
+	 */
+	public InputStream limitEntry(String name, InputStream is, long size, long compressedSize) {
+		return new LimitedInputStream(name, is, size, compressedSize, true);
+	}
+
+	/**
+	 * @return number of extracted entries.
+	 */
+	public int getEntries() {
+		return entries.get();
+	}
+
+	/**
+	 * @return number of extracted bytes.
+	 */
+	public long getInflatedSize() {
+		return inflatedSize.get();
+	}
+
+	private void inflated(String name, long entrySize, long compressedSize, long bytes) {
+		long total = inflatedSize.addAndGet(bytes);
+		if (maxInflatedSize > 0 && total > maxInflatedSize)
+			fail("Limit of " + maxInflatedSize + " extracted bytes exceeded at " + name);
+		if (maxCompressionRatio > 0 && compressedSize > 0 && entrySize > RATIO_GRACE_SIZE
+				&& entrySize / compressedSize > maxCompressionRatio)
+			fail("Compression ratio limit of " + maxCompressionRatio + " exceeded at " + name);
+	}
+
+	private static void fail(String message) {
+		logger.warn(message);
+		throw new ExtractionLimitExceededException(message);
+	}
+
+	private class LimitedInputStream extends FilterInputStream {
+		private final String name;
+		private final long declaredSize;
+		private final long compressedSize;
+		private final boolean closeEntry;
+		private long entrySize;
+
+		LimitedInputStream(String name, InputStream is, long declaredSize, long compressedSize, boolean closeEntry) {
+			super(is);
+			this.name = name;
+			this.declaredSize = declaredSize;
+			this.compressedSize = compressedSize;
+			this.closeEntry = closeEntry;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1)
+				count(1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0)
+				count(read);
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			byte[] buffer = new byte[(int) Math.min(n, 8192)];
+			long skipped = 0;
+			int read;
+			while (skipped < n && (read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped))) != -1) {
+				skipped += read;
+			}
+			return skipped;
+		}
+
+		/**
+		 * Entry streams of extracted packages are closed by the package
+		 * reader.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (closeEntry)
+				super.close();
+		}
+
+		private void count(int bytes) {
+			entrySize += bytes;
+			if (declaredSize < 0)
+				inflated(name, entrySize, compressedSize, bytes);
+			else if (entrySize > declaredSize)
+				fail("Entry " + name + " is longer than its declared size of " + declaredSize + " bytes");
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package io.cryptomage.eidas.workspace;
+
+/**
+ * Exception thrown when extraction of request files exceeds one of request
+ * limits, e.g. when a zip package inflates to too many bytes. It stops the
+ * whole request, as its files can't be extracted.
+ */
+public class ExtractionLimitExceededException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Exception constructor.
+	 * 
+	 * @param message
+	 *            exception message
+	 */
+	public ExtractionLimitExceededException(String message) {
+		super(message);
+	}
+}
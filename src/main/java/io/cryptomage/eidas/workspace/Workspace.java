@@ -0,0 +1,449 @@
+package io.cryptomage.eidas.workspace;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.log4j.Logger;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import io.cryptomage.eidas.utils.FileUtilities;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Class holding files of a single validation request.
+ * 
+ * Files are kept in memory as long as they are smaller than the per file
+ * threshold and the request has not used its in memory budget yet. Bigger
+ * files are spilled to an unique request directory, which is created only
+ * when the first file is spilled, so small requests never touch the disk.
+ * 
+ * In lazy zip extraction mode entries of packages stored in request directory
+ * are added as lazy files, so only the entries which are needed by the
+ * validation are stored.
+ * 
+ * Files can't be added after the workspace is closed, so a late write never
+ * creates a new request directory, which wouldn't be removed.
+ */
+public class Workspace implements Closeable {
+	private static final Logger logger = Logger.getLogger(Workspace.class);
+	private static final String FILES_DIR = "files";
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+	private static final ThreadLocal<byte[]> COPY_BUFFER = ThreadLocal.withInitial(() -> new byte[COPY_BUFFER_SIZE]);
+	/**
+	 * Charset of zip entry names without UTF-8 flag.
+	 */
+	public static final Charset ZIP_CHARSET = Charset.forName("Cp437");
+
+	private final String tempDir;
+	private final long maxInMemoryFileSize;
+	private final long maxInMemoryRequestSize;
+	private final ExtractionBudget extractionBudget;
+	private final AtomicLong inMemorySize = new AtomicLong();
+	private final AtomicLong spilledFiles = new AtomicLong();
+	private final Map<String, Artifact> artifacts = new ConcurrentHashMap<>();
+	private final Map<File, ZipFile> zipFiles = new HashMap<>();
+	private File dir;
+	private volatile boolean closed;
+
+	/**
+	 * If entries of zip packages stored in request directory should be added
+	 * as lazy files instead of being extracted.
+	 */
+	@Getter
+	@Setter
+	private boolean lazyZipExtraction;
+
+	/**
+	 * Workspace constructor.
+	 * 
+	 * @param tempDir
+	 *            dir in which request directory is created
+	 * @param maxInMemoryFileSize
+	 *            maximum size of a file kept in memory
+	 * @param maxInMemoryRequestSize
+	 *            maximum size of all files of the request kept in memory
+	 */
+	public Workspace(String tempDir, long maxInMemoryFileSize, long maxInMemoryRequestSize) {
+		this(tempDir, maxInMemoryFileSize, maxInMemoryRequestSize, ExtractionBudget.unlimited());
+	}
+
+	/**
+	 * Workspace constructor.
+	 * 
+	 * @param tempDir
+	 *            dir in which request directory is created
+	 * @param maxInMemoryFileSize
+	 *            maximum size of a file kept in memory
+	 * @param maxInMemoryRequestSize
+	 *            maximum size of all files of the request kept in memory
+	 * @param extractionBudget
+	 *            package extraction limits of the request
+	 */
+	public Workspace(String tempDir, long maxInMemoryFileSize, long maxInMemoryRequestSize,
+			ExtractionBudget extractionBudget) {
+		this.tempDir = tempDir;
+		this.maxInMemoryFileSize = maxInMemoryFileSize;
+		this.maxInMemoryRequestSize = maxInMemoryRequestSize;
+		this.extractionBudget = extractionBudget;
+	}
+
+	/**
+	 * Method used to get request directory, it is created on first call.
+	 * 
+	 * @return unique request directory
+	 * @throws IOException
+	 */
+	public synchronized File getDir() throws IOException {
+		checkOpen();
+		if (dir == null)
+			dir = FileUtilities.createUniqueDir(tempDir);
+		return dir;
+	}
+
+	/**
+	 * Method used to add a file to the workspace. The stream is copied through
+	 * a reusable buffer and its size and SHA-256 hash are computed while
+	 * copying. File with the same path is replaced.
+	 * 
+	 * @param path
+	 *            path of the file relative to request root
+	 * @param is
+	 *            stream to copy, it is not closed by this method
+	 * @param maxSize
+	 *            Maximum number of bytes which can be written, 0 or less
+	 *            disables the check.
+	 * @return added file
+	 * @throws IOException
+	 *             thrown if file couldn't be written or it exceeds maxSize.
+	 */
+	public Artifact write(String path, InputStream is, long maxSize) throws IOException {
+		Artifact artifact = store(path, is, maxSize);
+		add(artifact);
+		return artifact;
+	}
+
+	/**
+	 * Method used to store file contents in memory or in request directory,
+	 * without adding the file to the workspace.
+	 */
+	Artifact store(String path, InputStream is, long maxSize) throws IOException {
+		checkOpen();
+		String normalizedPath = normalize(path);
+		if (normalizedPath == null)
+			throw new IOException("Invalid file path " + path);
+
+		Hasher hasher = Hashing.sha256().newHasher();
+		byte[] buffer = COPY_BUFFER.get();
+		ByteArrayOutputStream memory = new ByteArrayOutputStream();
+		long reserved = 0;
+		long size = 0;
+		File file = null;
+		OutputStream fileOutput = null;
+		try {
+			int read;
+			while ((read = is.read(buffer)) != -1) {
+				size += read;
+				if (maxSize > 0 && size > maxSize)
+					throw new IOException("File " + normalizedPath + " exceeds maximum size of " + maxSize + " bytes");
+				hasher.putBytes(buffer, 0, read);
+				if (fileOutput == null && size <= maxInMemoryFileSize && reserve(read)) {
+					reserved += read;
+					memory.write(buffer, 0, read);
+					continue;
+				}
+				if (fileOutput == null) {
+					file = createFile(normalizedPath);
+					fileOutput = new FileOutputStream(file);
+					memory.writeTo(fileOutput);
+					memory = null;
+					release(reserved);
+					reserved = 0;
+				}
+				fileOutput.write(buffer, 0, read);
+			}
+			if (fileOutput != null)
+				fileOutput.close();
+		} catch (IOException | RuntimeException e) {
+			release(reserved);
+			closeQuietly(fileOutput);
+			if (file != null && file.exists() && !file.delete())
+				logger.error("Couldn't remove partially written file " + file.getAbsolutePath());
+			throw e;
+		}
+
+		Artifact artifact;
+		if (file == null) {
+			artifact = new Artifact(normalizedPath, memory.toByteArray(), null, size, hasher.hash().toString());
+		} else {
+			logger.info("File " + normalizedPath + " spilled to disk");
+			artifact = new Artifact(normalizedPath, null, file, size, hasher.hash().toString());
+		}
+		return artifact;
+	}
+
+	/**
+	 * Method used to add a file, which contents are already in memory.
+	 * 
+	 * @param path
+	 *            path of the file relative to request root
+	 * @param data
+	 *            file contents, the array must not be modified afterwards.
+	 * @return added file
+	 * @throws IOException
+	 *             thrown if file couldn't be written.
+	 */
+	public Artifact write(String path, byte[] data) throws IOException {
+		checkOpen();
+		String normalizedPath = normalize(path);
+		if (normalizedPath == null)
+			throw new IOException("Invalid file path " + path);
+
+		String sha256 = Hashing.sha256().hashBytes(data).toString();
+		Artifact artifact;
+		if (data.length <= maxInMemoryFileSize && reserve(data.length)) {
+			artifact = new Artifact(normalizedPath, data, null, data.length, sha256);
+		} else {
+			File file = createFile(normalizedPath);
+			FileUtils.writeByteArrayToFile(file, data);
+			logger.info("File " + normalizedPath + " spilled to disk");
+			artifact = new Artifact(normalizedPath, null, file, data.length, sha256);
+		}
+		add(artifact);
+		return artifact;
+	}
+
+	/**
+	 * Method used to add a lazy file, which contents are read from the source
+	 * when they are needed. It is stored in the workspace only when a DSS
+	 * document or a file is needed.
+	 * 
+	 * @param path
+	 *            path of the file relative to request root
+	 * @param size
+	 *            declared size of the file, storing fails if the source is
+	 *            bigger.
+	 * @param source
+	 *            source of file contents
+	 * @return added file
+	 * @throws IOException
+	 *             thrown if path is not valid.
+	 */
+	public Artifact addLazy(String path, long size, Artifact.Source source) throws IOException {
+		checkOpen();
+		String normalizedPath = normalize(path);
+		if (normalizedPath == null)
+			throw new IOException("Invalid file path " + path);
+
+		Artifact artifact = new Artifact(normalizedPath, size, source, this);
+		add(artifact);
+		return artifact;
+	}
+
+	/**
+	 * Method used to add a file under another path, sharing contents of a
+	 * file which is already added. It is used for identical packages, which
+	 * are extracted once. Alias kept in memory is counted in the in memory
+	 * size of the request, as if it was written.
+	 * 
+	 * @param path
+	 *            path of the alias relative to request root
+	 * @param artifact
+	 *            file which contents are shared
+	 * @return added file
+	 * @throws IOException
+	 *             thrown if path is not valid.
+	 */
+	public Artifact alias(String path, Artifact artifact) throws IOException {
+		checkOpen();
+		String normalizedPath = normalize(path);
+		if (normalizedPath == null)
+			throw new IOException("Invalid file path " + path);
+
+		Artifact alias = new Artifact(normalizedPath, artifact);
+		if (alias.isInMemory())
+			inMemorySize.addAndGet(alias.getSize());
+		add(alias);
+		return alias;
+	}
+
+	/**
+	 * Method used to get opened zip package from request directory. Package
+	 * is opened once, it is closed together with the workspace.
+	 * 
+	 * @param file
+	 *            zip package
+	 * @return opened zip package
+	 * @throws IOException
+	 */
+	public ZipFile getZipFile(File file) throws IOException {
+		synchronized (zipFiles) {
+			checkOpen();
+			ZipFile zipFile = zipFiles.get(file);
+			if (zipFile == null) {
+				zipFile = new ZipFile(file, ZIP_CHARSET);
+				zipFiles.put(file, zipFile);
+			}
+			return zipFile;
+		}
+	}
+
+	/**
+	 * Method used to find a file of the request.
+	 * 
+	 * @param path
+	 *            path of the file relative to request root
+	 * @return file or null if there is no such file.
+	 */
+	public Artifact find(String path) {
+		String normalizedPath = normalize(path);
+		if (normalizedPath == null)
+			return null;
+		return artifacts.get(normalizedPath);
+	}
+
+	/**
+	 * @return package extraction limits of the request.
+	 */
+	public ExtractionBudget getExtractionBudget() {
+		return extractionBudget;
+	}
+
+	/**
+	 * @return number of bytes of request files kept in memory.
+	 */
+	public long getInMemorySize() {
+		return inMemorySize.get();
+	}
+
+	/**
+	 * @return true if the workspace is closed.
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Removes all request files, together with request directory. Files
+	 * can't be added afterwards.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		closed = true;
+		synchronized (zipFiles) {
+			for (ZipFile zipFile : zipFiles.values()) {
+				try {
+					zipFile.close();
+				} catch (IOException e) {
+					logger.error("Couldn't close zip package " + zipFile.getName() + ": " + e);
+				}
+			}
+			zipFiles.clear();
+		}
+		artifacts.clear();
+		inMemorySize.set(0);
+		if (dir != null) {
+			FileUtils.deleteDirectory(dir);
+			dir = null;
+		}
+	}
+
+	/**
+	 * Method used to compute SHA-256 hash of a stream.
+	 * 
+	 * @param is
+	 *            stream to hash, it is not closed by this method
+	 * @return hex encoded hash
+	 * @throws IOException
+	 */
+	static String hash(InputStream is) throws IOException {
+		Hasher hasher = Hashing.sha256().newHasher();
+		byte[] buffer = COPY_BUFFER.get();
+		int read;
+		while ((read = is.read(buffer)) != -1) {
+			hasher.putBytes(buffer, 0, read);
+		}
+		return hasher.hash().toString();
+	}
+
+	private void add(Artifact artifact) throws IOException {
+		checkOpen();
+		Artifact replaced = artifacts.put(artifact.getPath(), artifact);
+		if (replaced != null && replaced.isInMemory())
+			release(replaced.getSize());
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed)
+			throw new IOException("Workspace is closed");
+	}
+
+	/**
+	 * Every spilled file gets its own folder, so files with the same path
+	 * written at the same time never share a file on disk. File name is kept,
+	 * as DSS matches detached contents by name. Folder is created while the
+	 * workspace is locked, so it is never created after the workspace is
+	 * closed.
+	 */
+	private synchronized File createFile(String normalizedPath) throws IOException {
+		File parent = new File(new File(getDir(), FILES_DIR), Long.toString(spilledFiles.incrementAndGet()));
+		File file = new File(parent, FilenameUtils.getName(normalizedPath));
+		if (!parent.isDirectory() && !parent.mkdirs())
+			throw new IOException("Couldn't create folder for " + normalizedPath);
+		return file;
+	}
+
+	private boolean reserve(long bytes) {
+		while (true) {
+			long current = inMemorySize.get();
+			if (current + bytes > maxInMemoryRequestSize)
+				return false;
+			if (inMemorySize.compareAndSet(current, current + bytes))
+				return true;
+		}
+	}
+
+	private void release(long bytes) {
+		if (bytes > 0)
+			inMemorySize.addAndGet(-bytes);
+	}
+
+	private static String normalize(String path) {
+		if (path == null)
+			return null;
+		String normalizedPath = FilenameUtils.normalize(FilenameUtils.separatorsToUnix(path));
+		if (normalizedPath == null)
+			return null;
+		normalizedPath = FilenameUtils.separatorsToUnix(normalizedPath);
+		while (normalizedPath.startsWith("/"))
+			normalizedPath = normalizedPath.substring(1);
+		if (normalizedPath.isEmpty() || normalizedPath.endsWith("/"))
+			return null;
+		return normalizedPath;
+	}
+
+	private static void closeQuietly(OutputStream os) {
+		if (os == null)
+			return;
+		try {
+			os.close();
+		} catch (IOException e) {
+			logger.error("Couldn't close file: " + e);
+		}
+	}
+}
@@ -2,14 +2,25 @@ package io.cryptomage.eidas;
 
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Base64;
 import java.util.Scanner;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import org.apache.commons.io.IOUtils;
 import org.json.JSONArray;
@@ -20,18 +31,28 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.ResultMatcher;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.util.NestedServletException;
+
+import io.cryptomage.eidas.controller.EidasController;
+import io.cryptomage.eidas.service.ValidationJobService;
+import io.cryptomage.eidas.service.ValidationQueueFullException;
 
 @RunWith(SpringRunner.class)
 @SpringBootTest(webEnvironment=WebEnvironment.RANDOM_PORT)
 @AutoConfigureMockMvc
 public class EidasVerifyServiceApplicationTests {
+	private static final String CADES_DETACHED_ZIP = "src/test/resources/signatures/cades_detached/cades_detached.zip";
 
     @Autowired
     private MockMvc mockMvc;
@@ -94,6 +115,156 @@ public class EidasVerifyServiceApplicationTests {
 		}
 	}
 
+	@Test
+	public void validateStreamTest() throws Exception {
+		JSONArray jsonArray = loadSignatures();
+		for (int i = 0; i < jsonArray.length(); i++) {
+			JSONObject obj = jsonArray.getJSONObject(i);
+			MvcResult result = mockMvc.perform(MockMvcRequestBuilders.fileUpload("/api/v1/validate/stream")
+					.file(loadFile(obj))
+					.header("X-Cache-Bypass", "true"))
+					.andExpect(status().isOk())
+					.andExpect(content().contentType("application/x-ndjson;charset=UTF-8"))
+					.andReturn();
+
+			JSONArray reports = new JSONArray();
+			for (String line : result.getResponse().getContentAsString().split("\n")) {
+				reports.put(new JSONObject(line));
+			}
+			checkResult(reports.toString(), obj);
+		}
+	}
+
+	@Test
+	public void validateWithDigestsTest() throws Exception {
+		byte[] content = readZipEntry(CADES_DETACHED_ZIP, "m.txt");
+		MockMultipartFile signature = new MockMultipartFile("file", "m.txt.sig", "text/plain",
+				readZipEntry(CADES_DETACHED_ZIP, "m.txt.sig"));
+		JSONObject digest = new JSONObject();
+		digest.put("name", "m.txt");
+		digest.put("digestAlgorithm", "SHA256");
+		digest.put("digestValue",
+				Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(content)));
+
+		MvcResult result = mockMvc.perform(MockMvcRequestBuilders.fileUpload("/api/v1/validate/digest")
+				.file(signature)
+				.param("detachedDigests", new JSONArray().put(digest).toString()))
+				.andExpect(status().isOk())
+				.andExpect(content().contentType(MediaType.APPLICATION_JSON_UTF8))
+				.andReturn();
+
+		JSONObject sampleObj = new JSONObject();
+		sampleObj.put("signedFile", "m.txt.sig");
+		sampleObj.put("fileCount", 1);
+		sampleObj.put("result", "TOTAL_PASSED");
+		checkResult(result.getResponse().getContentAsString(), sampleObj);
+	}
+
+	@Test
+	public void validateWithInvalidDigestsTest() throws Exception {
+		MockMultipartFile signature = new MockMultipartFile("file", "m.txt.sig", "text/plain",
+				readZipEntry(CADES_DETACHED_ZIP, "m.txt.sig"));
+		try {
+			mockMvc.perform(MockMvcRequestBuilders.fileUpload("/api/v1/validate/digest")
+					.file(signature)
+					.param("detachedDigests", "[{\"name\": \"m.txt\"}]"));
+			fail("Digests without value should be rejected");
+		} catch (NestedServletException e) {
+			assertTrue(e.getCause() instanceof IOException);
+			assertTrue(e.getCause().getMessage().startsWith("Invalid detached digests"));
+		}
+	}
+
+	@Test
+	public void queueValidationTest() throws Exception {
+		JSONObject obj = loadSignatures().getJSONObject(0);
+		MvcResult result = mockMvc.perform(MockMvcRequestBuilders.fileUpload("/api/v1/validations")
+				.file(loadFile(obj)))
+				.andExpect(status().isAccepted())
+				.andExpect(content().contentType(MediaType.APPLICATION_JSON_UTF8))
+				.andReturn();
+		JSONObject job = new JSONObject(result.getResponse().getContentAsString());
+		String location = result.getResponse().getHeader(HttpHeaders.LOCATION);
+		assertEquals("/api/v1/validations/" + job.getString("id"), location);
+
+		long deadline = System.currentTimeMillis() + 60000;
+		while (!"DONE".equals(job.getString("status")) && System.currentTimeMillis() < deadline) {
+			assertNotEquals("FAILED", job.getString("status"));
+			Thread.sleep(100);
+			job = new JSONObject(mockMvc.perform(get(location))
+					.andExpect(status().isOk())
+					.andReturn().getResponse().getContentAsString());
+		}
+		assertEquals("DONE", job.getString("status"));
+		checkResult(job.getJSONArray("report").toString(), obj);
+	}
+
+	@Test
+	public void unknownValidationTest() throws Exception {
+		mockMvc.perform(get("/api/v1/validations/unknown"))
+				.andExpect(status().isNotFound());
+	}
+
+	@Test
+	public void queueFullValidationTest() throws Exception {
+		ValidationJobService validationJobService = mock(ValidationJobService.class);
+		when(validationJobService.submit(any(MultipartFile.class), any(MultipartFile.class), anyBoolean()))
+				.thenThrow(new ValidationQueueFullException("Validation queue is full", null));
+		when(validationJobService.getRetryAfter()).thenReturn(30);
+		EidasController controller = new EidasController();
+		ReflectionTestUtils.setField(controller, "validationJobService", validationJobService);
+
+		JSONObject obj = loadSignatures().getJSONObject(0);
+		MvcResult result = MockMvcBuilders.standaloneSetup(controller).build()
+				.perform(MockMvcRequestBuilders.fileUpload("/api/v1/validations").file(loadFile(obj)))
+				.andExpect(status().isServiceUnavailable())
+				.andExpect(header().string(HttpHeaders.RETRY_AFTER, "30"))
+				.andReturn();
+		assertTrue(new JSONObject(result.getResponse().getContentAsString()).has("error"));
+	}
+
+	@Test
+	public void metricsTest() throws Exception {
+		JSONObject before = getMetrics();
+		assertTrue(before.has("trustedLists"));
+		assertTrue(before.has("validationCache"));
+
+		MockMultipartFile file = loadFile(loadSignatures().getJSONObject(0));
+		for (int i = 0; i < 2; i++) {
+			mockMvc.perform(MockMvcRequestBuilders.fileUpload("/api/v1/validate").file(file))
+					.andExpect(status().isOk());
+		}
+
+		JSONObject after = getMetrics();
+		assertTrue(after.getJSONObject("validationCache").getLong("hits") > before.getJSONObject("validationCache")
+				.getLong("hits"));
+	}
+
+	private JSONObject getMetrics() throws Exception {
+		MvcResult result = mockMvc.perform(get("/api/v1/metrics"))
+				.andExpect(status().isOk())
+				.andExpect(content().contentType(MediaType.APPLICATION_JSON_UTF8))
+				.andReturn();
+		return new JSONObject(result.getResponse().getContentAsString());
+	}
+
+	private static byte[] readZipEntry(String zipPath, String entryName) throws IOException {
+		try (ZipFile zipFile = new ZipFile(zipPath)) {
+			ZipEntry entry = zipFile.getEntry(entryName);
+			assertNotNull(entry);
+			try (InputStream input = zipFile.getInputStream(entry)) {
+				return IOUtils.toByteArray(input);
+			}
+		}
+	}
+
+	private MockMultipartFile loadFile(JSONObject sampleObj) throws IOException {
+		File file = new File(sampleObj.getString("filePath"));
+		try (FileInputStream input = new FileInputStream(file)) {
+			return new MockMultipartFile("file", file.getName(), "text/plain", IOUtils.toByteArray(input));
+		}
+	}
+
 	private void checkResult(String result, JSONObject sampleObj) {
 		assertNotNull(result);
 		JSONArray retArray = new JSONArray(result);
@@ -0,0 +1,69 @@
+package io.cryptomage.eidas.parser;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.cryptomage.eidas.workspace.Artifact;
+import io.cryptomage.eidas.workspace.Workspace;
+
+public class XmlEidasParserTest {
+	private static final String TXT_FILE_ZIP = "/signatures/xades_detached_txt_file/xades_detached_txt_file.zip";
+	private static final String XML_FILE_ZIP = "/signatures/xades_detached_xml_file/xades_detached_xml_file.zip";
+
+	private File tempDir;
+	private Workspace workspace;
+
+	@Before
+	public void setUp() throws IOException {
+		tempDir = Files.createTempDirectory("xml-parser-test").toFile();
+		workspace = new Workspace(tempDir.getAbsolutePath(), 1024 * 1024, 16 * 1024 * 1024);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		workspace.close();
+		FileUtils.deleteDirectory(tempDir);
+	}
+
+	@Test
+	public void digestIsEnoughForReferenceWithoutTransforms() throws IOException {
+		unzip(TXT_FILE_ZIP);
+		XmlEidasParser parser = new XmlEidasParser(workspace.find("monitorowanie uslug.txt.xades"), workspace);
+		assertTrue(parser.isDigestEnough(workspace.find("monitorowanie uslug.txt")));
+	}
+
+	@Test
+	public void contentsAreNeededForReferenceWithTransforms() throws IOException {
+		unzip(XML_FILE_ZIP);
+		XmlEidasParser parser = new XmlEidasParser(workspace.find("xmlpodpisxadeszewn detached.xml.xades"),
+				workspace);
+		assertFalse(parser.isDigestEnough(workspace.find("xmlpodpisxadeszewn detached.xml")));
+	}
+
+	@Test
+	public void contentsAreNeededForFileWithoutReference() throws IOException {
+		unzip(TXT_FILE_ZIP);
+		Artifact other = workspace.write("other.txt", new byte[] { 1 });
+		XmlEidasParser parser = new XmlEidasParser(workspace.find("monitorowanie uslug.txt.xades"), workspace);
+		assertFalse(parser.isDigestEnough(other));
+	}
+
+	private void unzip(String resource) throws IOException {
+		try (ZipInputStream zis = new ZipInputStream(getClass().getResourceAsStream(resource))) {
+			ZipEntry entry;
+			while ((entry = zis.getNextEntry()) != null) {
+				workspace.write(entry.getName(), zis, 0);
+			}
+		}
+	}
+}
@@ -0,0 +1,235 @@
+package io.cryptomage.eidas.revocation;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.ExtensionsGenerator;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x509.Time;
+import org.bouncycastle.asn1.x509.V2TBSCertListGenerator;
+import org.bouncycastle.asn1.x509.V3TBSCertificateGenerator;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import eu.europa.esig.dss.x509.CertificateToken;
+import eu.europa.esig.dss.x509.crl.CRLToken;
+
+public class CrlStoreTest {
+	private static final String URL = "http://crl.example.com/ca.crl";
+	private static final AlgorithmIdentifier SHA256_WITH_RSA = new AlgorithmIdentifier(
+			PKCSObjectIdentifiers.sha256WithRSAEncryption, DERNull.INSTANCE);
+	private static final int FIRST_REVOKED = 100;
+	private static final Date REVOKED_AT = new Date(1500000000000L);
+
+	private static KeyPair caKeys;
+	private static KeyPair userKeys;
+	private static CertificateToken ca;
+
+	@BeforeClass
+	public static void setUpClass() throws Exception {
+		caKeys = generateKeys();
+		userKeys = generateKeys();
+		ca = new CertificateToken(certificate("Test CA", caKeys));
+	}
+
+	@Test
+	public void checksEachVersionOnce() throws Exception {
+		CrlStore store = new CrlStore();
+		byte[] data = crl(caKeys, 3);
+		CheckedCrl crl = store.get(URL, data, ca);
+		assertTrue(crl.isSignatureValid());
+		assertTrue(crl.getValidity().isSignatureIntact());
+		assertEquals(data.length, crl.getEncodedSize());
+
+		assertSame(crl, store.get(URL, data, ca));
+		assertSame(crl, store.get(URL, data.clone(), ca));
+		assertEquals(3, store.getMetrics().getLong("lookups"));
+		assertEquals(1, store.getMetrics().getLong("checked"));
+		assertEquals(crl.getMemorySize(), store.getMetrics().getLong("memorySize"));
+	}
+
+	@Test
+	public void measuresIndexAndBloomFilter() throws Exception {
+		byte[] data = crl(caKeys, 10);
+		CheckedCrl crl = new CrlStore().get(URL, data, ca);
+		assertEquals(10, crl.getEntries());
+		assertEquals(data.length, crl.getEncodedSize());
+		// one byte serial numbers, revocation dates and reasons
+		assertEquals(10 + 10 * Long.BYTES + 10, crl.getIndexSize());
+		assertTrue(crl.getBloomFilterSize() > 0);
+		assertEquals(crl.getEncodedSize() + crl.getIndexSize() + crl.getBloomFilterSize(), crl.getMemorySize());
+	}
+
+	@Test
+	public void findsRevokedSerial() throws Exception {
+		CheckedCrl crl = new CrlStore().get(URL, crl(caKeys, 10), ca);
+		CheckedCrl.Revocation revocation = crl.findRevocation(BigInteger.valueOf(FIRST_REVOKED + 5));
+		assertNotNull(revocation);
+		assertEquals(REVOKED_AT, revocation.getRevocationDate());
+		assertEquals(Integer.valueOf(CRLReason.keyCompromise), revocation.getReason());
+		assertEquals(1, crl.getIndexHits());
+	}
+
+	@Test
+	public void answersNotRevokedSerialWithBloomFilter() throws Exception {
+		CheckedCrl crl = new CrlStore().get(URL, crl(caKeys, 10), ca);
+		assertNull(crl.findRevocation(BigInteger.valueOf(7)));
+		assertNull(crl.findRevocation(BigInteger.valueOf(Long.MAX_VALUE)));
+		assertEquals(2, crl.getBloomFilterNegatives());
+		assertEquals(0, crl.getBloomFilterFalsePositives());
+	}
+
+	@Test
+	public void searchesIndexOnBloomFilterFalsePositive() throws Exception {
+		// two byte serial numbers, so other two byte serials pass the length check
+		CheckedCrl crl = new CrlStore().get(URL, crl(caKeys, 200), ca);
+		int serial = FIRST_REVOKED + 200;
+		while (crl.getBloomFilterFalsePositives() == 0 && serial <= Short.MAX_VALUE) {
+			assertNull(crl.findRevocation(BigInteger.valueOf(serial)));
+			serial++;
+		}
+		assertEquals(1, crl.getBloomFilterFalsePositives());
+		assertEquals(0, crl.getIndexHits());
+	}
+
+	@Test
+	public void sharesTokenOfNotRevokedCertificates() throws Exception {
+		CheckedCrl crl = new CrlStore().get(URL, crl(caKeys, 10), ca);
+		CRLToken first = crl.getToken(userCertificate(7));
+		CRLToken second = crl.getToken(userCertificate(8));
+		assertTrue(first.getStatus());
+		assertSame(first, second);
+		assertEquals(1, crl.getFullChecks());
+	}
+
+	@Test
+	public void checksRevokedCertificateWithWholeCrl() throws Exception {
+		CheckedCrl crl = new CrlStore().get(URL, crl(caKeys, 10), ca);
+		crl.getToken(userCertificate(7));
+		CRLToken token = crl.getToken(userCertificate(FIRST_REVOKED + 3));
+		assertFalse(token.getStatus());
+		assertEquals(REVOKED_AT, token.getRevocationDate());
+		assertEquals(2, crl.getFullChecks());
+	}
+
+	@Test
+	public void keepsLatestVersion() throws Exception {
+		CrlStore store = new CrlStore();
+		CheckedCrl first = store.get(URL, crl(caKeys, 1), ca);
+		byte[] data = crl(caKeys, 2);
+		CheckedCrl second = store.get(URL, data, ca);
+
+		assertNotSame(first, second);
+		assertSame(second, store.get(URL, data, ca));
+		assertEquals(2, store.getMetrics().getLong("checked"));
+		assertEquals(1, store.getMetrics().getJSONArray("crls").length());
+	}
+
+	@Test
+	public void checksAgainForOtherIssuer() throws Exception {
+		CrlStore store = new CrlStore();
+		byte[] data = crl(caKeys, 1);
+		CheckedCrl crl = store.get(URL, data, ca);
+
+		CertificateToken other = new CertificateToken(certificate("Other CA", generateKeys()));
+		CheckedCrl otherCrl = store.get(URL, data, other);
+		assertNotSame(crl, otherCrl);
+		assertFalse(otherCrl.isSignatureValid());
+		assertEquals(2, store.getMetrics().getLong("checked"));
+	}
+
+	@Test
+	public void isUsableUntilNextUpdate() throws Exception {
+		CheckedCrl crl = new CrlStore().get(URL, crl(caKeys, 1), ca);
+		long now = System.currentTimeMillis();
+		assertTrue(crl.isUsableFor(ca, now));
+		assertFalse(crl.isUsableFor(ca, now + TimeUnit.HOURS.toMillis(2)));
+	}
+
+	private static KeyPair generateKeys() throws GeneralSecurityException {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		return generator.generateKeyPair();
+	}
+
+	private static CertificateToken userCertificate(long serial) throws Exception {
+		CertificateToken user = new CertificateToken(certificate("User " + serial, userKeys.getPublic(), "Test CA",
+				caKeys, serial, KeyUsage.digitalSignature));
+		assertTrue(user.isSignedBy(ca));
+		return user;
+	}
+
+	private static X509Certificate certificate(String name, KeyPair keys) throws Exception {
+		return certificate(name, keys.getPublic(), name, keys, 1, KeyUsage.keyCertSign | KeyUsage.cRLSign);
+	}
+
+	private static X509Certificate certificate(String subject, PublicKey key, String issuer, KeyPair issuerKeys,
+			long serial, int keyUsage) throws Exception {
+		long now = System.currentTimeMillis();
+		ExtensionsGenerator extensions = new ExtensionsGenerator();
+		extensions.addExtension(Extension.keyUsage, true, new KeyUsage(keyUsage));
+
+		V3TBSCertificateGenerator tbs = new V3TBSCertificateGenerator();
+		tbs.setSerialNumber(new ASN1Integer(serial));
+		tbs.setIssuer(new X500Name("CN=" + issuer));
+		tbs.setSubject(new X500Name("CN=" + subject));
+		tbs.setStartDate(new Time(new Date(now - TimeUnit.HOURS.toMillis(1))));
+		tbs.setEndDate(new Time(new Date(now + TimeUnit.DAYS.toMillis(1))));
+		tbs.setSubjectPublicKeyInfo(SubjectPublicKeyInfo.getInstance(key.getEncoded()));
+		tbs.setSignature(SHA256_WITH_RSA);
+		tbs.setExtensions(extensions.generate());
+
+		byte[] encoded = signed(tbs.generateTBSCertificate(), issuerKeys);
+		return (X509Certificate) CertificateFactory.getInstance("X.509")
+				.generateCertificate(new ByteArrayInputStream(encoded));
+	}
+
+	private static byte[] crl(KeyPair keys, int revoked) throws Exception {
+		long now = System.currentTimeMillis();
+		V2TBSCertListGenerator tbs = new V2TBSCertListGenerator();
+		tbs.setIssuer(new X500Name("CN=Test CA"));
+		tbs.setThisUpdate(new Time(new Date(now)));
+		tbs.setNextUpdate(new Time(new Date(now + TimeUnit.HOURS.toMillis(1))));
+		tbs.setSignature(SHA256_WITH_RSA);
+		for (int i = 0; i < revoked; i++) {
+			tbs.addCRLEntry(new ASN1Integer(FIRST_REVOKED + i), new Time(REVOKED_AT), CRLReason.keyCompromise);
+		}
+		return signed(tbs.generateTBSCertList(), keys);
+	}
+
+	private static byte[] signed(ASN1Encodable tbs, KeyPair keys) throws GeneralSecurityException, IOException {
+		Signature signature = Signature.getInstance("SHA256withRSA");
+		signature.initSign(keys.getPrivate());
+		signature.update(tbs.toASN1Primitive().getEncoded());
+
+		ASN1EncodableVector sequence = new ASN1EncodableVector();
+		sequence.add(tbs);
+		sequence.add(SHA256_WITH_RSA);
+		sequence.add(new DERBitString(signature.sign()));
+		return new DERSequence(sequence).getEncoded();
+	}
+}
@@ -0,0 +1,101 @@
+package io.cryptomage.eidas.revocation;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RevocationCacheTest {
+	private static final long MB = 1024 * 1024;
+	private static final String KEY = "http://crl.example.com/ca.crl";
+
+	private File cacheFolder;
+
+	@Before
+	public void setUp() throws IOException {
+		cacheFolder = Files.createTempDirectory("revocation-cache-test").toFile();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(cacheFolder);
+	}
+
+	@Test
+	public void keepsLargeCrlInMemory() {
+		RevocationCache cache = new RevocationCache(32 * MB, 60, null);
+		byte[] crl = new byte[(int) (20 * MB)];
+		cache.put(KEY, crl, new Date(), inOneHour());
+
+		assertSame(crl, cache.get(KEY));
+		assertEquals(1, cache.getMetrics().getLong("memoryHits"));
+		assertEquals(0, cache.getMetrics().getLong("evictions"));
+	}
+
+	@Test
+	public void expiresAtNextUpdate() throws InterruptedException {
+		RevocationCache cache = new RevocationCache(MB, 60, null);
+		cache.put(KEY, new byte[16], new Date(), new Date(System.currentTimeMillis() + 200));
+		assertNotNull(cache.get(KEY));
+
+		Thread.sleep(300);
+		assertNull(cache.get(KEY));
+		assertEquals(1, cache.getMetrics().getLong("expired"));
+		assertEquals(1, cache.getMetrics().getLong("misses"));
+	}
+
+	@Test
+	public void doesNotCacheOutOfDateResponse() {
+		RevocationCache cache = new RevocationCache(MB, 60, null);
+		cache.put(KEY, new byte[16], new Date(), new Date(System.currentTimeMillis() - 1000));
+		assertNull(cache.get(KEY));
+		assertEquals(0, cache.getMetrics().getLong("size"));
+	}
+
+	@Test
+	public void keepsResponseWithoutNextUpdateForDefaultTime() {
+		RevocationCache cache = new RevocationCache(MB, 60, null);
+		long issued = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(61);
+		cache.put("old", new byte[16], new Date(issued), null);
+		cache.put("recent", new byte[16], new Date(), null);
+
+		assertNull(cache.get("old"));
+		assertNotNull(cache.get("recent"));
+	}
+
+	@Test
+	public void readsResponseStoredOnDisk() {
+		byte[] crl = new byte[] { 1, 2, 3, 4 };
+		new RevocationCache(MB, 60, cacheFolder).put(KEY, crl, new Date(), inOneHour());
+
+		RevocationCache restarted = new RevocationCache(MB, 60, cacheFolder);
+		assertArrayEquals(crl, restarted.get(KEY));
+		assertEquals(1, restarted.getMetrics().getLong("diskHits"));
+		assertArrayEquals(crl, restarted.get(KEY));
+		assertEquals(1, restarted.getMetrics().getLong("memoryHits"));
+	}
+
+	@Test
+	public void removesOutOfDateResponseFromDisk() throws InterruptedException {
+		new RevocationCache(MB, 60, cacheFolder).put(KEY, new byte[16], new Date(),
+				new Date(System.currentTimeMillis() + 200));
+		assertEquals(1, cacheFolder.list().length);
+
+		Thread.sleep(300);
+		RevocationCache restarted = new RevocationCache(MB, 60, cacheFolder);
+		assertNull(restarted.get(KEY));
+		assertEquals(0, cacheFolder.list().length);
+	}
+
+	private static Date inOneHour() {
+		return new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+	}
+}
@@ -0,0 +1,93 @@
+package io.cryptomage.eidas.revocation;
+
+import static org.junit.Assert.*;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class RevocationFetcherTest {
+	private static final String KEY = "http://crl.example.com/ca.crl";
+	private static final byte[] CRL = new byte[] { 1, 2, 3 };
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(2);
+	private final AtomicInteger downloads = new AtomicInteger();
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	@After
+	public void tearDown() {
+		release.countDown();
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void downloadsConcurrentFetchesOnce() throws Exception {
+		RevocationFetcher fetcher = new RevocationFetcher(null, true);
+		Future<byte[]> first = executor.submit(() -> fetcher.fetch(KEY, this::blockingDownload));
+		Future<byte[]> second = executor.submit(() -> fetcher.fetch(KEY, this::blockingDownload));
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (fetcher.getMetrics().getLong("coalesced") < 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		release.countDown();
+		assertSame(CRL, first.get(10, TimeUnit.SECONDS));
+		assertSame(CRL, second.get(10, TimeUnit.SECONDS));
+		assertEquals(1, downloads.get());
+		assertEquals(1, fetcher.getMetrics().getLong("fetched"));
+	}
+
+	@Test
+	public void downloadsEveryFetchWithoutCoalescing() {
+		RevocationFetcher fetcher = new RevocationFetcher(null, false);
+		release.countDown();
+		fetcher.fetch(KEY, this::blockingDownload);
+		fetcher.fetch(KEY, this::blockingDownload);
+		assertEquals(2, downloads.get());
+		assertFalse(fetcher.isCaching());
+	}
+
+	@Test
+	public void takesCachedDataWithoutDownload() {
+		RevocationCache cache = new RevocationCache(1024 * 1024, 60, null);
+		RevocationFetcher fetcher = new RevocationFetcher(cache, true);
+		assertTrue(fetcher.isCaching());
+		fetcher.store(KEY, CRL, new Date(), new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1)));
+
+		assertArrayEquals(CRL, fetcher.fetch(KEY, this::blockingDownload));
+		assertEquals(0, downloads.get());
+	}
+
+	@Test
+	public void cachesStoredDownload() {
+		RevocationCache cache = new RevocationCache(1024 * 1024, 60, null);
+		RevocationFetcher fetcher = new RevocationFetcher(cache, true);
+		release.countDown();
+		RevocationFetcher.Download download = () -> {
+			byte[] data = blockingDownload();
+			fetcher.store(KEY, data, new Date(), null);
+			return data;
+		};
+
+		assertArrayEquals(CRL, fetcher.fetch(KEY, download));
+		assertArrayEquals(CRL, fetcher.fetch(KEY, download));
+		assertEquals(1, downloads.get());
+	}
+
+	private byte[] blockingDownload() {
+		downloads.incrementAndGet();
+		try {
+			release.await(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return CRL;
+	}
+}
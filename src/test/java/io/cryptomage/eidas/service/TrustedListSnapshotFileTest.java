@@ -0,0 +1,237 @@
+package io.cryptomage.eidas.service;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.europa.esig.dss.tsl.CompositeCondition;
+import eu.europa.esig.dss.tsl.Condition;
+import eu.europa.esig.dss.tsl.CriteriaListCondition;
+import eu.europa.esig.dss.tsl.KeyUsageCondition;
+import eu.europa.esig.dss.tsl.MatchingCriteriaIndicator;
+import eu.europa.esig.dss.tsl.PolicyIdCondition;
+import eu.europa.esig.dss.tsl.ServiceInfo;
+import eu.europa.esig.dss.tsl.ServiceInfoStatus;
+import eu.europa.esig.dss.tsl.TLInfo;
+import eu.europa.esig.dss.tsl.TrustedListsCertificateSource;
+import eu.europa.esig.dss.util.TimeDependentValues;
+import eu.europa.esig.dss.x509.CertificateToken;
+import eu.europa.esig.dss.x509.KeyUsageBit;
+
+public class TrustedListSnapshotFileTest {
+	private static final String SIGNED_FILE = "/signatures/cades_enveloping/cades_enveloping.txt.sig";
+	private static final String QUALIFIER = "http://uri.etsi.org/TrstSvc/TrustedList/SvcInfoExt/QCWithSSCD";
+	private static final String POLICY_OID = "0.4.0.194112.1.2";
+
+	private File tempDir;
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		tempDir = Files.createTempDirectory("snapshot-test").toFile();
+		file = new File(tempDir, "trustedLists.snapshot");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(tempDir);
+	}
+
+	@Test
+	public void readsWrittenSnapshot() throws Exception {
+		CertificateToken certificate = loadCertificate();
+		ServiceInfo service = new ServiceInfo();
+		service.setTspName("Test TSP");
+		service.setTlCountryCode("PL");
+		TrustedListsCertificateSource source = new TrustedListsCertificateSource();
+		source.addCertificate(certificate, service);
+
+		new TrustedListSnapshotFile(file).write(source);
+		TrustedListsCertificateSource read = new TrustedListSnapshotFile(file).read();
+
+		List<CertificateToken> certificates = read.getCertificates();
+		assertEquals(1, certificates.size());
+		assertArrayEquals(certificate.getEncoded(), certificates.get(0).getEncoded());
+		Set<ServiceInfo> services = read.getTrustServices(certificates.get(0));
+		assertEquals(1, services.size());
+		ServiceInfo readService = services.iterator().next();
+		assertEquals("Test TSP", readService.getTspName());
+		assertEquals("PL", readService.getTlCountryCode());
+		assertEquals(1, tempDir.list().length);
+	}
+
+	@Test
+	public void readsServiceStatusAndConditions() throws Exception {
+		CompositeCondition condition = new CriteriaListCondition(MatchingCriteriaIndicator.atLeastOne);
+		condition.addChild(new KeyUsageCondition(KeyUsageBit.nonRepudiation, true));
+		condition.addChild(new PolicyIdCondition(POLICY_OID));
+		Date start = new Date(1500000000000L);
+		ServiceInfoStatus status = new ServiceInfoStatus("Test QC service", "http://uri.etsi.org/TrstSvc/Svctype/CA/QC",
+				"http://uri.etsi.org/TrstSvc/TrustedList/Svcstatus/granted",
+				Collections.<String, List<Condition>> singletonMap(QUALIFIER, Arrays.<Condition> asList(condition)),
+				Arrays.asList("http://uri.etsi.org/TrstSvc/TrustedList/SvcInfoExt/ForeSignatures"),
+				Arrays.asList("http://crl.example.com/ca.crl"), null, start, null);
+		ServiceInfo service = new ServiceInfo();
+		service.setTspName("Test TSP");
+		service.setTspTradeName("VATPL-0000000000");
+		service.setTspElectronicAddress("http://tsp.example.com");
+		service.setStatus(new TimeDependentValues<>(Arrays.asList(status)));
+		TrustedListsCertificateSource source = new TrustedListsCertificateSource();
+		source.addCertificate(loadCertificate(), service);
+
+		new TrustedListSnapshotFile(file).write(source);
+		TrustedListsCertificateSource read = new TrustedListSnapshotFile(file).read();
+
+		ServiceInfo readService = read.getTrustServices(read.getCertificates().get(0)).iterator().next();
+		assertEquals("VATPL-0000000000", readService.getTspTradeName());
+		assertEquals("http://tsp.example.com", readService.getTspElectronicAddress());
+		assertNull(readService.getTspPostalAddress());
+		ServiceInfoStatus readStatus = readService.getStatus().getLatest();
+		assertEquals("Test QC service", readStatus.getServiceName());
+		assertEquals(status.getType(), readStatus.getType());
+		assertEquals(status.getStatus(), readStatus.getStatus());
+		assertEquals(status.getAdditionalServiceInfoUris(), readStatus.getAdditionalServiceInfoUris());
+		assertEquals(status.getServiceSupplyPoints(), readStatus.getServiceSupplyPoints());
+		assertEquals(start, readStatus.getStartDate());
+		assertNull(readStatus.getEndDate());
+		assertNull(readStatus.getExpiredCertsRevocationInfo());
+
+		List<Condition> conditions = readStatus.getQualifiersAndConditions().get(QUALIFIER);
+		assertEquals(1, conditions.size());
+		CriteriaListCondition readCondition = (CriteriaListCondition) conditions.get(0);
+		assertEquals(MatchingCriteriaIndicator.atLeastOne, readCondition.getMatchingCriteriaIndicator());
+		assertEquals(2, readCondition.getChildren().size());
+		KeyUsageCondition keyUsage = (KeyUsageCondition) readCondition.getChildren().get(0);
+		assertEquals(KeyUsageBit.nonRepudiation, keyUsage.getBit());
+		assertTrue(keyUsage.getValue());
+		assertEquals(POLICY_OID, ((PolicyIdCondition) readCondition.getChildren().get(1)).getPolicyOid());
+	}
+
+	@Test
+	public void readsTrustedListsMetadata() throws Exception {
+		TLInfo lotl = tlInfo("EU", "https://ec.europa.eu/tools/lotl/eu-lotl.xml", true, 210);
+		TLInfo tl = tlInfo("PL", "https://www.nccert.pl/tsl/PL_TSL.xml", false, 54);
+		TrustedListsCertificateSource source = new TrustedListsCertificateSource();
+		source.addCertificate(loadCertificate(), new ServiceInfo());
+		source.updateTlInfo("EU", lotl);
+		source.updateTlInfo("PL", tl);
+
+		new TrustedListSnapshotFile(file).write(source);
+		Map<String, TLInfo> summary = new TrustedListSnapshotFile(file).read().getSummary();
+
+		assertEquals(2, summary.size());
+		assertTlInfo(lotl, summary.get("EU"));
+		assertTlInfo(tl, summary.get("PL"));
+	}
+
+	@Test
+	public void rejectsUnknownVersion() throws Exception {
+		TrustedListsCertificateSource source = new TrustedListsCertificateSource();
+		source.addCertificate(loadCertificate(), new ServiceInfo());
+		new TrustedListSnapshotFile(file).write(source);
+		byte[] contents = Files.readAllBytes(file.toPath());
+		// version follows the magic number, hash is recomputed so only the version is wrong
+		contents[7] = 2;
+		byte[] data = Arrays.copyOf(contents, contents.length - 32);
+		System.arraycopy(MessageDigest.getInstance("SHA-256").digest(data), 0, contents,
+				data.length, 32);
+		Files.write(file.toPath(), contents);
+
+		try {
+			new TrustedListSnapshotFile(file).read();
+			fail("Snapshot of other version should be rejected");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("unsupported version 2"));
+		}
+	}
+
+	@Test
+	public void returnsNullWithoutSnapshot() throws IOException {
+		assertNull(new TrustedListSnapshotFile(file).read());
+	}
+
+	@Test
+	public void rejectsDamagedSnapshot() throws Exception {
+		TrustedListsCertificateSource source = new TrustedListsCertificateSource();
+		source.addCertificate(loadCertificate(), new ServiceInfo());
+		new TrustedListSnapshotFile(file).write(source);
+		try (RandomAccessFile snapshot = new RandomAccessFile(file, "rw")) {
+			long position = snapshot.length() / 2;
+			snapshot.seek(position);
+			int value = snapshot.read();
+			snapshot.seek(position);
+			snapshot.write(value ^ 0xff);
+		}
+
+		try {
+			new TrustedListSnapshotFile(file).read();
+			fail("Damaged snapshot should be rejected");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("is damaged"));
+		}
+	}
+
+	@Test
+	public void rejectsTruncatedSnapshot() throws IOException {
+		Files.write(file.toPath(), new byte[16]);
+		try {
+			new TrustedListSnapshotFile(file).read();
+			fail("Truncated snapshot should be rejected");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("has wrong size"));
+		}
+	}
+
+	private static TLInfo tlInfo(String countryCode, String url, boolean lotl, int sequenceNumber) {
+		TLInfo info = new TLInfo();
+		info.setCountryCode(countryCode);
+		info.setUrl(url);
+		info.setLotl(lotl);
+		info.setSequenceNumber(sequenceNumber);
+		info.setVersion(5);
+		info.setIssueDate(new Date(1500000000000L));
+		info.setNextUpdate(new Date(1510000000000L));
+		info.setLastLoading(new Date(1505000000000L));
+		info.setWellSigned(true);
+		return info;
+	}
+
+	private static void assertTlInfo(TLInfo expected, TLInfo actual) {
+		assertEquals(expected.getCountryCode(), actual.getCountryCode());
+		assertEquals(expected.getUrl(), actual.getUrl());
+		assertEquals(expected.isLotl(), actual.isLotl());
+		assertEquals(expected.getSequenceNumber(), actual.getSequenceNumber());
+		assertEquals(expected.getVersion(), actual.getVersion());
+		assertEquals(expected.getIssueDate(), actual.getIssueDate());
+		assertEquals(expected.getNextUpdate(), actual.getNextUpdate());
+		assertEquals(expected.getLastLoading(), actual.getLastLoading());
+		assertEquals(expected.isWellSigned(), actual.isWellSigned());
+	}
+
+	private static CertificateToken loadCertificate() throws IOException, CertificateException {
+		try (InputStream is = TrustedListSnapshotFileTest.class.getResourceAsStream(SIGNED_FILE)) {
+			return new CertificateToken(
+					(X509Certificate) CertificateFactory.getInstance("X.509").generateCertificates(is).iterator()
+							.next());
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package io.cryptomage.eidas.service;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.multipart.MultipartFile;
+
+import io.cryptomage.eidas.workspace.Workspace;
+
+public class ValidationJobServiceTest {
+	private static final String REPORT = "[]";
+
+	private final CountDownLatch release = new CountDownLatch(1);
+	private final MockMultipartFile file = new MockMultipartFile("file", "file.txt", "text/plain", new byte[] { 1 });
+
+	private EidasService eidasService;
+	private ValidationJobService validationJobService;
+
+	@Before
+	public void setUp() throws IOException {
+		eidasService = mock(EidasService.class);
+		when(eidasService.createRequest(any(MultipartFile.class), any(MultipartFile.class)))
+				.thenAnswer(invocation -> new ValidationRequest(mock(Workspace.class), null, null, "default"));
+		when(eidasService.validate(any(ValidationRequest.class), anyBoolean())).thenAnswer(invocation -> {
+			release.await(10, TimeUnit.SECONDS);
+			return REPORT;
+		});
+		validationJobService = new ValidationJobService(eidasService, 1, 1, 1, 30);
+	}
+
+	@After
+	public void tearDown() {
+		release.countDown();
+		validationJobService.shutdown();
+	}
+
+	@Test
+	public void jobIsDoneWhenValidationFinishes() throws Exception {
+		ValidationJob job = validationJobService.submit(file, null, false);
+		assertSame(job, validationJobService.getJob(job.getId()));
+		assertNotEquals(ValidationJob.Status.DONE, job.getStatus());
+
+		release.countDown();
+		waitForJob(job);
+		assertEquals(ValidationJob.Status.DONE, job.getStatus());
+		assertEquals(REPORT, job.getReport());
+		assertNotNull(job.getFinished());
+	}
+
+	@Test
+	public void jobFailsWhenValidationThrows() throws Exception {
+		reset(eidasService);
+		when(eidasService.createRequest(any(MultipartFile.class), any(MultipartFile.class)))
+				.thenAnswer(invocation -> new ValidationRequest(mock(Workspace.class), null, null, "default"));
+		when(eidasService.validate(any(ValidationRequest.class), anyBoolean()))
+				.thenThrow(new IOException("Broken file"));
+
+		ValidationJob job = validationJobService.submit(file, null, false);
+		waitForJob(job);
+		assertEquals(ValidationJob.Status.FAILED, job.getStatus());
+		assertEquals("Broken file", job.getError());
+	}
+
+	@Test
+	public void rejectsJobWhenQueueIsFull() throws Exception {
+		ValidationJob running = validationJobService.submit(file, null, false);
+		ValidationJob queued = validationJobService.submit(file, null, false);
+
+		Workspace rejectedWorkspace = mock(Workspace.class);
+		when(eidasService.createRequest(any(MultipartFile.class), any(MultipartFile.class)))
+				.thenReturn(new ValidationRequest(rejectedWorkspace, null, null, "default"));
+		try {
+			validationJobService.submit(file, null, false);
+			fail("Job should be rejected when queue is full");
+		} catch (ValidationQueueFullException e) {
+			verify(rejectedWorkspace).close();
+		}
+		assertEquals(30, validationJobService.getRetryAfter());
+
+		release.countDown();
+		waitForJob(running);
+		waitForJob(queued);
+		assertEquals(ValidationJob.Status.DONE, queued.getStatus());
+	}
+
+	@Test
+	public void unknownJobIsNull() {
+		assertNull(validationJobService.getJob("unknown"));
+	}
+
+	private static void waitForJob(ValidationJob job) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (job.getFinished() == null && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertNotNull("Job " + job.getId() + " did not finish", job.getFinished());
+	}
+}
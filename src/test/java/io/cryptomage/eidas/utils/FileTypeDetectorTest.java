@@ -0,0 +1,95 @@
+package io.cryptomage.eidas.utils;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+public class FileTypeDetectorTest {
+	private static final String SIGNATURES_DIR = "src/test/resources/signatures/";
+
+	@Test
+	public void sniffsPdf() throws IOException {
+		assertEquals(FileTypeDetector.PDF, sniff(load("pades/pades.pdf")));
+	}
+
+	@Test
+	public void sniffsXml() throws IOException {
+		assertEquals(FileTypeDetector.XML, sniff(load("xades_enveloped/xades_enveloped.xml")));
+		assertEquals(FileTypeDetector.XML,
+				sniff(load("xades_enveloping_txt_file/xades_enveloping_txt_file.txt.xades")));
+	}
+
+	@Test
+	public void sniffsXmlWithByteOrderMark() {
+		byte[] xml = "\uFEFF<?xml version=\"1.0\"?><a/>".getBytes(StandardCharsets.UTF_8);
+		assertEquals(FileTypeDetector.XML, sniff(xml));
+	}
+
+	@Test
+	public void sniffsZip() throws IOException {
+		assertEquals(FileTypeDetector.ZIP, sniff(load("cades_detached/cades_detached.zip")));
+		assertEquals(FileTypeDetector.ZIP, sniff(load("xades_detached_txt_file/xades_detached_txt_file.zip")));
+	}
+
+	@Test
+	public void sniffsBerEncodedSignedData() throws IOException {
+		assertEquals(FileTypeDetector.PKCS7_SIGNATURE,
+				sniff(load("cades_enveloping/cades_enveloping.txt.sig")));
+	}
+
+	@Test
+	public void sniffsAsicContainers() throws IOException {
+		assertEquals(FileTypeDetector.ASIC_S, sniff(load("asic_s/asic_s.asics")));
+		assertEquals(FileTypeDetector.ASIC_S, sniff(zipWithMimetype(FileTypeDetector.ASIC_S)));
+		assertEquals(FileTypeDetector.ASIC_E, sniff(zipWithMimetype(FileTypeDetector.ASIC_E)));
+	}
+
+	@Test
+	public void leavesOtherZipContainersToTika() throws IOException {
+		assertNull(sniff(zipWithMimetype("application/vnd.oasis.opendocument.text")));
+	}
+
+	@Test
+	public void doesNotRecogniseUnknownHeader() {
+		assertNull(sniff("plain text".getBytes(StandardCharsets.US_ASCII)));
+		assertNull(FileTypeDetector.sniff(new byte[0], 0));
+	}
+
+	private static String sniff(byte[] data) {
+		return FileTypeDetector.sniff(data, Math.min(data.length, FileTypeDetector.HEADER_SIZE));
+	}
+
+	private static byte[] load(String path) throws IOException {
+		return Files.readAllBytes(Paths.get(SIGNATURES_DIR + path));
+	}
+
+	private static byte[] zipWithMimetype(String mimeType) throws IOException {
+		byte[] content = mimeType.getBytes(StandardCharsets.US_ASCII);
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		ZipEntry entry = new ZipEntry("mimetype");
+		entry.setMethod(ZipEntry.STORED);
+		entry.setSize(content.length);
+		entry.setCrc(crc.getValue());
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+			zip.putNextEntry(entry);
+			zip.write(content);
+			zip.closeEntry();
+			zip.putNextEntry(new ZipEntry("content.xml"));
+			zip.write("<a/>".getBytes(StandardCharsets.US_ASCII));
+			zip.closeEntry();
+		}
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,108 @@
+package io.cryptomage.eidas.utils;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SingleFlightTest {
+	private final ExecutorService executor = Executors.newFixedThreadPool(2);
+	private final SingleFlight<String, String> flights = new SingleFlight<>();
+	private final AtomicInteger calls = new AtomicInteger();
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	@After
+	public void tearDown() {
+		release.countDown();
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void coalescesConcurrentCalls() throws Exception {
+		Future<String> first = executor.submit(() -> flights.execute("key", () -> blockingCall("report")));
+		Future<String> second = executor.submit(() -> flights.execute("key", () -> blockingCall("report")));
+		waitForCoalescedCalls(1);
+
+		release.countDown();
+		assertEquals("report", first.get(10, TimeUnit.SECONDS));
+		assertEquals("report", second.get(10, TimeUnit.SECONDS));
+		assertEquals(1, calls.get());
+		assertEquals(1, flights.getExecutedCount());
+		assertEquals(0, flights.getInFlightCount());
+	}
+
+	@Test
+	public void sharesException() throws Exception {
+		IOException failure = new IOException("Broken file");
+		SingleFlight.Operation<String> operation = () -> {
+			blockingCall(null);
+			throw failure;
+		};
+		Future<String> first = executor.submit(() -> flights.execute("key", operation));
+		Future<String> second = executor.submit(() -> flights.execute("key", operation));
+		waitForCoalescedCalls(1);
+
+		release.countDown();
+		assertSame(failure, getFailure(first));
+		assertSame(failure, getFailure(second));
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	public void executesAgainWhenFinished() throws IOException {
+		release.countDown();
+		assertEquals("first", flights.execute("key", () -> blockingCall("first")));
+		assertEquals("second", flights.execute("key", () -> blockingCall("second")));
+		assertEquals(2, calls.get());
+		assertEquals(0, flights.getCoalescedCount());
+	}
+
+	@Test
+	public void doesNotCoalesceDifferentKeys() throws Exception {
+		Future<String> first = executor.submit(() -> flights.execute("first", () -> blockingCall("first")));
+		Future<String> second = executor.submit(() -> flights.execute("second", () -> blockingCall("second")));
+
+		release.countDown();
+		assertEquals("first", first.get(10, TimeUnit.SECONDS));
+		assertEquals("second", second.get(10, TimeUnit.SECONDS));
+		assertEquals(2, flights.getExecutedCount());
+		assertEquals(0, flights.getCoalescedCount());
+	}
+
+	private String blockingCall(String result) throws IOException {
+		calls.incrementAndGet();
+		try {
+			release.await(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		return result;
+	}
+
+	private void waitForCoalescedCalls(long count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (flights.getCoalescedCount() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, flights.getCoalescedCount());
+	}
+
+	private static Throwable getFailure(Future<String> future) throws Exception {
+		try {
+			future.get(10, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			return e.getCause();
+		}
+		fail("Call should fail");
+		return null;
+	}
+}
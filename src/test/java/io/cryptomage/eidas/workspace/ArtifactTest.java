@@ -0,0 +1,132 @@
+package io.cryptomage.eidas.workspace;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.europa.esig.dss.DSSDocument;
+import eu.europa.esig.dss.DigestAlgorithm;
+
+public class ArtifactTest {
+	private static final DigestAlgorithm[] SINGLE_PASS_ALGORITHMS = { DigestAlgorithm.SHA1, DigestAlgorithm.SHA256,
+			DigestAlgorithm.SHA384, DigestAlgorithm.SHA512 };
+
+	private final AtomicInteger opened = new AtomicInteger();
+	private final byte[] contents = new byte[100 * 1024];
+	private File tempDir;
+	private Workspace workspace;
+
+	@Before
+	public void setUp() throws IOException {
+		tempDir = Files.createTempDirectory("artifact-test").toFile();
+		workspace = new Workspace(tempDir.getAbsolutePath(), 16, 64);
+		new Random(1).nextBytes(contents);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		workspace.close();
+		FileUtils.deleteDirectory(tempDir);
+	}
+
+	@Test
+	public void sharesDSSDocument() throws IOException {
+		Artifact small = workspace.write("small.txt", new byte[8]);
+		assertSame(small.getDSSDocument(), small.getDSSDocument());
+		assertEquals("small.txt", small.getDSSDocument().getName());
+
+		Artifact big = workspace.write("dir/big.bin", new byte[32]);
+		DSSDocument document = big.getDSSDocument();
+		assertSame(document, big.getDSSDocument());
+		assertEquals("big.bin", document.getName());
+	}
+
+	@Test
+	public void storesLazyArtifactOnce() throws IOException {
+		Artifact lazy = workspace.addLazy("entry.bin", 32, () -> {
+			opened.incrementAndGet();
+			return new ByteArrayInputStream(new byte[32]);
+		});
+		assertFalse(lazy.isMaterialized());
+		assertNull(lazy.getSha256());
+
+		DSSDocument document = lazy.getDSSDocument();
+		assertTrue(lazy.isMaterialized());
+		assertNotNull(lazy.getSha256());
+		assertSame(document, lazy.getDSSDocument());
+		assertEquals(32, lazy.readBytes().length);
+		assertEquals(1, opened.get());
+	}
+
+	@Test
+	public void computesDigestsOfSeveralSignaturesInOnePass() throws Exception {
+		Artifact detached = addCountedLazy("scan.bin");
+		DSSDocument document = detached.getDigestDocument();
+		assertEquals("scan.bin", document.getName());
+
+		// every signature of the detached file gets the same document
+		for (int signature = 0; signature < 5; signature++) {
+			assertSame(document, detached.getDigestDocument());
+			for (DigestAlgorithm algorithm : SINGLE_PASS_ALGORITHMS) {
+				assertEquals(digest(algorithm), detached.getDigestDocument().getDigest(algorithm));
+			}
+		}
+		assertEquals(1, opened.get());
+		assertFalse(detached.isMaterialized());
+	}
+
+	@Test
+	public void computesOtherAlgorithmOnce() throws Exception {
+		Artifact detached = addCountedLazy("scan.bin");
+		DSSDocument document = detached.getDigestDocument();
+		assertEquals(digest(DigestAlgorithm.SHA256), document.getDigest(DigestAlgorithm.SHA256));
+		assertEquals(digest(DigestAlgorithm.MD5), document.getDigest(DigestAlgorithm.MD5));
+		assertEquals(digest(DigestAlgorithm.MD5), document.getDigest(DigestAlgorithm.MD5));
+		assertEquals(2, opened.get());
+	}
+
+	@Test
+	public void reusesSha256OfStoredArtifact() throws Exception {
+		Artifact detached = addCountedLazy("scan.bin");
+		detached.materialize();
+		assertTrue(detached.getFile().delete());
+
+		// hash taken while storing, the deleted file is not read
+		assertEquals(digest(DigestAlgorithm.SHA256), detached.getDigest(DigestAlgorithm.SHA256));
+		assertEquals(1, opened.get());
+	}
+
+	@Test
+	public void aliasSharesDigests() throws Exception {
+		Artifact detached = addCountedLazy("first/scan.bin");
+		assertEquals(digest(DigestAlgorithm.SHA384), detached.getDigest(DigestAlgorithm.SHA384));
+		Artifact alias = workspace.alias("second/scan.bin", detached);
+
+		assertEquals(digest(DigestAlgorithm.SHA384), alias.getDigestDocument().getDigest(DigestAlgorithm.SHA384));
+		assertEquals(1, opened.get());
+	}
+
+	private Artifact addCountedLazy(String path) throws IOException {
+		return workspace.addLazy(path, contents.length, () -> {
+			opened.incrementAndGet();
+			return new ByteArrayInputStream(contents);
+		});
+	}
+
+	private String digest(DigestAlgorithm algorithm) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance(algorithm.getJavaName());
+		return Base64.getEncoder().encodeToString(digest.digest(contents));
+	}
+}
@@ -0,0 +1,181 @@
+package io.cryptomage.eidas.workspace;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+public class ExtractionBudgetTest {
+	private static final int MB = 1024 * 1024;
+
+	@Test
+	public void stopsZipBombAtCompressionRatio() throws IOException {
+		byte[] zip = zip("bomb.bin", new byte[20 * MB]);
+		ExtractionBudget budget = new ExtractionBudget(0, 0, 100);
+		try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip))) {
+			ZipEntry entry = zis.getNextEntry();
+			try {
+				readAll(budget.limit(entry.getName(), zis, zip.length));
+				fail("Zip bomb should exceed compression ratio");
+			} catch (ExtractionLimitExceededException e) {
+				assertTrue(e.getMessage().contains("bomb.bin"));
+			}
+		}
+		assertTrue(budget.getInflatedSize() < 20 * MB);
+	}
+
+	@Test
+	public void stopsAtInflatedSize() throws IOException {
+		ExtractionBudget budget = new ExtractionBudget(0, 3 * MB, 0);
+		readAll(budget.limit("first", new ByteArrayInputStream(new byte[2 * MB]), 0));
+		try {
+			readAll(budget.limit("second", new ByteArrayInputStream(new byte[2 * MB]), 0));
+			fail("Total inflated size should be limited");
+		} catch (ExtractionLimitExceededException e) {
+			assertTrue(e.getMessage().contains("second"));
+		}
+	}
+
+	@Test
+	public void countsDeclaredSize() {
+		ExtractionBudget budget = new ExtractionBudget(0, 3 * MB, 0);
+		budget.addEntrySize("first", 2 * MB, 2 * MB);
+		budget.addEntrySize("unknown", -1, 10);
+		assertEquals(2 * MB, budget.getInflatedSize());
+		try {
+			budget.addEntrySize("second", 2 * MB, 2 * MB);
+			fail("Declared size should be counted");
+		} catch (ExtractionLimitExceededException e) {
+			assertTrue(e.getMessage().contains("second"));
+		}
+	}
+
+	@Test
+	public void rejectsDeclaredCompressionRatio() {
+		ExtractionBudget budget = new ExtractionBudget(0, 0, 100);
+		try {
+			budget.addEntrySize("bomb.bin", 20 * MB, 1024);
+			fail("Declared compression ratio should be checked");
+		} catch (ExtractionLimitExceededException e) {
+			assertTrue(e.getMessage().contains("bomb.bin"));
+		}
+	}
+
+	@Test
+	public void doesNotCheckRatioOfSmallEntries() throws IOException {
+		ExtractionBudget budget = new ExtractionBudget(0, 0, 100);
+		byte[] zip = zip("small.txt", new byte[512 * 1024]);
+		try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip))) {
+			ZipEntry entry = zis.getNextEntry();
+			assertEquals(512 * 1024, readAll(budget.limit(entry.getName(), zis, zip.length)));
+		}
+	}
+
+	@Test
+	public void stopsEntryLongerThanDeclared() throws IOException {
+		ExtractionBudget budget = new ExtractionBudget(0, 3 * MB, 0);
+		budget.addEntrySize("forged.bin", 1024, 1024);
+		try {
+			readAll(budget.limitEntry("forged.bin", new ByteArrayInputStream(new byte[2 * MB]), 1024, 1024));
+			fail("Entry should not be longer than its declared size");
+		} catch (ExtractionLimitExceededException e) {
+			assertTrue(e.getMessage().contains("forged.bin"));
+		}
+		assertEquals(1024, budget.getInflatedSize());
+	}
+
+	@Test
+	public void readsEntryOfDeclaredSizeAgain() throws IOException {
+		ExtractionBudget budget = new ExtractionBudget(0, 3 * MB, 0);
+		budget.addEntrySize("entry.bin", 2 * MB, 2 * MB);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(2 * MB,
+					readAll(budget.limitEntry("entry.bin", new ByteArrayInputStream(new byte[2 * MB]), 2 * MB, 2 * MB)));
+		}
+		assertEquals(2 * MB, budget.getInflatedSize());
+	}
+
+	@Test
+	public void countsEntryOfUnknownSize() throws IOException {
+		ExtractionBudget budget = new ExtractionBudget(0, 3 * MB, 0);
+		readAll(budget.limitEntry("first", new ByteArrayInputStream(new byte[2 * MB]), -1, 0));
+		try {
+			readAll(budget.limitEntry("second", new ByteArrayInputStream(new byte[2 * MB]), -1, 0));
+			fail("Entry of unknown size should be counted");
+		} catch (ExtractionLimitExceededException e) {
+			assertTrue(e.getMessage().contains("second"));
+		}
+	}
+
+	@Test
+	public void closesEntryStream() throws IOException {
+		ExtractionBudget budget = ExtractionBudget.unlimited();
+		AtomicBoolean closed = new AtomicBoolean();
+		InputStream entry = new ByteArrayInputStream(new byte[16]) {
+			@Override
+			public void close() {
+				closed.set(true);
+			}
+		};
+		budget.limit("extracted", entry, 16).close();
+		assertFalse(closed.get());
+		budget.limitEntry("lazy", entry, 16, 16).close();
+		assertTrue(closed.get());
+	}
+
+	@Test
+	public void stopsAtEntryCount() {
+		ExtractionBudget budget = new ExtractionBudget(2, 0, 0);
+		budget.addEntry("first");
+		budget.addEntry("second");
+		try {
+			budget.addEntry("third");
+			fail("Number of entries should be limited");
+		} catch (ExtractionLimitExceededException e) {
+			assertTrue(e.getMessage().contains("third"));
+		}
+	}
+
+	@Test
+	public void unlimitedBudgetCountsOnly() throws IOException {
+		ExtractionBudget budget = ExtractionBudget.unlimited();
+		for (int i = 0; i < 1000; i++) {
+			budget.addEntry("entry" + i);
+		}
+		byte[] zip = zip("bomb.bin", new byte[20 * MB]);
+		try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip))) {
+			ZipEntry entry = zis.getNextEntry();
+			readAll(budget.limit(entry.getName(), zis, zip.length));
+		}
+		assertEquals(1000, budget.getEntries());
+		assertEquals(20 * MB, budget.getInflatedSize());
+	}
+
+	private static byte[] zip(String name, byte[] content) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ZipOutputStream zos = new ZipOutputStream(bytes)) {
+			zos.putNextEntry(new ZipEntry(name));
+			zos.write(content);
+			zos.closeEntry();
+		}
+		return bytes.toByteArray();
+	}
+
+	private static long readAll(InputStream is) throws IOException {
+		byte[] buffer = new byte[8192];
+		long total = 0;
+		int read;
+		while ((read = is.read(buffer)) != -1) {
+			total += read;
+		}
+		return total;
+	}
+}
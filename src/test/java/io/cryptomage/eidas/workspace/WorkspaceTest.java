@@ -0,0 +1,98 @@
+package io.cryptomage.eidas.workspace;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WorkspaceTest {
+	private File tempDir;
+	private Workspace workspace;
+
+	@Before
+	public void setUp() throws IOException {
+		tempDir = Files.createTempDirectory("workspace-test").toFile();
+		workspace = new Workspace(tempDir.getAbsolutePath(), 16, 64);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		workspace.close();
+		FileUtils.deleteDirectory(tempDir);
+	}
+
+	@Test
+	public void keepsSmallFilesInMemory() throws IOException {
+		Artifact artifact = workspace.write("dir/small.txt", new ByteArrayInputStream(new byte[16]), 0);
+		assertTrue(artifact.isInMemory());
+		assertEquals(16, workspace.getInMemorySize());
+		assertSame(artifact, workspace.find("/dir/small.txt"));
+		assertEquals(0, tempDir.list().length);
+	}
+
+	@Test
+	public void spillsBigFilesToRequestDir() throws IOException {
+		Artifact artifact = workspace.write("big.bin", new ByteArrayInputStream(new byte[32]), 0);
+		assertFalse(artifact.isInMemory());
+		assertEquals(32, artifact.getFile().length());
+		assertEquals("big.bin", artifact.getFile().getName());
+		assertEquals(0, workspace.getInMemorySize());
+
+		workspace.close();
+		assertFalse(artifact.getFile().exists());
+		assertEquals(0, tempDir.list().length);
+	}
+
+	@Test
+	public void refusesWritesAfterClose() throws IOException {
+		workspace.close();
+		assertTrue(workspace.isClosed());
+		try {
+			workspace.write("late.bin", new ByteArrayInputStream(new byte[32]), 0);
+			fail("Closed workspace should refuse writes");
+		} catch (IOException e) {
+			assertEquals("Workspace is closed", e.getMessage());
+		}
+		try {
+			workspace.getDir();
+			fail("Closed workspace should not create request dir");
+		} catch (IOException e) {
+			assertEquals("Workspace is closed", e.getMessage());
+		}
+		assertEquals(0, tempDir.list().length);
+		assertNull(workspace.find("late.bin"));
+	}
+
+	@Test
+	public void aliasSharesContents() throws IOException {
+		Artifact artifact = workspace.write("first/file.txt", new byte[] { 1, 2, 3 });
+		Artifact alias = workspace.alias("second/file.txt", artifact);
+
+		assertSame(alias, workspace.find("second/file.txt"));
+		assertSame(artifact, workspace.find("first/file.txt"));
+		assertEquals("file.txt", alias.getName());
+		assertSame(artifact.getData(), alias.getData());
+		assertEquals(artifact.getSha256(), alias.getSha256());
+		assertEquals(6, workspace.getInMemorySize());
+
+		workspace.write("second/file.txt", new byte[] { 4 });
+		assertEquals(4, workspace.getInMemorySize());
+	}
+
+	@Test
+	public void aliasSharesSpilledFile() throws IOException {
+		Artifact artifact = workspace.write("first/big.bin", new byte[32]);
+		Artifact alias = workspace.alias("second/big.bin", artifact);
+
+		assertEquals(artifact.getFile(), alias.getFile());
+		assertEquals(32, alias.getSize());
+		assertEquals(0, workspace.getInMemorySize());
+	}
+}